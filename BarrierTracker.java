@@ -0,0 +1,244 @@
+package edu.wisc.cs.sdn;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.IOFMessageListener;
+import net.floodlightcontroller.core.IOFSwitch;
+
+/**
+ * Tracks outstanding barrier requests and runs a callback once a switch 
+ * replies to a barrier, which confirms the switch has processed every message
+ * sent before it. A callback whose switch does not reply in time is run 
+ * anyway, so a lost reply delays a flow rather than stranding it. Expired 
+ * barriers are found by a single periodic sweep over the outstanding ones,
+ * so answered barriers leave no timeout tasks behind in the executor.
+ */
+public class BarrierTracker implements IOFMessageListener
+{
+	public static final long DEFAULT_TIMEOUT_MS = 1000;
+	
+	// Interface to the logging system
+	private static Logger log = 
+			LoggerFactory.getLogger(BarrierTracker.class.getSimpleName());
+	
+	/**
+	 * A callback for an outstanding barrier, and when the barrier expires.
+	 */
+	private static class Pending
+	{
+		final Runnable callback;
+		final long deadlineNanos;
+		
+		Pending(Runnable callback, long deadlineNanos)
+		{
+			this.callback = callback;
+			this.deadlineNanos = deadlineNanos;
+		}
+	}
+	
+	// Outstanding barriers, indexed by DPID and transaction id
+	private Map<Long,Map<Integer,Pending>> pending;
+	
+	// Executor used to expire barriers that are never answered
+	private ScheduledExecutorService executor;
+	
+	// How long to wait for a barrier reply
+	private long timeoutMs;
+	
+	// Whether the periodic sweep for expired barriers has been started; 
+	// guarded by this object
+	private boolean sweeping;
+	
+	// Number of barriers confirmed by the switch
+	private AtomicLong confirmed;
+	
+	// Number of barriers that expired without a reply
+	private AtomicLong expired;
+	
+	/**
+	 * Creates a tracker for barrier requests. A barrier that is not answered
+	 * expires between one and one and a half timeouts after it was expected.
+	 * @param executor executor used to expire barriers that are never answered
+	 * @param timeoutMs how long to wait for a barrier reply, in milliseconds
+	 */
+	public BarrierTracker(ScheduledExecutorService executor, long timeoutMs)
+	{
+		this.pending = new HashMap<Long,Map<Integer,Pending>>();
+		this.executor = executor;
+		this.timeoutMs = timeoutMs;
+		this.confirmed = new AtomicLong();
+		this.expired = new AtomicLong();
+	}
+	
+	/**
+	 * Registers a callback for a barrier request. Must be called before the 
+	 * request is written to the switch, so the reply cannot be missed.
+	 * @param sw the switch to which the barrier request is sent
+	 * @param xid the transaction id of the barrier request
+	 * @param callback run once the switch replies, or the barrier expires
+	 */
+	public void expect(IOFSwitch sw, int xid, Runnable callback)
+	{
+		long deadline = System.nanoTime() 
+				+ TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+		synchronized (this)
+		{
+			Map<Integer,Pending> switchPending = pending.get(sw.getId());
+			if (null == switchPending)
+			{
+				switchPending = new HashMap<Integer,Pending>();
+				pending.put(sw.getId(), switchPending);
+			}
+			switchPending.put(xid, new Pending(callback, deadline));
+			
+			if (!sweeping)
+			{
+				long periodMs = Math.max(1, timeoutMs / 2);
+				executor.scheduleAtFixedRate(new Runnable() {
+					@Override
+					public void run()
+					{ expire(); }
+				}, periodMs, periodMs, TimeUnit.MILLISECONDS);
+				sweeping = true;
+			}
+		}
+	}
+	
+	/**
+	 * Runs the callback for a barrier request right away, without waiting for
+	 * a reply. Used when the request could not be sent.
+	 * @param sw the switch to which the barrier request was to be sent
+	 * @param xid the transaction id of the barrier request
+	 */
+	public void release(IOFSwitch sw, int xid)
+	{
+		Runnable callback = this.take(sw.getId(), xid);
+		if (callback != null)
+		{ callback.run(); }
+	}
+	
+	/**
+	 * Removes and returns the callback for a barrier request.
+	 * @return the callback; null if the barrier is not outstanding
+	 */
+	private synchronized Runnable take(long dpid, int xid)
+	{
+		Map<Integer,Pending> switchPending = pending.get(dpid);
+		if (null == switchPending)
+		{ return null; }
+		Pending entry = switchPending.remove(xid);
+		if (switchPending.isEmpty())
+		{ pending.remove(dpid); }
+		return (null == entry ? null : entry.callback);
+	}
+	
+	/**
+	 * Runs the callbacks of all barriers whose replies are overdue.
+	 */
+	private void expire()
+	{
+		long now = System.nanoTime();
+		List<Runnable> callbacks = new ArrayList<Runnable>();
+		synchronized (this)
+		{
+			Iterator<Map.Entry<Long,Map<Integer,Pending>>> switchIter = 
+					pending.entrySet().iterator();
+			while (switchIter.hasNext())
+			{
+				Map.Entry<Long,Map<Integer,Pending>> switchEntry = 
+						switchIter.next();
+				Iterator<Map.Entry<Integer,Pending>> iter = 
+						switchEntry.getValue().entrySet().iterator();
+				while (iter.hasNext())
+				{
+					Map.Entry<Integer,Pending> entry = iter.next();
+					if (now - entry.getValue().deadlineNanos < 0)
+					{ continue; }
+					iter.remove();
+					callbacks.add(entry.getValue().callback);
+					log.warn(String.format(
+							"No barrier reply from switch %d for xid %d", 
+							switchEntry.getKey(), entry.getKey()));
+				}
+				if (switchEntry.getValue().isEmpty())
+				{ switchIter.remove(); }
+			}
+		}
+		
+		// Run the callbacks outside the lock, since they send messages
+		for (Runnable callback : callbacks)
+		{
+			expired.incrementAndGet();
+			try
+			{ callback.run(); }
+			catch (RuntimeException e)
+			{ log.error("Barrier callback failed", e); }
+		}
+	}
+	
+	/**
+	 * Gets the number of barriers confirmed by a switch.
+	 * @return the number of barriers confirmed
+	 */
+	public long getConfirmed()
+	{ return confirmed.get(); }
+	
+	/**
+	 * Gets the number of barriers that expired without a reply.
+	 * @return the number of barriers that expired
+	 */
+	public long getExpired()
+	{ return expired.get(); }
+	
+	/**
+	 * Provides an identifier for our OFMessage listener.
+	 */
+	@Override
+	public String getName()
+	{ return BarrierTracker.class.getSimpleName(); }
+	
+	/**
+	 * Tell the module system if another module must be called before us.
+	 */
+	@Override
+	public boolean isCallbackOrderingPrereq(OFType type, String name)
+	{ return false; }
+	
+	/**
+	 * Tell the module system if another module must be called after us.
+	 */
+	@Override
+	public boolean isCallbackOrderingPostreq(OFType type, String name)
+	{ return false; }
+	
+	/**
+	 * Runs the callback for a barrier when the switch replies to it.
+	 */
+	@Override
+	public Command receive(IOFSwitch sw, OFMessage msg, FloodlightContext cntx)
+	{
+		if (msg.getType() != OFType.BARRIER_REPLY)
+		{ return Command.CONTINUE; }
+		
+		Runnable callback = this.take(sw.getId(), msg.getXid());
+		if (callback != null)
+		{
+			confirmed.incrementAndGet();
+			callback.run();
+		}
+		return Command.CONTINUE;
+	}
+}
@@ -0,0 +1,219 @@
+package edu.wisc.cs.sdn;
+
+import java.util.Arrays;
+
+/**
+ * The switches and links of a topology snapshot in compressed sparse row
+ * form, for computing paths without chasing references between vertex and
+ * edge objects. Switches are numbered densely from 0, and the links leaving
+ * switch i are entries offsets[i] through offsets[i+1]-1 of parallel arrays
+ * holding each link's destination, ports, and weight. The links entering each
+ * switch are indexed the same way, by position in the arrays of links leaving
+ * switches. {@link TopologyGraph} builds these arrays directly and derives its
+ * vertex and edge objects from them on demand.
+ * <p>
+ * Dense indices differ from vertex ids, which are never reused and so can
+ * leave gaps; use {@link #getIndex(int)} and {@link #getVertexId(int)} to
+ * convert between them.
+ */
+class CompactGraph
+{
+    // Marks a vertex id or DPID that is not in the graph
+    public static final int NO_INDEX = -1;
+
+    private final long version;
+
+    // Vertex id and DPID of each switch, and dense index of each vertex id
+    private final int[] vertexIds;
+    private final long[] dpids;
+    private final int[] indices;
+    private final LongLongHashMap indicesByDpid;
+
+    // Links leaving each switch
+    private final int[] offsets;
+    private final int[] src;
+    private final int[] dst;
+    private final short[] srcPort;
+    private final short[] dstPort;
+    private final double[] weight;
+
+    // Links entering each switch, as positions in the arrays above
+    private final int[] inOffsets;
+    private final int[] inLinks;
+
+    /**
+     * Create a graph from arrays of switches and of links sorted by source
+     * switch. The arrays are kept, not copied.
+     * @param version the version of the topology the graph reflects
+     * @param indices the dense index of each vertex id; {@link #NO_INDEX} for
+     * 			ids not in the graph
+     * @param vertexIds the vertex id of each switch
+     * @param dpids the DPID of each switch
+     * @param offsets the position of the first link leaving each switch,
+     * 			followed by the number of links
+     * @param src the dense index of the switch each link leaves
+     * @param dst the dense index of the switch each link reaches
+     * @param srcPort the port each link leaves its source switch from
+     * @param dstPort the port each link reaches its destination switch on
+     * @param weight the cost of sending traffic over each link
+     */
+    CompactGraph(long version, int[] indices, int[] vertexIds, long[] dpids,
+    		int[] offsets, int[] src, int[] dst, short[] srcPort,
+    		short[] dstPort, double[] weight)
+    {
+    	this.version = version;
+    	this.indices = indices;
+    	this.vertexIds = vertexIds;
+    	this.dpids = dpids;
+    	this.offsets = offsets;
+    	this.src = src;
+    	this.dst = dst;
+    	this.srcPort = srcPort;
+    	this.dstPort = dstPort;
+    	this.weight = weight;
+
+    	int n = vertexIds.length;
+    	this.indicesByDpid = new LongLongHashMap(n, NO_INDEX);
+    	for (int i = 0; i < n; i++)
+    	{ indicesByDpid.put(dpids[i], i); }
+
+    	// Index the links entering each switch
+    	int linkCount = offsets[n];
+    	this.inOffsets = new int[n + 1];
+    	for (int link = 0; link < linkCount; link++)
+    	{ inOffsets[dst[link] + 1]++; }
+    	for (int i = 0; i < n; i++)
+    	{ inOffsets[i + 1] += inOffsets[i]; }
+    	this.inLinks = new int[linkCount];
+    	int[] next = Arrays.copyOf(inOffsets, n);
+    	for (int link = 0; link < linkCount; link++)
+    	{ inLinks[next[dst[link]]++] = link; }
+    }
+
+    /**
+     * Get the version of the topology the graph reflects.
+     * @return the version of the topology the graph reflects
+     */
+    public long getVersion()
+    { return this.version; }
+
+    /**
+     * Get the number of switches in the graph.
+     * @return one more than the largest dense index
+     */
+    public int getSize()
+    { return this.vertexIds.length; }
+
+    /**
+     * Get one more than the largest vertex id, i.e., the size of arrays
+     * indexed by vertex id.
+     * @return one more than the largest vertex id
+     */
+    public int getVertexCount()
+    { return this.indices.length; }
+
+    /**
+     * Get the dense index of a vertex.
+     * @param vertexId the vertex id
+     * @return the dense index; {@link #NO_INDEX} if the vertex is not in the
+     * 			graph
+     */
+    public int getIndex(int vertexId)
+    {
+    	if (vertexId < 0 || vertexId >= indices.length)
+    	{ return NO_INDEX; }
+    	return indices[vertexId];
+    }
+
+    /**
+     * Get the dense index of a switch.
+     * @param dpid the switch's DPID
+     * @return the dense index; {@link #NO_INDEX} if the switch is not in the
+     * 			graph
+     */
+    public int getIndexForDpid(long dpid)
+    { return (int)indicesByDpid.get(dpid); }
+
+    /**
+     * Get the vertex id of a switch.
+     * @param index the dense index
+     * @return the vertex id
+     */
+    public int getVertexId(int index)
+    { return this.vertexIds[index]; }
+
+    /**
+     * Get the DPID of a switch.
+     * @param index the dense index
+     * @return the switch's DPID
+     */
+    public long getDpid(int index)
+    { return this.dpids[index]; }
+
+    /**
+     * Get the position of the first link leaving a switch. The links leaving
+     * switch i are at positions getFirstLink(i) through getFirstLink(i+1)-1.
+     * @param index the dense index; may be {@link #getSize()}
+     * @return the position of the first link
+     */
+    public int getFirstLink(int index)
+    { return this.offsets[index]; }
+
+    /**
+     * Get the dense index of the switch a link leaves.
+     * @param link the position of the link
+     * @return the dense index
+     */
+    public int getSrc(int link)
+    { return this.src[link]; }
+
+    /**
+     * Get the dense index of the switch a link reaches.
+     * @param link the position of the link
+     * @return the dense index
+     */
+    public int getDst(int link)
+    { return this.dst[link]; }
+
+    /**
+     * Get the port a link leaves its source switch from.
+     * @param link the position of the link
+     * @return the port number
+     */
+    public short getSrcPort(int link)
+    { return this.srcPort[link]; }
+
+    /**
+     * Get the port a link reaches its destination switch on.
+     * @param link the position of the link
+     * @return the port number
+     */
+    public short getDstPort(int link)
+    { return this.dstPort[link]; }
+
+    /**
+     * Get the cost of sending traffic over a link.
+     * @param link the position of the link
+     * @return the weight of the link
+     */
+    public double getWeight(int link)
+    { return this.weight[link]; }
+
+    /**
+     * Get where the links entering a switch start in the incoming index. The
+     * links entering switch i are getIncomingLink(getFirstIncoming(i)) through
+     * getIncomingLink(getFirstIncoming(i+1)-1).
+     * @param index the dense index; may be {@link #getSize()}
+     * @return the start of the switch's incoming links
+     */
+    public int getFirstIncoming(int index)
+    { return this.inOffsets[index]; }
+
+    /**
+     * Get the position of a link in the incoming index.
+     * @param incoming an entry in the incoming index
+     * @return the position of the link
+     */
+    public int getIncomingLink(int incoming)
+    { return this.inLinks[incoming]; }
+}
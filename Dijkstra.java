@@ -28,49 +28,253 @@ Modified by: Aaron Gember, agember@cs.wisc.edu, University of Wisconsin-Madison
 
 package edu.wisc.cs.sdn;
 
-import java.util.PriorityQueue;
-import java.util.List;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 
 /**
  * An implementation of Dijsktra's algorithm.
  */
 public class Dijkstra
 {
-    public static void computePaths(Vertex source)
+    /**
+     * Compute the shortest paths from a source vertex to all vertices that 
+     * can be reached from it. The vertices to visit are kept in an indexed 
+     * heap, so a vertex whose distance improves has its key lowered in place.
+     * All working state is local to the call, so any number of computations 
+     * can run over the same graph at the same time.
+     * @param graph the graph containing the source vertex
+     * @param source the vertex from which all paths originate
+     * @param equalCost whether to find every equal-cost predecessor of each 
+     * 			vertex, rather than only the one its shortest path follows
+     * @return the shortest paths from the source vertex
+     */
+    public static ShortestPathTree computeShortestPaths(TopologyGraph graph,
+            Vertex source, boolean equalCost)
     {
-        source.minDistance = 0.;
-        PriorityQueue<Vertex> vertexQueue = new PriorityQueue<Vertex>();
-		vertexQueue.add(source);
-	
-		while (!vertexQueue.isEmpty()) {
-		    Vertex u = vertexQueue.poll();
-	
+        int vertexCount = graph.getVertexCount();
+        double[] distance = new double[vertexCount];
+        int[] previous = new int[vertexCount];
+        Arrays.fill(distance, Double.POSITIVE_INFINITY);
+        Arrays.fill(previous, -1);
+        
+        IndexedMinHeap vertexQueue = new IndexedMinHeap(vertexCount);
+        distance[source.getId()] = 0.;
+        vertexQueue.insertOrDecrease(source.getId(), 0.);
+        
+        while (!vertexQueue.isEmpty()) {
+            int u = vertexQueue.poll();
+            
             // Visit each edge exiting u
-            for (Edge e : u.getAdjacencies())
+            for (Edge e : graph.getVertexById(u).getAdjacencies())
             {
-                Vertex v = e.getDstVertex();
-                double weight = e.getWeight();
-                double distanceThroughU = u.minDistance + weight;
-				if (distanceThroughU < v.minDistance) {
-				    vertexQueue.remove(v);
-		
-				    v.minDistance = distanceThroughU ;
-				    v.previous = u;
-				    vertexQueue.add(v);
-				}
+                int v = e.getDstVertex().getId();
+                double distanceThroughU = distance[u] + e.getWeight();
+                if (distanceThroughU < distance[v]) {
+                    distance[v] = distanceThroughU;
+                    previous[v] = u;
+                    vertexQueue.insertOrDecrease(v, distanceThroughU);
+                }
             }
         }
+        
+        if (!equalCost)
+        { return new ShortestPathTree(source.getId(), distance, previous); }
+        
+        // Find every predecessor through which each vertex is reached at the
+        // cost of its shortest path, in order of vertex id
+        int[] equalCostStart = new int[vertexCount + 1];
+        int tight = 0;
+        for (int v = 0; v < vertexCount; v++)
+        {
+            equalCostStart[v] = tight;
+            tight += countEqualCost(graph, distance, previous, v, null, 0);
+        }
+        equalCostStart[vertexCount] = tight;
+        int[] predecessors = new int[tight];
+        for (int v = 0; v < vertexCount; v++)
+        {
+            countEqualCost(graph, distance, previous, v, predecessors, 
+                    equalCostStart[v]);
+        }
+        
+        return new ShortestPathTree(source.getId(), distance, previous,
+                equalCostStart, predecessors);
     }
-
-    public static List<Vertex> getShortestPathTo(Vertex target)
+    
+    /**
+     * Compute the shortest paths from a source vertex over the compact form 
+     * of a graph. The result is the same as for the vertex and edge objects, 
+     * and is indexed by vertex id, but the search walks flat arrays instead.
+     * @param graph the compact graph containing the source vertex
+     * @param sourceId the id of the vertex from which all paths originate
+     * @param equalCost whether to find every equal-cost predecessor of each 
+     * 			vertex, rather than only the one its shortest path follows
+     * @return the shortest paths from the source vertex
+     */
+    public static ShortestPathTree computeShortestPaths(CompactGraph graph,
+            int sourceId, boolean equalCost)
     {
-        List<Vertex> path = new ArrayList<Vertex>();
-        for (Vertex vertex = target; vertex != null; vertex = vertex.previous)
-            path.add(vertex);
-
-        Collections.reverse(path);
-        return path;
+        int n = graph.getSize();
+        double[] dist = new double[n];
+        int[] prev = new int[n];
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        Arrays.fill(prev, -1);
+        
+        IndexedMinHeap vertexQueue = new IndexedMinHeap(n);
+        int source = graph.getIndex(sourceId);
+        dist[source] = 0.;
+        vertexQueue.insertOrDecrease(source, 0.);
+        
+        while (!vertexQueue.isEmpty()) {
+            int u = vertexQueue.poll();
+            
+            // Visit each link leaving u
+            int end = graph.getFirstLink(u + 1);
+            for (int link = graph.getFirstLink(u); link < end; link++)
+            {
+                int v = graph.getDst(link);
+                double distanceThroughU = dist[u] + graph.getWeight(link);
+                if (distanceThroughU < dist[v]) {
+                    dist[v] = distanceThroughU;
+                    prev[v] = u;
+                    vertexQueue.insertOrDecrease(v, distanceThroughU);
+                }
+            }
+        }
+        
+        // Index the results by vertex id and, if asked to, find every 
+        // predecessor through which each vertex is reached at the cost of its
+        // shortest path, in order of vertex id
+        int vertexCount = graph.getVertexCount();
+        double[] distance = new double[vertexCount];
+        int[] previous = new int[vertexCount];
+        Arrays.fill(distance, Double.POSITIVE_INFINITY);
+        Arrays.fill(previous, -1);
+        int[] equalCostStart = (equalCost ? new int[vertexCount + 1] : null);
+        int[] predecessors = (equalCost 
+                ? new int[graph.getFirstIncoming(n)] : null);
+        int tight = 0;
+        for (int id = 0; id < vertexCount; id++)
+        {
+            if (equalCost)
+            { equalCostStart[id] = tight; }
+            int v = graph.getIndex(id);
+            if (CompactGraph.NO_INDEX == v || prev[v] < 0)
+            { continue; }
+            distance[id] = dist[v];
+            previous[id] = graph.getVertexId(prev[v]);
+            if (!equalCost)
+            { continue; }
+            int start = tight;
+            int inEnd = graph.getFirstIncoming(v + 1);
+            for (int in = graph.getFirstIncoming(v); in < inEnd; in++)
+            {
+                int link = graph.getIncomingLink(in);
+                if (Double.isInfinite(dist[graph.getSrc(link)]))
+                { continue; }
+                if (ShortestPathTree.isEqualCost(
+                        dist[graph.getSrc(link)] + graph.getWeight(link), 
+                        dist[v]))
+                { predecessors[tight++] = graph.getVertexId(graph.getSrc(link)); }
+            }
+            Arrays.sort(predecessors, start, tight);
+        }
+        distance[sourceId] = 0.;
+        
+        if (!equalCost)
+        { return new ShortestPathTree(sourceId, distance, previous); }
+        equalCostStart[vertexCount] = tight;
+        return new ShortestPathTree(sourceId, distance, previous,
+                equalCostStart, Arrays.copyOf(predecessors, tight));
+    }
+    
+    /**
+     * Compute the shortest paths from all vertices that can reach a target
+     * vertex to the target, over the compact form of a graph. The search runs
+     * backwards from the target over the links entering each vertex, so each
+     * path is costed by the weights of the links in the direction traffic
+     * crosses them. In the result, the tree is rooted at the target, the 
+     * distance to a vertex is the length of its shortest path to the target,
+     * and the previous vertex of a vertex is its next hop toward the target.
+     * @param graph the compact graph containing the target vertex
+     * @param targetId the id of the vertex at which all paths end
+     * @return the shortest paths to the target vertex
+     */
+    public static ShortestPathTree computeShortestPathsTo(CompactGraph graph,
+            int targetId)
+    {
+        int n = graph.getSize();
+        double[] dist = new double[n];
+        int[] next = new int[n];
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        Arrays.fill(next, -1);
+        
+        IndexedMinHeap vertexQueue = new IndexedMinHeap(n);
+        int target = graph.getIndex(targetId);
+        dist[target] = 0.;
+        vertexQueue.insertOrDecrease(target, 0.);
+        
+        while (!vertexQueue.isEmpty()) {
+            int u = vertexQueue.poll();
+            
+            // Visit each link entering u
+            int end = graph.getFirstIncoming(u + 1);
+            for (int in = graph.getFirstIncoming(u); in < end; in++)
+            {
+                int link = graph.getIncomingLink(in);
+                int v = graph.getSrc(link);
+                double distanceThroughU = dist[u] + graph.getWeight(link);
+                if (distanceThroughU < dist[v]) {
+                    dist[v] = distanceThroughU;
+                    next[v] = u;
+                    vertexQueue.insertOrDecrease(v, distanceThroughU);
+                }
+            }
+        }
+        
+        // Index the results by vertex id
+        int vertexCount = graph.getVertexCount();
+        double[] distance = new double[vertexCount];
+        int[] nextHop = new int[vertexCount];
+        Arrays.fill(distance, Double.POSITIVE_INFINITY);
+        Arrays.fill(nextHop, -1);
+        for (int id = 0; id < vertexCount; id++)
+        {
+            int v = graph.getIndex(id);
+            if (CompactGraph.NO_INDEX == v || next[v] < 0)
+            { continue; }
+            distance[id] = dist[v];
+            nextHop[id] = graph.getVertexId(next[v]);
+        }
+        distance[targetId] = 0.;
+        return new ShortestPathTree(targetId, distance, nextHop);
+    }
+    
+    /**
+     * Count, and optionally record, the neighbors through which a vertex is 
+     * reached at the cost of its shortest path, in order of vertex id.
+     */
+    static int countEqualCost(TopologyGraph graph, double[] distance,
+            int[] previous, int v, int[] equalCost, int offset)
+    {
+        if (previous[v] < 0)
+        { return 0; }
+        
+        int count = 0;
+        for (Edge in : graph.getVertexById(v).getIncoming())
+        {
+            int neighbor = in.getSrcVertex().getId();
+            if (Double.isInfinite(distance[neighbor]))
+            { continue; }
+            if (ShortestPathTree.isEqualCost(
+                    distance[neighbor] + in.getWeight(), distance[v]))
+            {
+                if (equalCost != null)
+                { equalCost[offset + count] = neighbor; }
+                count++;
+            }
+        }
+        if (equalCost != null)
+        { Arrays.sort(equalCost, offset, offset + count); }
+        return count;
     }
 }
@@ -33,13 +33,17 @@ package edu.wisc.cs.sdn;
  */
 class Edge
 {
+    /** The weight of an edge whose link has no assigned cost. */
+    public static final double DEFAULT_WEIGHT = 1.0;
+    
     private final Vertex srcVert;
     private final Vertex dstVert;
     private final short srcSwPort;
     private final short dstSwPort;
+    private final double weight;
     
     /**
-     * Create a new edge, representing a link.
+     * Create a new edge, representing a link, with the default weight.
      * @param srcVert the vertex (i.e., switch) on one side of the link
      * @param srcSwPort the switch port on one side of the link
      * @param dstVert the vertex (i.e., switch) on the other side of the link
@@ -47,11 +51,24 @@ class Edge
      */
     public Edge(Vertex srcVert, short srcSwPort, Vertex dstVert, 
     		short dstSwPort) 
+    { this(srcVert, srcSwPort, dstVert, dstSwPort, DEFAULT_WEIGHT); }
+    
+    /**
+     * Create a new edge, representing a link.
+     * @param srcVert the vertex (i.e., switch) on one side of the link
+     * @param srcSwPort the switch port on one side of the link
+     * @param dstVert the vertex (i.e., switch) on the other side of the link
+     * @param dstSwPort the siwtch port on the other side of the link
+     * @param weight the cost of sending traffic over the link
+     */
+    public Edge(Vertex srcVert, short srcSwPort, Vertex dstVert, 
+    		short dstSwPort, double weight) 
     { 
     	this.srcVert = srcVert;
     	this.dstVert = dstVert;
     	this.srcSwPort = srcSwPort;
     	this.dstSwPort = dstSwPort;
+    	this.weight = weight;
     }
     
     /**
@@ -70,10 +87,10 @@ class Edge
     
     /**
      * Get the weight assigned to the edge  (i.e., link).
-     * @return 1.0
+     * @return the cost of sending traffic over the link
      */
     public double getWeight()
-    { return 1.0; }
+    { return this.weight; }
     
     /**
      * Get the switch port from which the edge (i.e., link) originates.
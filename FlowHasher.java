@@ -0,0 +1,95 @@
+package edu.wisc.cs.sdn;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Hashes the header fields that identify a flow, so every packet of a flow 
+ * is sent along the same one of several equal-cost paths.
+ */
+public class FlowHasher 
+{
+	/**
+	 * Header fields that can be included in the hash.
+	 */
+	public enum Field
+	{
+		SRC_MAC, DST_MAC, ETHER_TYPE, SRC_IP, DST_IP, IP_PROTOCOL, SRC_PORT,
+		DST_PORT
+	}
+	
+	/** The IP 5-tuple */
+	public static final Set<Field> DEFAULT_FIELDS = EnumSet.of(Field.SRC_IP,
+			Field.DST_IP, Field.IP_PROTOCOL, Field.SRC_PORT, Field.DST_PORT);
+	
+	// Fields included in the hash
+	private final Field[] fields;
+	
+	/**
+	 * Creates a hasher over a set of header fields.
+	 * @param fields the fields to include in the hash
+	 */
+	public FlowHasher(Set<Field> fields)
+	{ this.fields = fields.toArray(new Field[fields.size()]); }
+	
+	/**
+	 * Creates a hasher over the header fields named in a comma-separated list,
+	 * such as "src_ip,dst_ip".
+	 * @param fieldNames the names of the fields to include in the hash
+	 * @return the hasher
+	 */
+	public static FlowHasher parse(String fieldNames)
+	{
+		Set<Field> fields = EnumSet.noneOf(Field.class);
+		for (String name : fieldNames.split(","))
+		{
+			if (name.trim().length() > 0)
+			{ fields.add(Field.valueOf(name.trim().toUpperCase())); }
+		}
+		return new FlowHasher(fields);
+	}
+	
+	/**
+	 * Hashes the fields of a packet's headers.
+	 * @param headers the packet's parsed headers
+	 * @return the hash
+	 */
+	public int hash(PacketInContext headers)
+	{
+		long h = 0;
+		for (Field field : fields)
+		{
+			long value;
+			switch (field)
+			{
+			case SRC_MAC:
+				value = headers.getSrcMac();
+				break;
+			case DST_MAC:
+				value = headers.getDstMac();
+				break;
+			case ETHER_TYPE:
+				value = headers.getEtherType();
+				break;
+			case SRC_IP:
+				value = headers.getSrcIp();
+				break;
+			case DST_IP:
+				value = headers.getDstIp();
+				break;
+			case IP_PROTOCOL:
+				value = headers.getIpProtocol();
+				break;
+			case SRC_PORT:
+				value = headers.getSrcPort();
+				break;
+			default:
+				value = headers.getDstPort();
+				break;
+			}
+			h = (h ^ value) * 0x9E3779B97F4A7C15L;
+			h ^= h >>> 32;
+		}
+		return (int)h;
+	}
+}
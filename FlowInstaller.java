@@ -2,18 +2,25 @@ package edu.wisc.cs.sdn;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.openflow.protocol.OFBarrierRequest;
 import org.openflow.protocol.OFFlowMod;
 import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFPacketIn;
 import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.OFPort;
 import org.openflow.protocol.action.OFAction;
 import org.openflow.protocol.action.OFActionOutput;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.packet.Ethernet;
 
 /**
  * Provides an interface to install rules in flow tables and send packets to 
@@ -21,19 +28,54 @@ import net.floodlightcontroller.core.IOFSwitch;
  */
 public class FlowInstaller 
 {
+	// Marks the rules installed by this module, so they can be told apart 
+	// from other applications' rules when reconciling a switch
+	public static final long COOKIE = 0x0640000000000000L;
+	
 	private static final short HARD_TIMEOUT = 0;
 	private static final short IDLE_TIMEOUT = 20;
 	private static final short PRIORITY = 1000;
 	
+	// Destination rules never time out; they are replaced or deleted as hosts
+	// and links come and go, and yield to per-flow rules
+	private static final short DESTINATION_PRIORITY = 500;
+	
 	// Interface to the logging system
 	private static Logger log = 
 			LoggerFactory.getLogger(PacketHandler.class.getSimpleName());
 	
+	// Copy of the rules installed in each switch; null if not tracked
+	private ShadowFlowTable shadow;
+	
+	// Whether switches are asked to report when they remove a rule
+	private boolean notifyRemoved;
+	
 	/**
-	 * Creates a flow installer object.
+	 * Creates a flow installer object that does not track installed rules.
 	 */
 	public FlowInstaller()
-	{ }
+	{ this(null, false); }
+	
+	/**
+	 * Creates a flow installer object.
+	 * @param shadow copy of the rules installed in each switch, updated with 
+	 * 			every flow-mod sent; null if installed rules are not tracked
+	 * @param notifyRemoved whether switches should report when they remove a
+	 * 			rule; must be true if installed rules are tracked
+	 */
+	public FlowInstaller(ShadowFlowTable shadow, boolean notifyRemoved)
+	{
+		this.shadow = shadow;
+		this.notifyRemoved = notifyRemoved;
+	}
+	
+	/**
+	 * Tells whether the rules sent to switches are tracked in a shadow flow 
+	 * table, so a switch that connects is brought in line with it.
+	 * @return true if installed rules are tracked, otherwise false
+	 */
+	public boolean tracksInstalledRules()
+	{ return (shadow != null); }
 	
 	/**
 	 * Installs a forwarding rule in a switch.
@@ -45,12 +87,94 @@ public class FlowInstaller
 	 */
 	public boolean installRule(IOFSwitch sw, short inSwPort, short outSwPort, 
 			OFMatch matchCriteria)
+	{
+		FlowModBatch batch = new FlowModBatch();
+		this.installRule(batch, sw, inSwPort, outSwPort, matchCriteria);
+		return this.sendBatch(batch, false);
+	}
+	
+	/**
+	 * Adds a forwarding rule to a batch of messages.
+	 * @param batch the batch to which the rule should be added
+	 * @param sw the switch out which the packet should be forwarded
+	 * @param inSwPort the switch port on which the packet should be received
+	 * @param outSwPort the switch port out which the packet should be forwarded
+	 * @param matchCriteria the match criteria describing the flow
+	 */
+	public void installRule(FlowModBatch batch, IOFSwitch sw, short inSwPort, 
+			short outSwPort, OFMatch matchCriteria)
+	{
+		batch.add(sw, this.createRule(inSwPort, outSwPort, matchCriteria));
+	}
+	
+	/**
+	 * Adds a forwarding rule, and the forwarding of the packet that triggered
+	 * it, to a batch of messages. If the switch buffered the packet, the rule
+	 * carries the buffer id, so the switch applies the new rule to the packet
+	 * and no packet-out is needed; otherwise the packet's data is sent in a
+	 * packet-out after the rule.
+	 * @param batch the batch to which the messages should be added
+	 * @param sw the switch out which the packet should be forwarded
+	 * @param inSwPort the switch port on which the packet should be received
+	 * @param outSwPort the switch port out which the packet should be forwarded
+	 * @param matchCriteria the match criteria describing the flow
+	 * @param pktInMsg the packet-in message containing the packet to forward 
+	 */
+	public void installRuleAndForward(FlowModBatch batch, IOFSwitch sw, 
+			short inSwPort, short outSwPort, OFMatch matchCriteria, 
+			OFPacketIn pktInMsg)
+	{
+		OFFlowMod rule = this.createRule(inSwPort, outSwPort, matchCriteria);
+		if (pktInMsg.getBufferId() != OFPacketOut.BUFFER_ID_NONE)
+		{
+			rule.setBufferId(pktInMsg.getBufferId());
+			batch.add(sw, rule);
+		}
+		else
+		{
+			batch.add(sw, rule);
+			this.forwardPacket(batch, sw, outSwPort, pktInMsg);
+		}
+	}
+	
+	/**
+	 * Adds a request to remove a forwarding rule to a batch of messages.
+	 * @param batch the batch to which the request should be added
+	 * @param sw the switch from which to remove the rule
+	 * @param inSwPort the switch port on which the rule's packets are received
+	 * @param matchCriteria the match criteria describing the flow
+	 */
+	public void removeRule(FlowModBatch batch, IOFSwitch sw, short inSwPort, 
+			OFMatch matchCriteria)
+	{
+		OFFlowMod rule = new OFFlowMod();
+		rule.setCommand(OFFlowMod.OFPFC_DELETE_STRICT);
+		rule.setPriority(PRIORITY);
+		rule.setBufferId(OFPacketOut.BUFFER_ID_NONE);
+		rule.setOutPort(OFPort.OFPP_NONE);
+		rule.setCookie(COOKIE);
+		
+		OFMatch match = matchCriteria.clone();
+		match.setInputPort(inSwPort);
+		rule.setMatch(match);
+		rule.setActions(new ArrayList<OFAction>());
+		rule.setLength((short)OFFlowMod.MINIMUM_LENGTH);
+		
+		batch.add(sw, rule);
+	}
+	
+	/**
+	 * Creates a forwarding rule that applies to no buffered packet.
+	 */
+	private OFFlowMod createRule(short inSwPort, short outSwPort, 
+			OFMatch matchCriteria)
 	{
 		OFFlowMod rule = new OFFlowMod();
 		rule.setHardTimeout(HARD_TIMEOUT);
 		rule.setIdleTimeout(IDLE_TIMEOUT);
 		rule.setPriority(PRIORITY);
 		rule.setBufferId(OFPacketOut.BUFFER_ID_NONE);
+		this.setCookie(rule);
 		
 		OFMatch match = matchCriteria.clone();
 		match.setInputPort(inSwPort);
@@ -63,19 +187,81 @@ public class FlowInstaller
 		rule.setLength((short)(OFFlowMod.MINIMUM_LENGTH 
 				+ OFActionOutput.MINIMUM_LENGTH));
 		
-		try 
-		{
-			sw.write(rule, null);
-			sw.flush();
-			log.debug("Installed rule: "+rule);
-		}
-		catch (IOException e) 
-		{
-			log.error("Failed to install rule: "+rule);
-			return false;
-		}
+		return rule;
+	}
+	
+	/**
+	 * Adds a rule that forwards all packets destined for a host, regardless of
+	 * their source or input port, to a batch of messages. Any existing rule 
+	 * for the host is replaced.
+	 * @param batch the batch to which the rule should be added
+	 * @param sw the switch in which to install the rule
+	 * @param dstMac the host's MAC address
+	 * @param outSwPort the switch port out which the packets should be forwarded
+	 */
+	public void installDestinationRule(FlowModBatch batch, IOFSwitch sw, 
+			long dstMac, short outSwPort)
+	{
+		OFFlowMod rule = this.createDestinationRule(dstMac);
+		rule.setCommand(OFFlowMod.OFPFC_ADD);
+		
+		List<OFAction> actions = new ArrayList<OFAction>();
+		actions.add(new OFActionOutput(outSwPort));
+		rule.setActions(actions);
 		
-		return true;
+		rule.setLength((short)(OFFlowMod.MINIMUM_LENGTH 
+				+ OFActionOutput.MINIMUM_LENGTH));
+		
+		batch.add(sw, rule);
+	}
+	
+	/**
+	 * Adds a request to remove the rule for packets destined for a host to a 
+	 * batch of messages.
+	 * @param batch the batch to which the request should be added
+	 * @param sw the switch from which to remove the rule
+	 * @param dstMac the host's MAC address
+	 */
+	public void removeDestinationRule(FlowModBatch batch, IOFSwitch sw, 
+			long dstMac)
+	{
+		OFFlowMod rule = this.createDestinationRule(dstMac);
+		rule.setCommand(OFFlowMod.OFPFC_DELETE_STRICT);
+		rule.setActions(new ArrayList<OFAction>());
+		rule.setLength((short)OFFlowMod.MINIMUM_LENGTH);
+		
+		batch.add(sw, rule);
+	}
+	
+	/**
+	 * Creates a permanent rule that matches only the destination MAC address.
+	 */
+	private OFFlowMod createDestinationRule(long dstMac)
+	{
+		OFFlowMod rule = new OFFlowMod();
+		rule.setHardTimeout((short)0);
+		rule.setIdleTimeout((short)0);
+		rule.setPriority(DESTINATION_PRIORITY);
+		rule.setBufferId(OFPacketOut.BUFFER_ID_NONE);
+		rule.setOutPort(OFPort.OFPP_NONE);
+		this.setCookie(rule);
+		
+		OFMatch match = new OFMatch();
+		match.setWildcards(OFMatch.OFPFW_ALL & ~OFMatch.OFPFW_DL_DST);
+		match.setDataLayerDestination(Ethernet.toByteArray(dstMac));
+		rule.setMatch(match);
+		return rule;
+	}
+	
+	/**
+	 * Marks a rule as installed by this module and, if configured to, asks the
+	 * switch to report when the rule is removed.
+	 */
+	private void setCookie(OFFlowMod rule)
+	{
+		rule.setCookie(COOKIE);
+		if (notifyRemoved)
+		{ rule.setFlags(OFFlowMod.OFPFF_SEND_FLOW_REM); }
 	}
 	
 	/**
@@ -87,20 +273,70 @@ public class FlowInstaller
 	 */
 	public boolean forwardPacket(IOFSwitch sw, short outSwPort, 
 			OFPacketIn pktInMsg) 
+    {
+		FlowModBatch batch = new FlowModBatch();
+		this.forwardPacket(batch, sw, outSwPort, pktInMsg);
+		return this.sendBatch(batch, false);
+	}
+	
+	/**
+	 * Adds a message that forwards a packet out of a switch to a batch of 
+	 * messages.
+	 * @param batch the batch to which the message should be added
+	 * @param sw the switch out which the packet should be forwarded
+	 * @param outSwPort the switch port out which the packet should be forwarded
+	 * @param pktInMsg the packet-in message containing the packet to forward 
+	 */
+	public void forwardPacket(FlowModBatch batch, IOFSwitch sw, short outSwPort,
+			OFPacketIn pktInMsg) 
+    {
+		this.forwardPacket(batch, sw, Collections.singletonList(outSwPort), 
+				pktInMsg);
+	}
+	
+	/**
+	 * Forwards a packet out of several ports of a switch with a single 
+	 * packet-out message, so the packet's data is sent to the switch once.
+	 * @param sw the switch out which the packet should be forwarded
+	 * @param outSwPorts the switch ports out which the packet should be 
+	 * 			forwarded
+	 * @param pktInMsg the packet-in message containing the packet to forward 
+	 * @return true if the packet was sent to the switch, otherwise false
+	 */
+	public boolean forwardPacket(IOFSwitch sw, Collection<Short> outSwPorts,
+			OFPacketIn pktInMsg) 
+    {
+		FlowModBatch batch = new FlowModBatch();
+		this.forwardPacket(batch, sw, outSwPorts, pktInMsg);
+		return this.sendBatch(batch, false);
+	}
+	
+	/**
+	 * Adds a message that forwards a packet out of several ports of a switch 
+	 * to a batch of messages.
+	 * @param batch the batch to which the message should be added
+	 * @param sw the switch out which the packet should be forwarded
+	 * @param outSwPorts the switch ports out which the packet should be 
+	 * 			forwarded
+	 * @param pktInMsg the packet-in message containing the packet to forward 
+	 */
+	public void forwardPacket(FlowModBatch batch, IOFSwitch sw, 
+			Collection<Short> outSwPorts, OFPacketIn pktInMsg) 
     {
 		// Create an OFPacketOut for the packet
         OFPacketOut pktOut = new OFPacketOut();        
         
         // Update the input port and buffer ID
         pktOut.setInPort(pktInMsg.getInPort());
-        //pktOut.setBufferId(pktInMsg.getBufferId());
-        pktOut.setBufferId(OFPacketOut.BUFFER_ID_NONE);
+        pktOut.setBufferId(pktInMsg.getBufferId());
                 
         // Set the actions to apply for this packet
         List<OFAction> actions = new ArrayList<OFAction>();
-        actions.add(new OFActionOutput(outSwPort));
+        for (short outSwPort : outSwPorts)
+        { actions.add(new OFActionOutput(outSwPort)); }
         pktOut.setActions(actions);
-        pktOut.setActionsLength((short)OFActionOutput.MINIMUM_LENGTH);
+        pktOut.setActionsLength(
+        		(short)(OFActionOutput.MINIMUM_LENGTH * actions.size()));
 	        
         // Set data if it is included in the packet in but buffer id is NONE
         if (pktOut.getBufferId() == OFPacketOut.BUFFER_ID_NONE) 
@@ -116,20 +352,114 @@ public class FlowInstaller
                     + pktOut.getActionsLength()));
         }
         
-        // Send the packet to the switch
-        try 
-        {
-            sw.write(pktOut, null);
-            sw.flush();
-            log.debug("Forwarded packet");
-        }
-        catch (IOException e) 
-        {
-        	log.error("Failed to forward packet");
+        batch.add(sw, pktOut);
+	}
+	
+	/**
+	 * Sends a batch of messages. Each switch is sent all of its messages in a
+	 * single write, followed by a single flush.
+	 * @param batch the messages to send
+	 * @param barrier whether to follow each switch's messages with a barrier 
+	 * 			request, so the switch confirms when it has processed them
+	 * @return true if all messages were sent, otherwise false
+	 */
+	public boolean sendBatch(FlowModBatch batch, boolean barrier)
+	{
+		boolean sent = true;
+		for (IOFSwitch sw : batch.getSwitches())
+		{
+			List<OFMessage> msgs = batch.getMessages(sw);
+			if (barrier)
+			{
+				OFBarrierRequest barrierReq = new OFBarrierRequest();
+				barrierReq.setXid(sw.getNextTransactionId());
+				msgs.add(barrierReq);
+			}
+			sent &= this.writeMessages(sw, msgs);
+		}
+		return sent;
+	}
+	
+	/**
+	 * Sends a batch of messages, following each switch's messages with a 
+	 * barrier request, and runs a callback once every switch has confirmed it
+	 * processed its messages. The callback runs right away if the batch is 
+	 * empty.
+	 * @param batch the messages to send
+	 * @param tracker tracker to which the barrier requests are registered
+	 * @param onConfirmed run once every switch has replied to its barrier
+	 * @return true if all messages were sent, otherwise false
+	 */
+	public boolean sendBatch(FlowModBatch batch, BarrierTracker tracker,
+			final Runnable onConfirmed)
+	{
+		if (batch.isEmpty())
+		{
+			onConfirmed.run();
+			return true;
+		}
+		
+		final AtomicInteger remaining = 
+				new AtomicInteger(batch.getSwitches().size());
+		Runnable countDown = new Runnable() {
+			@Override
+			public void run()
+			{
+				if (0 == remaining.decrementAndGet())
+				{ onConfirmed.run(); }
+			}
+		};
+		
+		boolean sent = true;
+		for (IOFSwitch sw : batch.getSwitches())
+		{
+			OFBarrierRequest barrierReq = new OFBarrierRequest();
+			int xid = sw.getNextTransactionId();
+			barrierReq.setXid(xid);
+			List<OFMessage> msgs = batch.getMessages(sw);
+			msgs.add(barrierReq);
+			
+			tracker.expect(sw, xid, countDown);
+			if (!this.writeMessages(sw, msgs))
+			{
+				// No reply will come, so do not wait for one
+				tracker.release(sw, xid);
+				sent = false;
+			}
+		}
+		return sent;
+	}
+	
+	/**
+	 * Writes messages to a switch with a single write and a single flush.
+	 * @return true if the messages were sent, otherwise false
+	 */
+	private boolean writeMessages(IOFSwitch sw, List<OFMessage> msgs)
+	{
+		try 
+		{
+			sw.write(msgs, null);
+			sw.flush();
+			if (shadow != null)
+			{
+				for (OFMessage msg : msgs)
+				{
+					if (msg instanceof OFFlowMod)
+					{ shadow.flowModSent(sw.getId(), (OFFlowMod)msg); }
+				}
+			}
+			if (log.isDebugEnabled())
+			{
+				log.debug(String.format("Sent %d messages to switch %d",
+						msgs.size(), sw.getId()));
+			}
+			return true;
+		}
+		catch (IOException e) 
+		{
+			log.error(String.format("Failed to send %d messages to switch %d",
+					msgs.size(), sw.getId()));
 			return false;
-        }
-        
-        return true;
+		}
 	}
-
 }
@@ -0,0 +1,82 @@
+package edu.wisc.cs.sdn;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openflow.protocol.OFMessage;
+
+import net.floodlightcontroller.core.IOFSwitch;
+
+/**
+ * A set of OpenFlow messages to be sent together, grouped by switch. The 
+ * messages for a switch are sent in the order they were added, and switches 
+ * are sent their messages in the order they were first added. A batch is not
+ * thread-safe; it is meant to be built and sent by a single thread.
+ */
+public class FlowModBatch 
+{
+	// Messages to send, indexed by switch
+	private Map<IOFSwitch,List<OFMessage>> messages;
+	
+	// Total number of messages in the batch
+	private int size;
+	
+	/**
+	 * Creates an empty batch.
+	 */
+	public FlowModBatch()
+	{
+		this.messages = new LinkedHashMap<IOFSwitch,List<OFMessage>>();
+		this.size = 0;
+	}
+	
+	/**
+	 * Adds a message to send to a switch.
+	 * @param sw the switch to send the message to
+	 * @param msg the message
+	 */
+	public void add(IOFSwitch sw, OFMessage msg)
+	{
+		List<OFMessage> switchMessages = messages.get(sw);
+		if (null == switchMessages)
+		{
+			switchMessages = new ArrayList<OFMessage>();
+			messages.put(sw, switchMessages);
+		}
+		switchMessages.add(msg);
+		size++;
+	}
+	
+	/**
+	 * Gets the switches that have messages in the batch.
+	 * @return the switches, in the order they were first added
+	 */
+	public Collection<IOFSwitch> getSwitches()
+	{ return messages.keySet(); }
+	
+	/**
+	 * Gets the messages for a switch.
+	 * @param sw the switch
+	 * @return the messages for the switch, in the order they were added; null
+	 * 			if the batch has no messages for the switch
+	 */
+	public List<OFMessage> getMessages(IOFSwitch sw)
+	{ return messages.get(sw); }
+	
+	/**
+	 * Checks whether the batch is empty.
+	 * @return true if the batch has no messages, otherwise false
+	 */
+	public boolean isEmpty()
+	{ return (0 == size); }
+	
+	/**
+	 * Gets the number of messages in the batch.
+	 * @return the number of messages in the batch
+	 */
+	public int size()
+	{ return size; }
+}
@@ -0,0 +1,243 @@
+package edu.wisc.cs.sdn;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFFlowRemoved;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPort;
+import org.openflow.protocol.OFStatisticsRequest;
+import org.openflow.protocol.OFType;
+import org.openflow.protocol.statistics.OFFlowStatisticsReply;
+import org.openflow.protocol.statistics.OFFlowStatisticsRequest;
+import org.openflow.protocol.statistics.OFStatistics;
+import org.openflow.protocol.statistics.OFStatisticsType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.IOFMessageListener;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.util.SingletonTask;
+
+/**
+ * Keeps the shadow flow table in line with the switches. Rules a switch
+ * reports removed are dropped from the shadow, and when a switch connects,
+ * its flow table is read and only the rules that differ from the shadow are
+ * added, modified, or deleted, rather than relearning every flow through
+ * packet-ins. Rules written while a switch's flow table is being read are 
+ * left out of the comparison, since the switch may report them or not.
+ */
+public class FlowReconciler implements IOFMessageListener, ITopologyListener
+{
+	// Wait this long after a switch connects before reading its flow table,
+	// so a burst of connections results in a single pass
+	private static final long RECONCILE_DELAY_MS = 100;
+
+	// How long to wait for the switches in a pass to report their flow tables
+	private static final long STATS_TIMEOUT_MS = 5000;
+
+	// Interface to the logging system
+	private static Logger log =
+			LoggerFactory.getLogger(FlowReconciler.class.getSimpleName());
+
+	// Interface for obtaining network topology information
+	private NetworkTopology netTopo;
+
+	// Copy of the rules installed in each switch
+	private ShadowFlowTable shadow;
+
+	// Interface to install flow rules
+	private FlowInstaller flowInstaller;
+
+	// Reconciles switches that connected
+	private SingletonTask reconcileTask;
+
+	// Switches that connected or disconnected since the last pass, as vertex
+	// ids; guarded by this object
+	private Set<Integer> changedSwitches;
+
+	// Number of flow-mods sent to bring switches in line with the shadow
+	private AtomicLong reconciledRules;
+
+	/**
+	 * Creates a reconciler.
+	 * @param netTopo interface to access network topology information
+	 * @param shadow copy of the rules installed in each switch
+	 * @param flowInstaller interface to install flow table rules, which must
+	 * 			update the shadow with every flow-mod it sends
+	 * @param ses executor on which to reconcile switches
+	 */
+	public FlowReconciler(NetworkTopology netTopo, ShadowFlowTable shadow,
+			FlowInstaller flowInstaller, ScheduledExecutorService ses)
+	{
+		this.netTopo = netTopo;
+		this.shadow = shadow;
+		this.flowInstaller = flowInstaller;
+		this.changedSwitches = new HashSet<Integer>();
+		this.reconciledRules = new AtomicLong();
+		this.reconcileTask = new SingletonTask(ses, new Runnable() {
+			@Override
+			public void run()
+			{ reconcileChanges(); }
+		});
+	}
+
+	/**
+	 * Get the number of flow-mods sent to bring switches in line with the
+	 * shadow flow table.
+	 * @return the number of flow-mods sent
+	 */
+	public long getReconciledRules()
+	{ return this.reconciledRules.get(); }
+
+	/**
+	 * Provides an identifier for our OFMessage listener.
+	 */
+	@Override
+	public String getName()
+	{ return FlowReconciler.class.getSimpleName(); }
+
+	@Override
+	public boolean isCallbackOrderingPrereq(OFType type, String name)
+	{ return false; }
+
+	@Override
+	public boolean isCallbackOrderingPostreq(OFType type, String name)
+	{ return false; }
+
+	/**
+	 * Drops a rule the switch reports it removed from the shadow.
+	 */
+	@Override
+	public Command receive(IOFSwitch sw, OFMessage msg,
+			FloodlightContext cntx)
+	{
+		if (msg instanceof OFFlowRemoved)
+		{ shadow.flowRemoved(sw.getId(), (OFFlowRemoved)msg); }
+		return Command.CONTINUE;
+	}
+
+	/**
+	 * Link changes are handled by the modules that choose paths.
+	 */
+	@Override
+	public void linkWeightChanged(int srcId, int dstId, double oldWeight,
+			double newWeight, long version)
+	{ }
+
+	/**
+	 * Schedules a pass over a switch that connected. The shadow keeps the
+	 * rules of a switch that disconnects, so they can be compared with what
+	 * the switch still has when it comes back.
+	 */
+	@Override
+	public void switchChanged(int id, long version)
+	{
+		synchronized (this)
+		{ changedSwitches.add(id); }
+		reconcileTask.reschedule(RECONCILE_DELAY_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Reads the flow table of each switch that connected and sends the
+	 * flow-mods that bring it in line with the shadow.
+	 */
+	private void reconcileChanges()
+	{
+		Set<Integer> switches;
+		synchronized (this)
+		{
+			switches = changedSwitches;
+			changedSwitches = new HashSet<Integer>();
+		}
+
+		// Send all requests before waiting for any replies
+		TopologyGraph graph = netTopo.getGraph();
+		Map<IOFSwitch,Future<List<OFStatistics>>> replies =
+				new HashMap<IOFSwitch,Future<List<OFStatistics>>>();
+		for (int id : switches)
+		{
+			Vertex v = graph.getVertexById(id);
+			if (null == v)
+			{ continue; }
+			IOFSwitch sw = v.getSwitch();
+			OFStatisticsRequest req = new OFStatisticsRequest();
+			req.setStatisticType(OFStatisticsType.FLOW);
+			OFFlowStatisticsRequest flowReq = new OFFlowStatisticsRequest();
+			OFMatch match = new OFMatch();
+			match.setWildcards(OFMatch.OFPFW_ALL);
+			flowReq.setMatch(match);
+			flowReq.setOutPort(OFPort.OFPP_NONE.getValue());
+			flowReq.setTableId((byte)0xff);
+			req.setStatistics(Collections.singletonList(flowReq));
+			req.setLengthU(OFStatisticsRequest.MINIMUM_LENGTH
+					+ flowReq.getLength());
+			shadow.markReconcile(sw.getId());
+			try
+			{ replies.put(sw, sw.getStatistics(req)); }
+			catch (IOException e)
+			{
+				log.error(String.format(
+						"Failed to request flow statistics from switch %d",
+						sw.getId()));
+			}
+		}
+
+		// Wait for all replies until one deadline, so switches that do not
+		// answer hold up the pass for no longer than that in total, and send
+		// each switch only the rules that differ, in a single batch
+		long deadline = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(STATS_TIMEOUT_MS);
+		FlowModBatch batch = new FlowModBatch();
+		for (Map.Entry<IOFSwitch,Future<List<OFStatistics>>> entry
+				: replies.entrySet())
+		{
+			IOFSwitch sw = entry.getKey();
+			List<OFStatistics> stats;
+			try
+			{
+				stats = entry.getValue().get(
+						Math.max(0, deadline - System.nanoTime()),
+						TimeUnit.NANOSECONDS);
+			}
+			catch (Exception e)
+			{
+				entry.getValue().cancel(false);
+				log.warn(String.format(
+						"No flow statistics from switch %d", sw.getId()));
+				continue;
+			}
+
+			List<OFFlowStatisticsReply> actual =
+					new ArrayList<OFFlowStatisticsReply>();
+			for (OFStatistics stat : stats)
+			{ actual.add((OFFlowStatisticsReply)stat); }
+			List<OFFlowMod> delta = shadow.reconcile(sw.getId(), actual,
+					FlowInstaller.COOKIE);
+			for (OFFlowMod flowMod : delta)
+			{ batch.add(sw, flowMod); }
+			log.info(String.format(
+					"Switch %d has %d rules; sending %d flow-mods to match the "
+					+ "%d rules in the shadow", sw.getId(), actual.size(),
+					delta.size(), shadow.getRuleCount(sw.getId())));
+		}
+		if (batch.isEmpty())
+		{ return; }
+
+		flowInstaller.sendBatch(batch, false);
+		reconciledRules.addAndGet(batch.size());
+	}
+}
@@ -0,0 +1,184 @@
+package edu.wisc.cs.sdn;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openflow.protocol.OFFlowRemoved;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.IOFMessageListener;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.util.SingletonTask;
+
+/**
+ * Moves the flows routed over a link that fails onto new paths as soon as the
+ * failure is seen, rather than leaving their rules pointing at the failed link
+ * until they time out. Only the flows the link flow index lists for the link
+ * are touched, so other flows keep their rules and send no packet-ins. Flows
+ * whose rules time out are dropped from the index.
+ */
+public class FlowRerouter implements IOFMessageListener, ITopologyListener
+{
+	// How long to wait before checking again whether the graph that includes
+	// a failure has become visible
+	private static final long RETRY_DELAY_MS = 1;
+
+	// Interface to the logging system
+	private static Logger log =
+			LoggerFactory.getLogger(FlowRerouter.class.getSimpleName());
+
+	// Interface for obtaining network topology information
+	private NetworkTopology netTopo;
+
+	// Paths of installed flows, indexed by the links they cross
+	private LinkFlowIndex linkFlowIndex;
+
+	// Handler that installed the flows, and installs their new paths
+	private PacketHandler pktHandler;
+
+	// Moves the flows off links that failed
+	private SingletonTask rerouteTask;
+
+	// Links that failed since the last pass, as link keys; guarded by this
+	// object
+	private List<Long> failedLinks;
+
+	// Version of the graph that includes the latest failure; guarded by this
+	// object
+	private long failedVersion;
+
+	// Number of flows moved to a new path
+	private AtomicLong reroutedFlows;
+
+	/**
+	 * Creates a rerouter.
+	 * @param netTopo interface to access network topology information
+	 * @param linkFlowIndex paths of installed flows, indexed by the links they
+	 * 			cross
+	 * @param pktHandler handler that records installed flows in the index
+	 * @param ses executor on which to move flows
+	 */
+	public FlowRerouter(NetworkTopology netTopo, LinkFlowIndex linkFlowIndex,
+			PacketHandler pktHandler, ScheduledExecutorService ses)
+	{
+		this.netTopo = netTopo;
+		this.linkFlowIndex = linkFlowIndex;
+		this.pktHandler = pktHandler;
+		this.failedLinks = new ArrayList<Long>();
+		this.reroutedFlows = new AtomicLong();
+		this.rerouteTask = new SingletonTask(ses, new Runnable() {
+			@Override
+			public void run()
+			{ rerouteFailedLinks(); }
+		});
+	}
+
+	/**
+	 * Get the number of flows moved to a new path after a link failed.
+	 * @return the number of flows moved
+	 */
+	public long getReroutedFlows()
+	{ return this.reroutedFlows.get(); }
+
+	/**
+	 * Provides an identifier for our OFMessage listener.
+	 */
+	@Override
+	public String getName()
+	{ return FlowRerouter.class.getSimpleName(); }
+
+	@Override
+	public boolean isCallbackOrderingPrereq(OFType type, String name)
+	{ return false; }
+
+	@Override
+	public boolean isCallbackOrderingPostreq(OFType type, String name)
+	{ return false; }
+
+	/**
+	 * Drops a flow from the index when one of its rules times out. Rules
+	 * deleted by request are ignored, since they are deleted when a flow
+	 * moves to a new path.
+	 */
+	@Override
+	public Command receive(IOFSwitch sw, OFMessage msg,
+			FloodlightContext cntx)
+	{
+		if (!(msg instanceof OFFlowRemoved))
+		{ return Command.CONTINUE; }
+		OFFlowRemoved removed = (OFFlowRemoved)msg;
+		if (removed.getCookie() == FlowInstaller.COOKIE
+				&& removed.getReason()
+						!= OFFlowRemoved.OFFlowRemovedReason.OFPRR_DELETE)
+		{ linkFlowIndex.remove(removed.getMatch()); }
+		return Command.CONTINUE;
+	}
+
+	/**
+	 * Schedules an immediate pass to move the flows off a link that was
+	 * removed.
+	 */
+	@Override
+	public void linkWeightChanged(int srcId, int dstId, double oldWeight,
+			double newWeight, long version)
+	{
+		if (!Double.isInfinite(newWeight) || Double.isInfinite(oldWeight))
+		{ return; }
+		synchronized (this)
+		{
+			failedLinks.add(IncrementalShortestPaths.linkKey(srcId, dstId));
+			failedVersion = Math.max(failedVersion, version);
+		}
+		rerouteTask.reschedule(0, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * The links of a switch that is removed are reported removed first.
+	 */
+	@Override
+	public void switchChanged(int id, long version)
+	{ }
+
+	/**
+	 * Moves the flows routed over each link that failed onto new paths, once
+	 * the graph without the links is visible.
+	 */
+	private void rerouteFailedLinks()
+	{
+		List<Long> links;
+		long version;
+		synchronized (this)
+		{
+			links = failedLinks;
+			version = failedVersion;
+			failedLinks = new ArrayList<Long>();
+		}
+
+		// Notifications arrive before the new graph is visible; the graph is
+		// fetched without holding this object's lock, since notifications are
+		// delivered while the topology's lock is held
+		if (netTopo.getGraph().getVersion() < version)
+		{
+			synchronized (this)
+			{ failedLinks.addAll(0, links); }
+			rerouteTask.reschedule(RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
+			return;
+		}
+
+		List<LinkFlowIndex.IndexedFlow> flows = linkFlowIndex.takeFlows(links);
+		if (flows.isEmpty())
+		{ return; }
+		int rerouted = pktHandler.rerouteFlows(flows);
+		reroutedFlows.addAndGet(rerouted);
+		log.info(String.format(
+				"%d links failed; moved %d of the %d flows routed over them",
+				links.size(), rerouted, flows.size()));
+	}
+}
@@ -0,0 +1,21 @@
+package edu.wisc.cs.sdn;
+
+/**
+ * Receives notifications about changes to the host index maintained by
+ * {@link NetworkTopology}.
+ */
+public interface IHostListener 
+{
+	/**
+	 * Called when a host is discovered, moves, or ages out. Locations are in 
+	 * the packed form returned by {@link NetworkTopology#getHostLocation(long)}.
+	 * @param mac the host's MAC address
+	 * @param oldLocation the host's previous location; 
+	 * 			{@link NetworkTopology#HOST_UNKNOWN} if the host was just 
+	 * 			discovered
+	 * @param newLocation the host's new location; 
+	 * 			{@link NetworkTopology#HOST_UNKNOWN} if the host aged out
+	 */
+	public void hostLocationChanged(long mac, long oldLocation, 
+			long newLocation);
+}
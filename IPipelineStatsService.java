@@ -0,0 +1,47 @@
+package edu.wisc.cs.sdn;
+
+import net.floodlightcontroller.core.module.IFloodlightService;
+
+/**
+ * Service through which other modules read the latency of each stage of
+ * handling a packet-in, counts of what the packet-in handler did, and the
+ * counters kept by the parts of the routing module that are enabled.
+ */
+public interface IPipelineStatsService extends IFloodlightService
+{
+	/**
+	 * Gets the statistics recorded by the packet-in handler.
+	 * @return the statistics; null if the routing module is not configured to
+	 * 			record them
+	 */
+	public PipelineStats getPipelineStats();
+	
+	/**
+	 * Gets the cache of shortest path trees, whose counters tell how often
+	 * lookups were served from it.
+	 * @return the cache
+	 */
+	public PathCache getPathCache();
+	
+	/**
+	 * Gets the table of flows whose rules are being installed, whose counters
+	 * tell how many packet-ins were coalesced onto a flow already routed.
+	 * @return the table, or null if in-flight flows are not coalesced
+	 */
+	public InFlightFlowTable getInFlightFlows();
+	
+	/**
+	 * Gets the counts of flows routed over each link, which tell how evenly
+	 * flows are spread across equal-cost paths.
+	 * @return the counts, or null if flows are not spread across equal-cost
+	 * 			paths
+	 */
+	public LinkFlowCounter getLinkFlowCounter();
+	
+	/**
+	 * Gets the rerouter that moves flows off failed links, whose counter 
+	 * tells how many flows were moved.
+	 * @return the rerouter, or null if flows are not rerouted
+	 */
+	public FlowRerouter getFlowRerouter();
+}
@@ -0,0 +1,30 @@
+package edu.wisc.cs.sdn;
+
+/**
+ * Receives notifications about changes to the topology graph maintained by
+ * {@link NetworkTopology}. Notifications are delivered while the graph is 
+ * being updated, before the new version of the graph becomes visible.
+ */
+public interface ITopologyListener 
+{
+	/**
+	 * Called when the weight of a link changes. A link that was added has an
+	 * old weight of infinity, and a link that was removed has a new weight of
+	 * infinity.
+	 * @param srcId the id of the vertex from which the link originates
+	 * @param dstId the id of the vertex the link reaches
+	 * @param oldWeight the weight of the link before the change
+	 * @param newWeight the weight of the link after the change
+	 * @param version the version of the graph that includes the change
+	 */
+	public void linkWeightChanged(int srcId, int dstId, double oldWeight, 
+			double newWeight, long version);
+	
+	/**
+	 * Called when a switch is added to or removed from the graph. Links to and
+	 * from a removed switch are reported as removed before the switch is.
+	 * @param id the id of the vertex for the switch
+	 * @param version the version of the graph that includes the change
+	 */
+	public void switchChanged(int id, long version);
+}
@@ -0,0 +1,168 @@
+package edu.wisc.cs.sdn;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openflow.protocol.OFMatch;
+
+/**
+ * Remembers the path chosen for each flow whose rules were recently sent, so
+ * packet-ins that arrive for the flow before its rules land can be forwarded
+ * along that path without computing it again. Entries expire after a short 
+ * time to live, by which point the flow's rules should be in place.
+ */
+public class InFlightFlowTable 
+{
+	public static final long DEFAULT_TTL_MS = 1000;
+	
+	// Number of flows recorded between sweeps for expired entries
+	private static final int PURGE_INTERVAL = 1024;
+	
+	// Flows being set up, indexed by their match without the input port
+	private Map<OFMatch,Entry> flows;
+	
+	// How long a flow stays in the table, in nanoseconds
+	private long ttlNanos;
+	
+	// Number of flows recorded since the last sweep for expired entries
+	private AtomicLong sinceLastPurge;
+	
+	// Counters for flows recorded and packet-ins forwarded along a known path
+	private AtomicLong recorded;
+	private AtomicLong coalesced;
+	
+	/**
+	 * A flow being set up.
+	 */
+	private static class Entry
+	{
+		// Port out which each switch on the path forwards the flow, indexed 
+		// by DPID
+		final Map<Long,Short> outPorts;
+		
+		// When the entry expires, from System.nanoTime()
+		final long expiresNanos;
+		
+		Entry(Map<Long,Short> outPorts, long expiresNanos)
+		{
+			this.outPorts = outPorts;
+			this.expiresNanos = expiresNanos;
+		}
+	}
+	
+	/**
+	 * Creates an empty table.
+	 * @param ttlMs how long a flow stays in the table, in milliseconds
+	 */
+	public InFlightFlowTable(long ttlMs)
+	{
+		this.flows = new ConcurrentHashMap<OFMatch,Entry>();
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+		this.sinceLastPurge = new AtomicLong();
+		this.recorded = new AtomicLong();
+		this.coalesced = new AtomicLong();
+	}
+	
+	/**
+	 * Records the path chosen for a flow.
+	 * @param match the match describing the flow
+	 * @param outPorts port out which each switch on the path forwards the 
+	 * 			flow, indexed by DPID
+	 */
+	public void record(OFMatch match, Map<Long,Short> outPorts)
+	{
+		long now = System.nanoTime();
+		flows.put(getKey(match), new Entry(outPorts, now + ttlNanos));
+		recorded.incrementAndGet();
+		
+		if (sinceLastPurge.incrementAndGet() >= PURGE_INTERVAL)
+		{
+			sinceLastPurge.set(0);
+			this.purgeExpired(now);
+		}
+	}
+	
+	/**
+	 * Gets the port out which a switch should forward a packet of a flow 
+	 * being set up. A successful lookup counts as a coalesced packet-in.
+	 * @param match the match describing the flow
+	 * @param dpid the switch that received the packet
+	 * @return the port out which to forward the packet; null if the flow is 
+	 * 			not being set up or the switch is not on its path
+	 */
+	public Short getOutPort(OFMatch match, long dpid)
+	{
+		OFMatch key = getKey(match);
+		Entry entry = flows.get(key);
+		if (null == entry)
+		{ return null; }
+		if (System.nanoTime() - entry.expiresNanos >= 0)
+		{
+			flows.remove(key);
+			return null;
+		}
+		
+		Short outPort = entry.outPorts.get(dpid);
+		if (outPort != null)
+		{ coalesced.incrementAndGet(); }
+		return outPort;
+	}
+	
+	/**
+	 * Removes all expired entries.
+	 */
+	private void purgeExpired(long now)
+	{
+		Iterator<Entry> iter = flows.values().iterator();
+		while (iter.hasNext())
+		{
+			if (now - iter.next().expiresNanos >= 0)
+			{ iter.remove(); }
+		}
+	}
+	
+	/**
+	 * Gets the key for a flow, which ignores the port on which the packet was
+	 * received, so packet-ins from every switch on the path share an entry.
+	 */
+	private static OFMatch getKey(OFMatch match)
+	{
+		OFMatch key = match.clone();
+		key.setInputPort((short)0);
+		return key;
+	}
+	
+	/**
+	 * Get the number of flows recorded.
+	 */
+	public long getRecorded()
+	{ return recorded.get(); }
+	
+	/**
+	 * Get the number of packet-ins forwarded along the path already chosen 
+	 * for their flow.
+	 */
+	public long getCoalesced()
+	{ return coalesced.get(); }
+	
+	/**
+	 * Get the number of flows in the table, including expired ones not yet
+	 * removed.
+	 */
+	public int size()
+	{ return flows.size(); }
+	
+	/**
+	 * Summarizes how many flows were recorded and how many packet-ins were
+	 * coalesced onto them.
+	 * @return the summary
+	 */
+	public String getSummary()
+	{
+		return String.format("%d flows, %d recorded, %d packet-ins coalesced",
+				flows.size(), recorded.get(), coalesced.get());
+	}
+}
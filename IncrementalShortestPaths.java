@@ -0,0 +1,200 @@
+package edu.wisc.cs.sdn;
+
+import java.util.Collection;
+
+/**
+ * Updates a shortest path tree after some links are added, removed, or change
+ * weight, in the style of Ramalingam and Reps: only the vertices whose paths
+ * could have changed are visited, rather than computing the tree again from
+ * scratch.
+ * <p>
+ * The update runs in two steps. First, every vertex whose path runs through a
+ * changed link, i.e., the subtree below the link, loses its distance; all
+ * other vertices keep a path that is still in the graph at no greater cost.
+ * Second, the vertices in those subtrees are seeded from their unaffected
+ * neighbors, the far ends of changed links are seeded from the near ends,
+ * and Dijkstra's algorithm runs from the seeds until no distance improves.
+ * If the tree lists equal-cost predecessors, they are then recounted only 
+ * for vertices whose distance or incoming links changed, and for their 
+ * neighbors.
+ */
+class IncrementalShortestPaths
+{
+    /**
+     * Get the key identifying a directed link between two vertices.
+     * @param srcId the id of the vertex from which the link originates
+     * @param dstId the id of the vertex the link reaches
+     * @return the key for the link
+     */
+    public static long linkKey(int srcId, int dstId)
+    { return ((long)srcId << 32) | (dstId & 0xffffffffL); }
+
+    /**
+     * Get the id of the vertex from which a link originates.
+     * @param linkKey the key for the link
+     * @return the id of the vertex from which the link originates
+     */
+    public static int getSrcId(long linkKey)
+    { return (int)(linkKey >>> 32); }
+
+    /**
+     * Get the id of the vertex a link reaches.
+     * @param linkKey the key for the link
+     * @return the id of the vertex the link reaches
+     */
+    public static int getDstId(long linkKey)
+    { return (int)linkKey; }
+
+    /**
+     * Update a shortest path tree to reflect changes to some links. The
+     * original tree is not modified.
+     * @param graph the graph after the changes; the source vertex of the tree
+     * 			must still be in the graph
+     * @param tree the shortest paths before the changes
+     * @param changedLinks keys for all links that were added, removed, or
+     * 			changed weight since the tree was computed
+     * @return the shortest paths in the graph, with equal-cost predecessors
+     * 			if the original tree has them
+     */
+    public static ShortestPathTree updateShortestPaths(TopologyGraph graph,
+            ShortestPathTree tree, Collection<Long> changedLinks)
+    {
+        int vertexCount = Math.max(graph.getVertexCount(),
+                tree.getVertexCount());
+        double[] distance = tree.copyDistances(vertexCount);
+        int[] previous = tree.copyPrevious(vertexCount);
+
+        // Find the subtrees below changed links; every other vertex keeps a
+        // path that still exists and has not become more expensive
+        boolean[] affected = new boolean[vertexCount];
+        int[] affectedIds = new int[vertexCount];
+        int affectedCount = 0;
+        for (long key : changedLinks)
+        {
+            int dst = getDstId(key);
+            if (dst < vertexCount && previous[dst] == getSrcId(key)
+                    && !affected[dst])
+            {
+                affected[dst] = true;
+                affectedIds[affectedCount++] = dst;
+            }
+        }
+        for (int i = 0; i < affectedCount; i++)
+        {
+            Vertex vertex = graph.getVertexById(affectedIds[i]);
+            if (null == vertex)
+            { continue; }
+            for (Edge e : vertex.getAdjacencies())
+            {
+                int child = e.getDstVertex().getId();
+                if (!affected[child] && previous[child] == affectedIds[i])
+                {
+                    affected[child] = true;
+                    affectedIds[affectedCount++] = child;
+                }
+            }
+        }
+        for (int i = 0; i < affectedCount; i++)
+        {
+            distance[affectedIds[i]] = Double.POSITIVE_INFINITY;
+            previous[affectedIds[i]] = -1;
+        }
+
+        // Seed the affected vertices from their unaffected neighbors, and the
+        // far end of each changed link from its near end
+        IndexedMinHeap vertexQueue = new IndexedMinHeap(vertexCount);
+        for (int i = 0; i < affectedCount; i++)
+        {
+            Vertex vertex = graph.getVertexById(affectedIds[i]);
+            if (null == vertex)
+            { continue; }
+            for (Edge in : vertex.getIncoming())
+            { relax(in, distance, previous, vertexQueue); }
+        }
+        for (long key : changedLinks)
+        {
+            Vertex src = graph.getVertexById(getSrcId(key));
+            Vertex dst = graph.getVertexById(getDstId(key));
+            Edge e = (null == src || null == dst ? null
+                    : src.getEdgeToNeighbor(dst));
+            if (e != null)
+            { relax(e, distance, previous, vertexQueue); }
+        }
+
+        // Propagate improvements until no distance changes
+        while (!vertexQueue.isEmpty())
+        {
+            int u = vertexQueue.poll();
+            for (Edge e : graph.getVertexById(u).getAdjacencies())
+            { relax(e, distance, previous, vertexQueue); }
+        }
+        if (!tree.hasEqualCost())
+        { return new ShortestPathTree(tree.getSourceId(), distance, previous); }
+
+        // Recount the equal-cost predecessors of vertices whose distance or
+        // incoming links changed, and of the neighbors of vertices whose
+        // distance changed; all others are copied from the original tree
+        boolean[] recount = new boolean[vertexCount];
+        for (int v = 0; v < vertexCount; v++)
+        {
+            if (!affected[v] && distance[v] == tree.getDistance(v))
+            { continue; }
+            recount[v] = true;
+            Vertex vertex = graph.getVertexById(v);
+            if (null == vertex)
+            { continue; }
+            for (Edge e : vertex.getAdjacencies())
+            { recount[e.getDstVertex().getId()] = true; }
+        }
+        for (long key : changedLinks)
+        {
+            int dst = getDstId(key);
+            if (dst < vertexCount)
+            { recount[dst] = true; }
+        }
+
+        int[] equalCostStart = new int[vertexCount + 1];
+        int tight = 0;
+        for (int v = 0; v < vertexCount; v++)
+        {
+            equalCostStart[v] = tight;
+            tight += (recount[v]
+                    ? Dijkstra.countEqualCost(graph, distance, previous, v,
+                            null, 0)
+                    : tree.getPredecessorCount(v));
+        }
+        equalCostStart[vertexCount] = tight;
+        int[] equalCost = new int[tight];
+        for (int v = 0; v < vertexCount; v++)
+        {
+            if (recount[v])
+            {
+                Dijkstra.countEqualCost(graph, distance, previous, v,
+                        equalCost, equalCostStart[v]);
+                continue;
+            }
+            for (int i = equalCostStart[v]; i < equalCostStart[v + 1]; i++)
+            { equalCost[i] = tree.getPredecessorId(v, i - equalCostStart[v]); }
+        }
+
+        return new ShortestPathTree(tree.getSourceId(), distance, previous,
+                equalCostStart, equalCost);
+    }
+
+    /**
+     * Lower the distance to the vertex a link reaches if the link offers a
+     * shorter path.
+     */
+    private static void relax(Edge e, double[] distance, int[] previous,
+            IndexedMinHeap vertexQueue)
+    {
+        int u = e.getSrcVertex().getId();
+        int v = e.getDstVertex().getId();
+        double distanceThroughU = distance[u] + e.getWeight();
+        if (distanceThroughU < distance[v]) {
+            distance[v] = distanceThroughU;
+            previous[v] = u;
+            vertexQueue.insertOrDecrease(v, distanceThroughU);
+        }
+    }
+}
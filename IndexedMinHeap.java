@@ -0,0 +1,131 @@
+package edu.wisc.cs.sdn;
+
+import java.util.Arrays;
+
+/**
+ * A binary min-heap of integer ids (e.g., vertex ids) ordered by a double key,
+ * which supports changing the key of an id that is already in the heap.
+ */
+class IndexedMinHeap
+{
+    // Ids in heap order
+    private final int[] heap;
+    
+    // Position of each id in the heap; -1 if the id is not in the heap
+    private final int[] position;
+    
+    // Key of each id
+    private final double[] keys;
+    
+    // Number of ids in the heap
+    private int size;
+    
+    /**
+     * Create an empty heap.
+     * @param capacity one more than the largest id that will be stored
+     */
+    public IndexedMinHeap(int capacity)
+    {
+        this.heap = new int[capacity];
+        this.position = new int[capacity];
+        this.keys = new double[capacity];
+        Arrays.fill(this.position, -1);
+        this.size = 0;
+    }
+    
+    /**
+     * Check whether the heap is empty.
+     * @return true if the heap holds no ids, otherwise false
+     */
+    public boolean isEmpty()
+    { return (0 == size); }
+    
+    /**
+     * Check whether an id is in the heap.
+     * @param id the id to check
+     * @return true if the id is in the heap, otherwise false
+     */
+    public boolean contains(int id)
+    { return (position[id] >= 0); }
+    
+    /**
+     * Add an id to the heap, or lower its key if it is already in the heap.
+     * Nothing happens if the id is in the heap with a smaller key.
+     * @param id the id to add
+     * @param key the key of the id
+     */
+    public void insertOrDecrease(int id, double key)
+    {
+        if (position[id] < 0)
+        {
+            heap[size] = id;
+            position[id] = size;
+            keys[id] = key;
+            size++;
+            siftUp(size - 1);
+        }
+        else if (key < keys[id])
+        {
+            keys[id] = key;
+            siftUp(position[id]);
+        }
+    }
+    
+    /**
+     * Remove the id with the smallest key.
+     * @return the id with the smallest key
+     */
+    public int poll()
+    {
+        int min = heap[0];
+        size--;
+        position[min] = -1;
+        if (size > 0)
+        {
+            heap[0] = heap[size];
+            position[heap[0]] = 0;
+            siftDown(0);
+        }
+        return min;
+    }
+    
+    private void siftUp(int pos)
+    {
+        int id = heap[pos];
+        double key = keys[id];
+        while (pos > 0)
+        {
+            int parent = (pos - 1) >>> 1;
+            int parentId = heap[parent];
+            if (keys[parentId] <= key)
+            { break; }
+            heap[pos] = parentId;
+            position[parentId] = pos;
+            pos = parent;
+        }
+        heap[pos] = id;
+        position[id] = pos;
+    }
+    
+    private void siftDown(int pos)
+    {
+        int id = heap[pos];
+        double key = keys[id];
+        int half = size >>> 1;
+        while (pos < half)
+        {
+            int child = 2 * pos + 1;
+            int right = child + 1;
+            if (right < size && keys[heap[right]] < keys[heap[child]])
+            { child = right; }
+            int childId = heap[child];
+            if (key <= keys[childId])
+            { break; }
+            heap[pos] = childId;
+            position[childId] = pos;
+            pos = child;
+        }
+        heap[pos] = id;
+        position[id] = pos;
+    }
+}
@@ -2,13 +2,13 @@ package edu.wisc.cs.sdn;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.openflow.protocol.OFMatch;
 import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFPacketIn;
-import org.openflow.protocol.OFPhysicalPort;
 import org.openflow.protocol.OFPort;
 import org.openflow.protocol.OFType;
 import org.slf4j.Logger;
@@ -18,20 +18,53 @@ import net.floodlightcontroller.core.FloodlightContext;
 import net.floodlightcontroller.core.IFloodlightProviderService;
 import net.floodlightcontroller.core.IOFMessageListener;
 import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.IOFSwitchListener;
 import net.floodlightcontroller.core.module.FloodlightModuleContext;
 import net.floodlightcontroller.core.module.FloodlightModuleException;
 import net.floodlightcontroller.core.module.IFloodlightModule;
 import net.floodlightcontroller.core.module.IFloodlightService;
-import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.devicemanager.IDeviceService;
+import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryService;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
 
 /**
  * Module to perform shortest path routing in a network
  */
-public class L2Forward implements IFloodlightModule, IOFMessageListener
+public class L2Forward implements IFloodlightModule, IOFMessageListener,
+		IOFSwitchListener
 {
+	/**
+	 * How packets for unknown destinations are flooded.
+	 */
+	public enum FloodMode
+	{
+		/** Send one packet-out to OFPP_FLOOD; only safe without loops */
+		FLOOD,
+		/** Send one packet-out listing the ports on a spanning tree */
+		SPANNING_TREE
+	}
+	
 	// Interface to Floodlight core for interacting with connected switches
 	private IFloodlightProviderService floodlightProv;
 	
+	// Interface to link discovery service
+	private ILinkDiscoveryService linkDiscProv;
+	
+	// Interface to device manager service
+	private IDeviceService deviceProv;
+	
+	// Interface to thread pool service
+	private IThreadPoolService threadPool;
+	
+	// Interface for obtaining network topology information
+	private NetworkTopology netTopo;
+	
+	// How packets for unknown destinations are flooded
+	private FloodMode floodMode;
+	
+	// Spanning tree of the most recent topology, used for flooding
+	private volatile SpanningTree spanningTree;
+	
 	// Interface to the logging system
 		private static Logger log = 
 				LoggerFactory.getLogger(L2Forward.class.getSimpleName());
@@ -39,8 +72,11 @@ public class L2Forward implements IFloodlightModule, IOFMessageListener
 	// Interface to install flow rules
 	private FlowInstaller flowInstaller;
 	
-	// Map of learned hosts
-	private Map<Long, Short> learnedHosts;
+	// Port on which each host was last seen, for each switch
+	private MacLearningTable learnedHosts;
+	
+	// How long a host is remembered without being seen, in milliseconds
+	private long agingMs;
 
     /**
      * Tell the module system which services we provide.
@@ -71,6 +107,9 @@ public class L2Forward implements IFloodlightModule, IOFMessageListener
 		Collection<Class<? extends IFloodlightService >> floodlightService = 
 			new ArrayList<Class<? extends IFloodlightService>>();
 		floodlightService.add(IFloodlightProviderService.class);
+		floodlightService.add(ILinkDiscoveryService.class);
+		floodlightService.add(IDeviceService.class);
+		floodlightService.add(IThreadPoolService.class);
 		return floodlightService;
 	}
 
@@ -83,18 +122,82 @@ public class L2Forward implements IFloodlightModule, IOFMessageListener
 			throws FloodlightModuleException 
     {
 		floodlightProv=context.getServiceImpl(IFloodlightProviderService.class);
+		linkDiscProv = context.getServiceImpl(ILinkDiscoveryService.class);
+		deviceProv = context.getServiceImpl(IDeviceService.class);
+		threadPool = context.getServiceImpl(IThreadPoolService.class);
+		netTopo = new NetworkTopology(floodlightProv, linkDiscProv, deviceProv);
 		flowInstaller = new FlowInstaller();
-		learnedHosts = new HashMap<Long, Short>();
+		
+		// Remember hosts for as long as configured, or 5 minutes by default
+		Map<String,String> config = context.getConfigParams(this);
+		agingMs = MacLearningTable.DEFAULT_AGING_MS;
+		if (config != null && config.containsKey("agingSeconds"))
+		{ agingMs = 1000 * Long.parseLong(config.get("agingSeconds")); }
+		learnedHosts = new MacLearningTable(agingMs);
+		
+		// Flood over a spanning tree unless configured otherwise
+		floodMode = FloodMode.SPANNING_TREE;
+		if (config != null && config.containsKey("floodMode"))
+		{ floodMode = FloodMode.valueOf(config.get("floodMode").toUpperCase()); }
 	}
 
 	/**
-	 * Tells the Floodlight core we are interested in PACKET_IN messages.
+	 * Tells the Floodlight core we are interested in PACKET_IN messages and 
+	 * switch changes, starts tracking the network topology, and starts aging
+	 * out learned hosts.
 	 * */
 	@Override
 	public void startUp(FloodlightModuleContext context) 
     {
+		netTopo.startUp();
 		floodlightProv.addOFMessageListener(OFType.PACKET_IN, this);
+		floodlightProv.addOFSwitchListener(this);
+		
+		long purgeMs = Math.max(agingMs / 2, 1);
+		threadPool.getScheduledExecutor().scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run()
+			{
+				int removed = learnedHosts.purgeExpired();
+				log.debug(String.format(
+						"Aged out %d hosts; %d learned, %d hits, %d floods",
+						removed, learnedHosts.size(), learnedHosts.getHits(),
+						learnedHosts.getMisses()));
+			}
+		}, purgeMs, purgeMs, TimeUnit.MILLISECONDS);
 	}
+	
+	/**
+	 * Get the number of hosts learned across all switches.
+	 */
+	public int getLearnedCount()
+	{ return learnedHosts.size(); }
+	
+	/**
+	 * Get the fraction of packets forwarded to a learned port rather than 
+	 * flooded.
+	 */
+	public double getHitRatio()
+	{
+		long hits = learnedHosts.getHits();
+		long total = hits + learnedHosts.getMisses();
+		return (0 == total ? 0. : (double)hits / total);
+	}
+	
+	/**
+	 * Forgets the hosts learned on a switch when it disconnects.
+	 */
+	@Override
+	public void removedSwitch(IOFSwitch sw)
+	{ learnedHosts.removeSwitch(sw.getId()); }
+	
+	@Override
+	public void addedSwitch(IOFSwitch sw)
+	{ /* Nothing to do */ }
+	
+	@Override
+	public void switchPortChanged(Long switchId)
+	{ /* Nothing to do */ }
 
 	/**
 	 * Provides an identifier for our OFMessage listener.
@@ -137,47 +240,78 @@ public class L2Forward implements IFloodlightModule, IOFMessageListener
 		// Determine the port on which the packet was received
 		short inPort = pktInMsg.getInPort();
 		
-		// Create match based on packet
-		OFMatch match = new OFMatch();
-		match.loadFromPacket(pktInMsg.getPacketData(), inPort);
+		// Parse the packet's headers, unless another listener already has
+		PacketInContext headers = PacketInContext.get(cntx, pktInMsg);
 		
 		// Learn the source MAC and source port
-		byte[] srcMac = match.getDataLayerSource();
-		learnedHosts.put(Ethernet.toLong(srcMac), inPort);
+		learnedHosts.learn(sw.getId(), headers.getSrcMac(), inPort);
 		
-		// TODO: Install a rule in the flow table when we learn a new host 
-		
-		// Get the destination MAC
-		byte[] dstMac = match.getDataLayerDestination();
+		// Look up the port for the destination MAC
+		short outPort = learnedHosts.getPort(sw.getId(), headers.getDstMac());
 
-		// If we know the location of the destination, the forward directly
-		if (learnedHosts.containsKey(Ethernet.toLong(dstMac)))
+		// Drop a frame whose destination is on the port it arrived on
+		if (outPort == inPort)
+		{ return Command.STOP; }
+		
+		// If we know the location of the destination, install a rule so later
+		// frames are forwarded by the switch, and forward this one directly
+		if (outPort != MacLearningTable.NO_PORT)
 		{
-			// Forward packet out port
-			short outPort = learnedHosts.get(Ethernet.toLong(dstMac));
-			log.debug(String.format("Send out port %d", outPort));
-			flowInstaller.forwardPacket(sw, outPort, pktInMsg);
+			if (log.isDebugEnabled())
+			{ log.debug(String.format("Send out port %d", outPort)); }
+			OFMatch ruleMatch = new OFMatch();
+			ruleMatch.setWildcards(OFMatch.OFPFW_ALL & ~(OFMatch.OFPFW_IN_PORT
+					| OFMatch.OFPFW_DL_SRC | OFMatch.OFPFW_DL_DST));
+			ruleMatch.setDataLayerSource(
+					headers.getMatch().getDataLayerSource());
+			ruleMatch.setDataLayerDestination(
+					headers.getMatch().getDataLayerDestination());
+			
+			FlowModBatch batch = new FlowModBatch();
+			flowInstaller.installRuleAndForward(batch, sw, inPort, outPort, 
+					ruleMatch, pktInMsg);
+			flowInstaller.sendBatch(batch, false);
 		}
 		//Otherwise, flood the packet
 		else
+		{ this.flood(sw, pktInMsg); }
+		return Command.STOP;
+	}
+	
+	/**
+	 * Floods a packet out of a switch with a single packet-out message.
+	 */
+	private void flood(IOFSwitch sw, OFPacketIn pktInMsg)
+	{
+		if (FloodMode.FLOOD == floodMode)
 		{
-			// Get a list of all ports on the switch
-			Collection<OFPhysicalPort> ports = sw.getPorts();
+			flowInstaller.forwardPacket(sw, OFPort.OFPP_FLOOD.getValue(), 
+					pktInMsg);
+			return;
+		}
+		
+		// Flood only over the spanning tree
+		List<Short> outPorts = this.getSpanningTree().getFloodPorts(sw, 
+				pktInMsg.getInPort());
+		if (log.isDebugEnabled())
+		{ log.debug(String.format("Send out ports %s", outPorts)); }
+		if (!outPorts.isEmpty())
+		{ flowInstaller.forwardPacket(sw, outPorts, pktInMsg); }
+	}
 	
-			// Flood out each port
-			for(OFPhysicalPort port : ports)
-			{
-				// Do not flood out the port on which the packet was received
-				// Also, do not flood out the special local port
-				if (inPort == port.getPortNumber() 
-						|| OFPort.OFPP_LOCAL.getValue() == port.getPortNumber())
-				{ continue; }
-				
-				// Forward packet out port
-				log.debug(String.format("Send out port %d", port.getPortNumber()));
-				flowInstaller.forwardPacket(sw, port.getPortNumber(), pktInMsg);
-			}
+	/**
+	 * Gets a spanning tree of the current topology, computing it again if the
+	 * topology changed since it was last computed.
+	 */
+	private SpanningTree getSpanningTree()
+	{
+		TopologyGraph graph = netTopo.getGraph();
+		SpanningTree tree = spanningTree;
+		if (null == tree || tree.getVersion() != graph.getVersion())
+		{
+			tree = SpanningTree.compute(graph);
+			spanningTree = tree;
 		}
-		return Command.STOP;
+		return tree;
 	}
 }
@@ -0,0 +1,127 @@
+package edu.wisc.cs.sdn;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in buckets whose width grows with the latency, in the
+ * manner of HdrHistogram: each power of two is split into 32 buckets, so any
+ * percentile is reported within about 3% of the true value while the
+ * histogram stays a fixed size. Recording is lock-free and may happen on
+ * many threads at once.
+ */
+public class LatencyHistogram
+{
+	// Buckets per power of two, as a number of bits
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	// Enough buckets for any non-negative long
+	private static final int BUCKETS = SUB_BUCKETS * (64 - SUB_BUCKET_BITS);
+
+	// Number of latencies recorded in each bucket
+	private AtomicLongArray counts;
+
+	// Number, sum, and largest of the latencies recorded
+	private AtomicLong count;
+	private AtomicLong sum;
+	private AtomicLong max;
+
+	/**
+	 * Creates a histogram with no latencies recorded.
+	 */
+	public LatencyHistogram()
+	{
+		this.counts = new AtomicLongArray(BUCKETS);
+		this.count = new AtomicLong();
+		this.sum = new AtomicLong();
+		this.max = new AtomicLong();
+	}
+
+	/**
+	 * Records a latency.
+	 * @param nanos the latency in nanoseconds; negative values count as zero
+	 */
+	public void record(long nanos)
+	{
+		nanos = Math.max(nanos, 0);
+		counts.incrementAndGet(bucket(nanos));
+		count.incrementAndGet();
+		sum.addAndGet(nanos);
+		long prevMax = max.get();
+		while (nanos > prevMax && !max.compareAndSet(prevMax, nanos))
+		{ prevMax = max.get(); }
+	}
+
+	/**
+	 * Gets the number of latencies recorded.
+	 * @return the number of latencies recorded
+	 */
+	public long getCount()
+	{ return this.count.get(); }
+
+	/**
+	 * Gets the mean latency.
+	 * @return the mean latency in nanoseconds; 0 if none were recorded
+	 */
+	public double getMean()
+	{
+		long n = count.get();
+		return (0 == n ? 0 : (double)sum.get() / n);
+	}
+
+	/**
+	 * Gets the largest latency recorded.
+	 * @return the largest latency in nanoseconds; 0 if none were recorded
+	 */
+	public long getMax()
+	{ return this.max.get(); }
+
+	/**
+	 * Gets the latency below which a given fraction of latencies fall.
+	 * @param fraction the fraction of latencies, from 0 to 1, e.g., 0.99 for
+	 * 			the 99th percentile
+	 * @return the largest latency in the bucket holding the percentile, in
+	 * 			nanoseconds, but no more than the largest latency recorded; 0 if
+	 * 			none were recorded
+	 */
+	public long getPercentile(double fraction)
+	{
+		long n = count.get();
+		if (0 == n)
+		{ return 0; }
+		long rank = Math.max(1, (long)Math.ceil(fraction * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			seen += counts.get(i);
+			if (seen >= rank)
+			{ return Math.min(highestInBucket(i), max.get()); }
+		}
+		return max.get();
+	}
+
+	/**
+	 * Gets the bucket in which a latency is counted.
+	 */
+	private static int bucket(long nanos)
+	{
+		if (nanos < SUB_BUCKETS)
+		{ return (int)nanos; }
+		int shift = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BUCKET_BITS;
+		int sub = (int)(nanos >>> shift) - SUB_BUCKETS;
+		return SUB_BUCKETS + shift * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * Gets the largest latency counted in a bucket.
+	 */
+	private static long highestInBucket(int bucket)
+	{
+		if (bucket < SUB_BUCKETS)
+		{ return bucket; }
+		int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+		int sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+		return ((long)(SUB_BUCKETS + sub + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,398 @@
+package edu.wisc.cs.sdn;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.openflow.protocol.OFPhysicalPort;
+import org.openflow.protocol.OFPhysicalPort.OFPortFeatures;
+import org.openflow.protocol.OFPort;
+import org.openflow.protocol.OFStatisticsRequest;
+import org.openflow.protocol.statistics.OFPortStatisticsReply;
+import org.openflow.protocol.statistics.OFPortStatisticsRequest;
+import org.openflow.protocol.statistics.OFStatistics;
+import org.openflow.protocol.statistics.OFStatisticsType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.util.SingletonTask;
+
+/**
+ * Assigns each link a cost from the speed of the port it leaves, scaled up 
+ * as the link gets busier. The static part is a reference bandwidth divided 
+ * by the port's speed, so faster links are cheaper. The load part comes from 
+ * polling port statistics: the transmit rate of each port is smoothed into a
+ * utilization, which is mapped to one of a few load levels. A port only 
+ * moves to a different level once its utilization is clearly past the 
+ * boundary, so costs, and therefore paths, do not flap.
+ */
+public class LinkCostManager implements ITopologyListener
+{
+	public static final long DEFAULT_REFERENCE_MBPS = 100000;
+	public static final long DEFAULT_SPEED_MBPS = 10000;
+	public static final double DEFAULT_SMOOTHING = 0.3;
+	
+	// Fraction of the port's capacity covered by each load level
+	private static final double LEVEL_WIDTH = 0.2;
+	
+	// Utilization must pass a level boundary by this much to change level
+	private static final double HYSTERESIS = 0.05;
+	
+	// Highest load level
+	private static final int MAX_LEVEL = 4;
+	
+	// Fraction of the static cost added for each load level
+	private static final double LEVEL_PENALTY = 0.5;
+	
+	// Wait this long after a link is added before assigning costs, so a 
+	// burst of new links results in a single update
+	private static final long REFRESH_DELAY_MS = 10;
+	
+	// Interface for obtaining network topology information
+	private NetworkTopology netTopo;
+	
+	// Executor on which polls and updates run
+	private ScheduledExecutorService ses;
+	
+	// Assigns costs to links after links are added
+	private SingletonTask refreshTask;
+	
+	// How often to poll port statistics; zero to use static costs only
+	private long pollMs;
+	
+	// Weight given to the newest utilization sample
+	private double smoothing;
+	
+	// Bandwidth of a link whose static cost is 1
+	private long referenceMbps;
+	
+	// Speed assumed for ports whose speed is neither reported nor configured
+	private long defaultSpeedMbps;
+	
+	// Configured speed of specific ports, indexed by DPID and port number
+	private Map<Long,Map<Short,Long>> portSpeeds;
+	
+	// Load measured on each port, indexed by DPID and port number; guarded 
+	// by this object
+	private Map<Long,Map<Short,PortLoad>> loads;
+	
+	// Interface to the logging system
+	private static Logger log = 
+			LoggerFactory.getLogger(LinkCostManager.class.getSimpleName());
+	
+	/**
+	 * The load measured on a port.
+	 */
+	private static class PortLoad
+	{
+		// Transmitted bytes reported by the last poll
+		long txBytes;
+		
+		// When the last poll was answered, from System.nanoTime()
+		long timeNanos;
+		
+		// Smoothed fraction of the port's capacity in use
+		double utilization;
+		
+		// Current load level, from 0 to MAX_LEVEL
+		int level;
+	}
+	
+	/**
+	 * Creates a link cost manager. Costs are not assigned until 
+	 * {@link #start()} is called.
+	 * @param netTopo interface to access network topology information
+	 * @param ses executor on which to run polls and updates
+	 * @param pollMs how often to poll port statistics, in milliseconds; zero 
+	 * 			to assign static costs only
+	 * @param smoothing weight given to the newest utilization sample, between 
+	 * 			0 and 1
+	 * @param referenceMbps bandwidth of a link whose static cost is 1
+	 * @param defaultSpeedMbps speed assumed for ports whose speed is unknown
+	 * @param portSpeeds configured speed of specific ports, indexed by DPID and
+	 * 			port number; overrides the speed the switch reports
+	 */
+	public LinkCostManager(NetworkTopology netTopo, 
+			ScheduledExecutorService ses, long pollMs, double smoothing, 
+			long referenceMbps, long defaultSpeedMbps, 
+			Map<Long,Map<Short,Long>> portSpeeds)
+	{
+		this.netTopo = netTopo;
+		this.ses = ses;
+		this.pollMs = pollMs;
+		this.smoothing = smoothing;
+		this.referenceMbps = referenceMbps;
+		this.defaultSpeedMbps = defaultSpeedMbps;
+		this.portSpeeds = portSpeeds;
+		this.loads = new HashMap<Long,Map<Short,PortLoad>>();
+		this.refreshTask = new SingletonTask(ses, new Runnable() {
+			@Override
+			public void run()
+			{ refresh(); }
+		});
+	}
+	
+	/**
+	 * Parses configured port speeds from a comma-separated list of entries of
+	 * the form "dpid/port=mbps", where the DPID may be decimal or hex with a
+	 * leading 0x.
+	 * @param config the configured port speeds
+	 * @return the speed of each port, indexed by DPID and port number
+	 */
+	public static Map<Long,Map<Short,Long>> parsePortSpeeds(String config)
+	{
+		Map<Long,Map<Short,Long>> speeds = new HashMap<Long,Map<Short,Long>>();
+		for (String entry : config.split(","))
+		{
+			entry = entry.trim();
+			if (0 == entry.length())
+			{ continue; }
+			int slash = entry.indexOf('/');
+			int equals = entry.indexOf('=');
+			if (slash < 0 || equals < slash)
+			{ throw new IllegalArgumentException("Bad port speed: " + entry); }
+			long dpid = Long.decode(entry.substring(0, slash).trim());
+			short port = Short.parseShort(
+					entry.substring(slash + 1, equals).trim());
+			long mbps = Long.parseLong(entry.substring(equals + 1).trim());
+			
+			Map<Short,Long> switchSpeeds = speeds.get(dpid);
+			if (null == switchSpeeds)
+			{
+				switchSpeeds = new HashMap<Short,Long>();
+				speeds.put(dpid, switchSpeeds);
+			}
+			switchSpeeds.put(port, mbps);
+		}
+		return speeds;
+	}
+	
+	/**
+	 * Assigns costs to the current links and starts polling port statistics.
+	 */
+	public void start()
+	{
+		refreshTask.reschedule(0, TimeUnit.MILLISECONDS);
+		if (pollMs > 0)
+		{
+			ses.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run()
+				{ poll(); }
+			}, pollMs, pollMs, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * Schedules an update of link costs when a link is added, so it gets its
+	 * cost right away rather than at the next poll.
+	 */
+	@Override
+	public void linkWeightChanged(int srcId, int dstId, double oldWeight,
+			double newWeight, long version)
+	{
+		if (Double.isInfinite(oldWeight))
+		{ refreshTask.reschedule(REFRESH_DELAY_MS, TimeUnit.MILLISECONDS); }
+	}
+	
+	/**
+	 * Schedules an update of link costs when a switch connects, since its 
+	 * ports may have changed speed.
+	 */
+	@Override
+	public void switchChanged(int id, long version)
+	{ refreshTask.reschedule(REFRESH_DELAY_MS, TimeUnit.MILLISECONDS); }
+	
+	/**
+	 * Polls every switch for port statistics, updates the load on each port,
+	 * and updates link costs.
+	 */
+	private void poll()
+	{
+		TopologyGraph graph = netTopo.getGraph();
+		
+		// Send all requests before waiting for any replies
+		Map<IOFSwitch,Future<List<OFStatistics>>> replies =
+				new HashMap<IOFSwitch,Future<List<OFStatistics>>>();
+		for (Vertex v : graph.getVertices())
+		{
+			IOFSwitch sw = v.getSwitch();
+			OFStatisticsRequest req = new OFStatisticsRequest();
+			req.setStatisticType(OFStatisticsType.PORT);
+			OFPortStatisticsRequest portReq = new OFPortStatisticsRequest();
+			portReq.setPortNumber(OFPort.OFPP_NONE.getValue());
+			req.setStatistics(Collections.singletonList(portReq));
+			req.setLengthU(OFStatisticsRequest.MINIMUM_LENGTH 
+					+ portReq.getLength());
+			try
+			{ replies.put(sw, sw.getStatistics(req)); }
+			catch (IOException e)
+			{
+				log.error(String.format(
+						"Failed to request port statistics from switch %d",
+						sw.getId()));
+			}
+		}
+		
+		// Wait for all replies until one deadline, half a poll interval away,
+		// so switches that do not answer hold up the poll for no longer than 
+		// that in total
+		long deadline = System.nanoTime() 
+				+ TimeUnit.MILLISECONDS.toNanos(pollMs / 2);
+		for (Map.Entry<IOFSwitch,Future<List<OFStatistics>>> entry 
+				: replies.entrySet())
+		{
+			IOFSwitch sw = entry.getKey();
+			List<OFStatistics> stats;
+			try
+			{
+				stats = entry.getValue().get(
+						Math.max(0, deadline - System.nanoTime()), 
+						TimeUnit.NANOSECONDS);
+			}
+			catch (Exception e)
+			{
+				entry.getValue().cancel(false);
+				log.warn(String.format(
+						"No port statistics from switch %d", sw.getId()));
+				continue;
+			}
+			
+			long now = System.nanoTime();
+			synchronized (this)
+			{
+				for (OFStatistics stat : stats)
+				{
+					OFPortStatisticsReply reply = (OFPortStatisticsReply)stat;
+					this.updateLoad(sw, reply.getPortNumber(), 
+							reply.getTransmitBytes(), now);
+				}
+			}
+		}
+		
+		this.refresh();
+	}
+	
+	/**
+	 * Updates the smoothed utilization and load level of a port from its 
+	 * transmitted byte count. Must be called with this object locked.
+	 */
+	private void updateLoad(IOFSwitch sw, short port, long txBytes, long now)
+	{
+		Map<Short,PortLoad> switchLoads = loads.get(sw.getId());
+		if (null == switchLoads)
+		{
+			switchLoads = new HashMap<Short,PortLoad>();
+			loads.put(sw.getId(), switchLoads);
+		}
+		PortLoad load = switchLoads.get(port);
+		if (null == load)
+		{
+			load = new PortLoad();
+			load.txBytes = txBytes;
+			load.timeNanos = now;
+			switchLoads.put(port, load);
+			return;
+		}
+		
+		// A counter that went backward was reset, so start measuring again
+		long bytes = txBytes - load.txBytes;
+		long nanos = now - load.timeNanos;
+		load.txBytes = txBytes;
+		load.timeNanos = now;
+		if (bytes < 0 || nanos <= 0)
+		{ return; }
+		
+		double bitsPerSecond = bytes * 8 * 1e9 / nanos;
+		double sample = bitsPerSecond / (this.getSpeedMbps(sw, port) * 1e6);
+		load.utilization = smoothing * sample 
+				+ (1 - smoothing) * load.utilization;
+		
+		while (load.level < MAX_LEVEL && load.utilization 
+				> (load.level + 1) * LEVEL_WIDTH + HYSTERESIS)
+		{ load.level++; }
+		while (load.level > 0 
+				&& load.utilization < load.level * LEVEL_WIDTH - HYSTERESIS)
+		{ load.level--; }
+	}
+	
+	/**
+	 * Assigns every link its cost from the speed of its source port and the
+	 * current load level of that port.
+	 */
+	private void refresh()
+	{
+		TopologyGraph graph = netTopo.getGraph();
+		for (Vertex v : graph.getVertices())
+		{
+			IOFSwitch sw = v.getSwitch();
+			Map<Short,Double> weights = new HashMap<Short,Double>();
+			synchronized (this)
+			{
+				Map<Short,PortLoad> switchLoads = loads.get(sw.getId());
+				for (Edge e : v.getAdjacencies())
+				{
+					short port = e.getSrcSwitchPort();
+					PortLoad load = (null == switchLoads ? null 
+							: switchLoads.get(port));
+					int level = (null == load ? 0 : load.level);
+					double staticCost = (double)referenceMbps 
+							/ this.getSpeedMbps(sw, port);
+					weights.put(port, staticCost * (1 + LEVEL_PENALTY * level));
+				}
+			}
+			if (!weights.isEmpty())
+			{ netTopo.setLinkWeights(sw.getId(), weights); }
+		}
+	}
+	
+	/**
+	 * Gets the speed of a port: the configured speed if there is one, 
+	 * otherwise the fastest speed the switch reports for the port, otherwise 
+	 * the default speed.
+	 */
+	private long getSpeedMbps(IOFSwitch sw, short port)
+	{
+		Map<Short,Long> switchSpeeds = portSpeeds.get(sw.getId());
+		Long configured = (null == switchSpeeds ? null 
+				: switchSpeeds.get(port));
+		if (configured != null)
+		{ return configured; }
+		
+		OFPhysicalPort physicalPort = sw.getPort(port);
+		int features = (null == physicalPort ? 0 
+				: physicalPort.getCurrentFeatures());
+		if (0 != (features & OFPortFeatures.OFPPF_10GB_FD.getValue()))
+		{ return 10000; }
+		if (0 != (features & (OFPortFeatures.OFPPF_1GB_FD.getValue() 
+				| OFPortFeatures.OFPPF_1GB_HD.getValue())))
+		{ return 1000; }
+		if (0 != (features & (OFPortFeatures.OFPPF_100MB_FD.getValue() 
+				| OFPortFeatures.OFPPF_100MB_HD.getValue())))
+		{ return 100; }
+		if (0 != (features & (OFPortFeatures.OFPPF_10MB_FD.getValue() 
+				| OFPortFeatures.OFPPF_10MB_HD.getValue())))
+		{ return 10; }
+		return defaultSpeedMbps;
+	}
+	
+	/**
+	 * Gets the smoothed utilization of a port.
+	 * @param dpid the switch's DPID
+	 * @param port the port number
+	 * @return the fraction of the port's capacity in use; 0 if the port has 
+	 * 			not been measured
+	 */
+	public synchronized double getUtilization(long dpid, short port)
+	{
+		Map<Short,PortLoad> switchLoads = loads.get(dpid);
+		PortLoad load = (null == switchLoads ? null : switchLoads.get(port));
+		return (null == load ? 0. : load.utilization);
+	}
+}
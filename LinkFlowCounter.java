@@ -0,0 +1,144 @@
+package edu.wisc.cs.sdn;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts the flows routed over each link, to show how evenly flows are
+ * spread across equal-cost paths. Flows are counted over fixed windows of
+ * time, and the counts of the last complete window are reported, so the
+ * counts reflect recent traffic rather than every flow routed since the
+ * controller started. Links are identified by the key from
+ * {@link IncrementalShortestPaths#linkKey(int, int)}, so counting a flow
+ * allocates nothing.
+ */
+public class LinkFlowCounter
+{
+	/** Default length of a counting window. */
+	public static final long DEFAULT_WINDOW_MS = 60000;
+
+	// Length of a counting window
+	private final long windowNanos;
+
+	// Number of flows routed over each link in the current window
+	private volatile LongLongHashMap current;
+
+	// Number of flows routed over each link in the last complete window
+	private volatile LongLongHashMap previous;
+
+	// When the current window started
+	private volatile long windowStart;
+
+	/**
+	 * Creates a counter with no flows counted.
+	 * @param windowMs the length of a counting window
+	 */
+	public LinkFlowCounter(long windowMs)
+	{
+		this.windowNanos = windowMs * 1000000L;
+		this.current = new LongLongHashMap(64, 0);
+		this.previous = new LongLongHashMap(64, 0);
+		this.windowStart = System.nanoTime();
+	}
+
+	/**
+	 * Counts a flow routed along a path.
+	 * @param hops the edges along the path
+	 */
+	public void record(List<Edge> hops)
+	{
+		LongLongHashMap counts = this.getWindow(System.nanoTime());
+		for (Edge edge : hops)
+		{
+			counts.add(IncrementalShortestPaths.linkKey(
+					edge.getSrcVertex().getId(), edge.getDstVertex().getId()),
+					1);
+		}
+	}
+
+	/**
+	 * Gets the number of flows routed over a link in the last complete
+	 * window.
+	 * @param srcId the id of the vertex from which the link originates
+	 * @param dstId the id of the vertex the link reaches
+	 * @return the number of flows routed over the link
+	 */
+	public long getFlowCount(int srcId, int dstId)
+	{
+		this.getWindow(System.nanoTime());
+		return previous.get(IncrementalShortestPaths.linkKey(srcId, dstId));
+	}
+
+	/**
+	 * Gets the number of flows routed over each link in the last complete
+	 * window.
+	 * @return the number of flows routed over each link that carried at least
+	 * 			one flow, indexed by link key
+	 */
+	public Map<Long,Long> getFlowCounts()
+	{
+		this.getWindow(System.nanoTime());
+		return previous.toMap();
+	}
+
+	/**
+	 * Gets the length of a counting window.
+	 * @return the length of a counting window, in milliseconds
+	 */
+	public long getWindowMs()
+	{ return windowNanos / 1000000L; }
+
+	/**
+	 * Summarizes how evenly flows were spread across links in the last
+	 * complete window.
+	 * @return the summary
+	 */
+	public String getSummary()
+	{
+		long total = 0, min = 0, max = 0, busiest = -1;
+		Map<Long,Long> counts = this.getFlowCounts();
+		for (Map.Entry<Long,Long> entry : counts.entrySet())
+		{
+			long count = entry.getValue();
+			total += count;
+			if (busiest < 0 || count < min)
+			{ min = count; }
+			if (busiest < 0 || count > max)
+			{
+				max = count;
+				busiest = entry.getKey();
+			}
+		}
+		if (busiest < 0)
+		{ return String.format("no flows in the last %d ms", getWindowMs()); }
+		return String.format("%d link crossings over %d links in the last %d "
+				+ "ms, %d to %d per link, busiest %d->%d", total, counts.size(),
+				getWindowMs(), min, max,
+				IncrementalShortestPaths.getSrcId(busiest),
+				IncrementalShortestPaths.getDstId(busiest));
+	}
+
+	/**
+	 * Gets the counts for the current window, starting a new window first if
+	 * the current one has ended.
+	 */
+	private LongLongHashMap getWindow(long now)
+	{
+		if (now - windowStart < windowNanos)
+		{ return current; }
+		synchronized (this)
+		{
+			long elapsed = now - windowStart;
+			if (elapsed >= windowNanos)
+			{
+				// A window in which no flow was counted leaves nothing behind
+				LongLongHashMap ended = current;
+				previous = (elapsed < 2 * windowNanos ? ended
+						: new LongLongHashMap(64, 0));
+				current = new LongLongHashMap(Math.max(64, ended.size()), 0);
+				windowStart = now - elapsed % windowNanos;
+			}
+			return current;
+		}
+	}
+}
@@ -0,0 +1,270 @@
+package edu.wisc.cs.sdn;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openflow.protocol.OFMatch;
+
+/**
+ * Remembers the path installed for each flow, indexed by the links the path
+ * crosses, so when a link fails only the flows routed over it need to be
+ * moved. Links are identified by the vertex ids at each end, which stay the
+ * same for a switch for as long as the controller runs. A flow stays in the
+ * index until one of its rules is removed from a switch, or it is taken off
+ * a failed link. In case a flow-removed message is lost, a flow is also 
+ * forgotten once its path has been installed for longer than a time to live,
+ * after which the flow is no longer moved off a link that fails.
+ */
+public class LinkFlowIndex
+{
+	public static final long DEFAULT_TTL_MS = 3600000;
+	
+	// Number of flows recorded between sweeps for expired flows
+	private static final int PURGE_INTERVAL = 1024;
+	
+	/**
+	 * The path installed for a flow.
+	 */
+	public static class IndexedFlow
+	{
+		// The flow's match in normal form, without an input port
+		final OFMatch key;
+
+		// MAC address of the flow's destination host
+		final long dstMac;
+
+		// Hash used to choose among equal-cost paths
+		final int hash;
+
+		// Vertex id of each switch on the path, from ingress to egress, and
+		// the ports on which the flow enters and leaves each one
+		final int[] vertexIds;
+		final short[] inPorts;
+		final short[] outPorts;
+
+		// When the path was installed, from System.nanoTime()
+		final long recordedNanos;
+
+		/**
+		 * Describes the path installed for a flow.
+		 * @param match the match describing the flow
+		 * @param dstMac the MAC address of the flow's destination host
+		 * @param hash the hash used to choose among equal-cost paths
+		 * @param srcVertex the vertex for the ingress switch
+		 * @param hops the edges along the path; empty if the destination host
+		 * 			is attached to the ingress switch
+		 * @param inPort the port on which the flow enters the ingress switch
+		 * @param dstPort the port to which the destination host is attached
+		 */
+		IndexedFlow(OFMatch match, long dstMac, int hash, Vertex srcVertex,
+				List<Edge> hops, short inPort, short dstPort)
+		{
+			this.key = getKey(match);
+			this.dstMac = dstMac;
+			this.hash = hash;
+			int length = hops.size() + 1;
+			this.vertexIds = new int[length];
+			this.inPorts = new short[length];
+			this.outPorts = new short[length];
+			this.vertexIds[0] = srcVertex.getId();
+			this.inPorts[0] = inPort;
+			for (int i = 0; i < hops.size(); i++)
+			{
+				Edge edge = hops.get(i);
+				this.outPorts[i] = edge.getSrcSwitchPort();
+				this.vertexIds[i + 1] = edge.getDstVertex().getId();
+				this.inPorts[i + 1] = edge.getDstSwitchPort();
+			}
+			this.outPorts[length - 1] = dstPort;
+			this.recordedNanos = System.nanoTime();
+		}
+
+		/**
+		 * Finds the switch on the path that receives the flow on a port.
+		 * @return the switch's position on the path; -1 if none matches
+		 */
+		int indexOf(int vertexId, short inPort)
+		{
+			for (int i = 0; i < vertexIds.length; i++)
+			{
+				if (vertexIds[i] == vertexId && inPorts[i] == inPort)
+				{ return i; }
+			}
+			return -1;
+		}
+
+		/**
+		 * Tells whether the flow's path crosses a link.
+		 */
+		boolean crosses(long linkKey)
+		{
+			for (int i = 0; i + 1 < vertexIds.length; i++)
+			{
+				if (IncrementalShortestPaths.linkKey(vertexIds[i],
+						vertexIds[i + 1]) == linkKey)
+				{ return true; }
+			}
+			return false;
+		}
+	}
+
+	// Flows with an installed path, indexed by their match without the input
+	// port
+	private ConcurrentMap<OFMatch,IndexedFlow> flows;
+
+	// Keys of the flows whose paths cross each link, indexed by link key
+	private ConcurrentMap<Long,Set<OFMatch>> flowsByLink;
+
+	// How long a flow stays in the index, in nanoseconds
+	private long ttlNanos;
+
+	// Number of flows recorded since the last sweep for expired flows
+	private AtomicLong sinceLastPurge;
+
+	/**
+	 * Creates an empty index.
+	 * @param ttlMs how long a flow stays in the index if none of its rules is
+	 * 			reported removed, in milliseconds
+	 */
+	public LinkFlowIndex(long ttlMs)
+	{
+		this.flows = new ConcurrentHashMap<OFMatch,IndexedFlow>();
+		this.flowsByLink = new ConcurrentHashMap<Long,Set<OFMatch>>();
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+		this.sinceLastPurge = new AtomicLong();
+	}
+
+	/**
+	 * Records the path installed for a flow, replacing any path recorded for
+	 * it before. A path within a single switch crosses no links and is not
+	 * recorded.
+	 * @param flow the flow and its path
+	 */
+	public void record(IndexedFlow flow)
+	{
+		if (flow.vertexIds.length < 2)
+		{ return; }
+		IndexedFlow previous = flows.put(flow.key, flow);
+		if (previous != null)
+		{ this.unlink(previous); }
+		int[] vertexIds = flow.vertexIds;
+		for (int i = 0; i + 1 < vertexIds.length; i++)
+		{
+			long linkKey = IncrementalShortestPaths.linkKey(vertexIds[i],
+					vertexIds[i + 1]);
+			Set<OFMatch> keys = flowsByLink.get(linkKey);
+			if (null == keys)
+			{
+				Set<OFMatch> newKeys = Collections.newSetFromMap(
+						new ConcurrentHashMap<OFMatch,Boolean>());
+				keys = flowsByLink.putIfAbsent(linkKey, newKeys);
+				if (null == keys)
+				{ keys = newKeys; }
+			}
+			keys.add(flow.key);
+		}
+
+		if (sinceLastPurge.incrementAndGet() >= PURGE_INTERVAL)
+		{
+			sinceLastPurge.set(0);
+			this.purgeExpired(flow.recordedNanos);
+		}
+	}
+
+	/**
+	 * Forgets a flow whose rule was removed from a switch.
+	 * @param match the match of the removed rule
+	 */
+	public void remove(OFMatch match)
+	{
+		IndexedFlow flow = flows.remove(getKey(match));
+		if (flow != null)
+		{ this.unlink(flow); }
+	}
+
+	/**
+	 * Removes and returns the flows whose paths cross any of some links.
+	 * @param linkKeys keys for the links, from
+	 * 			{@link IncrementalShortestPaths#linkKey(int, int)}
+	 * @return the flows; each appears once
+	 */
+	public List<IndexedFlow> takeFlows(Collection<Long> linkKeys)
+	{
+		List<IndexedFlow> taken = new ArrayList<IndexedFlow>();
+		for (long linkKey : linkKeys)
+		{
+			Set<OFMatch> keys = flowsByLink.remove(linkKey);
+			if (null == keys)
+			{ continue; }
+			for (OFMatch key : keys)
+			{
+				// Skip a key left behind by a flow that has since moved
+				IndexedFlow flow = flows.get(key);
+				if (null == flow || !flow.crosses(linkKey)
+						|| !flows.remove(key, flow))
+				{ continue; }
+				this.unlink(flow);
+				taken.add(flow);
+			}
+		}
+		return taken;
+	}
+
+	/**
+	 * Gets the number of flows in the index.
+	 * @return the number of flows
+	 */
+	public int getFlowCount()
+	{ return this.flows.size(); }
+
+	/**
+	 * Forgets the flows whose paths were installed longer ago than the time to
+	 * live.
+	 */
+	private void purgeExpired(long now)
+	{
+		Iterator<IndexedFlow> iter = flows.values().iterator();
+		while (iter.hasNext())
+		{
+			IndexedFlow flow = iter.next();
+			if (now - flow.recordedNanos >= ttlNanos 
+					&& flows.remove(flow.key, flow))
+			{ this.unlink(flow); }
+		}
+	}
+
+	/**
+	 * Removes a flow's key from the sets of every link on its path.
+	 */
+	private void unlink(IndexedFlow flow)
+	{
+		for (int i = 0; i + 1 < flow.vertexIds.length; i++)
+		{
+			Set<OFMatch> keys = flowsByLink.get(IncrementalShortestPaths.linkKey(
+					flow.vertexIds[i], flow.vertexIds[i + 1]));
+			if (keys != null)
+			{ keys.remove(flow.key); }
+		}
+	}
+
+	/**
+	 * Gets the key for a flow, which ignores the port on which the packet was
+	 * received, so the rules on every switch on the path share an entry. The
+	 * match is put in the form switches report it in, so the match of a rule
+	 * a switch reports removed finds the flow.
+	 */
+	private static OFMatch getKey(OFMatch match)
+	{
+		OFMatch key = MatchNormalizer.normalize(match);
+		key.setInputPort((short)0);
+		return key;
+	}
+}
@@ -0,0 +1,308 @@
+package edu.wisc.cs.sdn;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A hash map from primitive long keys to primitive long values, using open 
+ * addressing with linear probing. Lookups do not allocate and do not block 
+ * while no update is in progress; updates are serialized.
+ * <p>
+ * The key {@link #FREE_KEY} is reserved and cannot be stored.
+ */
+class LongLongHashMap
+{
+    /** Marks an empty slot; cannot be used as a key. */
+    public static final long FREE_KEY = Long.MIN_VALUE;
+    
+    private final StampedLock lock = new StampedLock();
+    private final long missingValue;
+    private long[] keys;
+    private long[] values;
+    private int size;
+    
+    /**
+     * Create an empty map.
+     * @param expectedSize the number of entries to size the map for
+     * @param missingValue the value returned for keys that are not in the map
+     */
+    public LongLongHashMap(int expectedSize, long missingValue)
+    {
+        this.missingValue = missingValue;
+        int capacity = 16;
+        while (capacity < 2 * expectedSize)
+        { capacity <<= 1; }
+        this.keys = newKeys(capacity);
+        this.values = new long[capacity];
+        this.size = 0;
+    }
+    
+    /**
+     * Get the value for a key.
+     * @param key the key to look up
+     * @return the value for the key; the missing value if the key is not in 
+     *         the map
+     */
+    public long get(long key)
+    {
+        long stamp = lock.tryOptimisticRead();
+        long value = this.find(key);
+        if (!lock.validate(stamp))
+        {
+            stamp = lock.readLock();
+            try
+            { value = this.find(key); }
+            finally
+            { lock.unlockRead(stamp); }
+        }
+        return value;
+    }
+    
+    /**
+     * Add or replace the value for a key.
+     * @param key the key; must not be {@link #FREE_KEY}
+     * @param value the value for the key
+     * @return the previous value for the key; the missing value if the key was
+     *         not in the map
+     */
+    public long put(long key, long value)
+    {
+        long stamp = lock.writeLock();
+        try
+        {
+            int mask = keys.length - 1;
+            int i = slot(key, mask);
+            while (keys[i] != FREE_KEY)
+            {
+                if (keys[i] == key)
+                {
+                    long previous = values[i];
+                    values[i] = value;
+                    return previous;
+                }
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value;
+            size++;
+            if (2 * size > keys.length)
+            { this.resize(2 * keys.length); }
+            return missingValue;
+        }
+        finally
+        { lock.unlockWrite(stamp); }
+    }
+    
+    /**
+     * Add to the value for a key. A key that is not in the map is added, 
+     * starting from the missing value.
+     * @param key the key; must not be {@link #FREE_KEY}
+     * @param delta the amount to add
+     * @return the new value for the key
+     */
+    public long add(long key, long delta)
+    {
+        long stamp = lock.writeLock();
+        try
+        {
+            int mask = keys.length - 1;
+            int i = slot(key, mask);
+            while (keys[i] != FREE_KEY)
+            {
+                if (keys[i] == key)
+                {
+                    values[i] += delta;
+                    return values[i];
+                }
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = missingValue + delta;
+            size++;
+            if (2 * size > keys.length)
+            { this.resize(2 * keys.length); }
+            return missingValue + delta;
+        }
+        finally
+        { lock.unlockWrite(stamp); }
+    }
+    
+    /**
+     * Remove a key and its value.
+     * @param key the key to remove
+     * @return the value the key had; the missing value if the key was not in 
+     *         the map
+     */
+    public long remove(long key)
+    {
+        long stamp = lock.writeLock();
+        try
+        {
+            int mask = keys.length - 1;
+            int i = slot(key, mask);
+            while (keys[i] != key)
+            {
+                if (keys[i] == FREE_KEY)
+                { return missingValue; }
+                i = (i + 1) & mask;
+            }
+            long previous = values[i];
+            
+            // Shift later entries in the probe sequence back into the gap
+            int gap = i;
+            for (int j = (i + 1) & mask; keys[j] != FREE_KEY; j = (j + 1) & mask)
+            {
+                int home = slot(keys[j], mask);
+                if (((j - home) & mask) >= ((j - gap) & mask))
+                {
+                    keys[gap] = keys[j];
+                    values[gap] = values[j];
+                    gap = j;
+                }
+            }
+            keys[gap] = FREE_KEY;
+            size--;
+            return previous;
+        }
+        finally
+        { lock.unlockWrite(stamp); }
+    }
+    
+    /**
+     * Remove every entry whose value is less than a bound.
+     * @param bound the smallest value to keep
+     * @return the number of entries removed
+     */
+    public int removeValuesBelow(long bound)
+    {
+        long stamp = lock.writeLock();
+        try
+        {
+            long[] oldKeys = keys;
+            long[] oldValues = values;
+            long[] newKeys = newKeys(oldKeys.length);
+            long[] newValues = new long[oldKeys.length];
+            int mask = oldKeys.length - 1;
+            int removed = 0;
+            for (int j = 0; j < oldKeys.length; j++)
+            {
+                if (oldKeys[j] == FREE_KEY)
+                { continue; }
+                if (oldValues[j] < bound)
+                {
+                    removed++;
+                    continue;
+                }
+                int i = slot(oldKeys[j], mask);
+                while (newKeys[i] != FREE_KEY)
+                { i = (i + 1) & mask; }
+                newKeys[i] = oldKeys[j];
+                newValues[i] = oldValues[j];
+            }
+            if (removed > 0)
+            {
+                keys = newKeys;
+                values = newValues;
+                size -= removed;
+            }
+            return removed;
+        }
+        finally
+        { lock.unlockWrite(stamp); }
+    }
+    
+    /**
+     * Get the number of entries in the map.
+     * @return the number of entries in the map
+     */
+    public int size()
+    {
+        long stamp = lock.readLock();
+        try
+        { return size; }
+        finally
+        { lock.unlockRead(stamp); }
+    }
+    
+    /**
+     * Copy the entries into a map of boxed keys and values, for reporting.
+     * @return a new map holding every entry
+     */
+    public Map<Long,Long> toMap()
+    {
+        long stamp = lock.readLock();
+        try
+        {
+            Map<Long,Long> map = new HashMap<Long,Long>(2 * size);
+            for (int i = 0; i < keys.length; i++)
+            {
+                if (keys[i] != FREE_KEY)
+                { map.put(keys[i], values[i]); }
+            }
+            return map;
+        }
+        finally
+        { lock.unlockRead(stamp); }
+    }
+    
+    /**
+     * Look up a key without holding the lock. The result is only meaningful 
+     * if no update happened during the lookup.
+     */
+    private long find(long key)
+    {
+        long[] keys = this.keys;
+        long[] values = this.values;
+        if (keys.length != values.length)
+        { return missingValue; }
+        
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        for (int probes = 0; probes <= mask; probes++)
+        {
+            long current = keys[i];
+            if (current == key)
+            { return values[i]; }
+            if (current == FREE_KEY)
+            { break; }
+            i = (i + 1) & mask;
+        }
+        return missingValue;
+    }
+    
+    private void resize(int capacity)
+    {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        long[] newKeys = newKeys(capacity);
+        long[] newValues = new long[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++)
+        {
+            if (oldKeys[j] == FREE_KEY)
+            { continue; }
+            int i = slot(oldKeys[j], mask);
+            while (newKeys[i] != FREE_KEY)
+            { i = (i + 1) & mask; }
+            newKeys[i] = oldKeys[j];
+            newValues[i] = oldValues[j];
+        }
+        keys = newKeys;
+        values = newValues;
+    }
+    
+    private static long[] newKeys(int capacity)
+    {
+        long[] keys = new long[capacity];
+        Arrays.fill(keys, FREE_KEY);
+        return keys;
+    }
+    
+    private static int slot(long key, int mask)
+    {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,159 @@
+package edu.wisc.cs.sdn;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The port on which each MAC address was last seen, kept separately for each
+ * switch. Entries not refreshed within the aging time are treated as unknown
+ * and removed. Safe for concurrent use.
+ * <p>
+ * Each entry packs the time it was last refreshed, in milliseconds, above 
+ * the port number, so a switch's table is a single primitive map.
+ */
+public class MacLearningTable 
+{
+	/** Returned for a MAC address whose port is not known (OFPP_NONE) */
+	public static final short NO_PORT = (short)0xffff;
+	
+	public static final long DEFAULT_AGING_MS = 300000;
+	
+	// Entries are refreshed at most this often, so a busy host does not take
+	// the table's write lock for every packet
+	private static final long REFRESH_MS = 1000;
+	
+	private static final long MISSING = -1;
+	
+	// Learned ports and timestamps for each switch, indexed by DPID
+	private ConcurrentMap<Long,LongLongHashMap> tables;
+	
+	// How long an entry is kept without being refreshed, in milliseconds
+	private long agingMs;
+	
+	// Counters for lookups that found a port and lookups that did not
+	private AtomicLong hits;
+	private AtomicLong misses;
+	
+	/**
+	 * Creates an empty table.
+	 * @param agingMs how long an entry is kept without being refreshed, in 
+	 * 			milliseconds
+	 */
+	public MacLearningTable(long agingMs)
+	{
+		this.tables = new ConcurrentHashMap<Long,LongLongHashMap>();
+		this.agingMs = agingMs;
+		this.hits = new AtomicLong();
+		this.misses = new AtomicLong();
+	}
+	
+	/**
+	 * Records that a MAC address was seen on a switch port.
+	 * @param dpid the switch on which the address was seen
+	 * @param mac the MAC address
+	 * @param port the port on which the address was seen
+	 * @return true if the address was not known on the switch, or was known 
+	 * 			on a different port, otherwise false
+	 */
+	public boolean learn(long dpid, long mac, short port)
+	{
+		LongLongHashMap table = tables.get(dpid);
+		if (null == table)
+		{
+			LongLongHashMap newTable = new LongLongHashMap(64, MISSING);
+			table = tables.putIfAbsent(dpid, newTable);
+			if (null == table)
+			{ table = newTable; }
+		}
+		
+		long now = System.currentTimeMillis();
+		long entry = table.get(mac);
+		if (entry != MISSING && unpackPort(entry) == port 
+				&& now - unpackTimestamp(entry) < REFRESH_MS)
+		{ return false; }
+		
+		long previous = table.put(mac, pack(now, port));
+		return (MISSING == previous || unpackPort(previous) != port
+				|| now - unpackTimestamp(previous) >= agingMs);
+	}
+	
+	/**
+	 * Gets the port on which a MAC address was last seen on a switch.
+	 * @param dpid the switch
+	 * @param mac the MAC address
+	 * @return the port; {@link #NO_PORT} if the address is not known on the 
+	 * 			switch or its entry has aged out
+	 */
+	public short getPort(long dpid, long mac)
+	{
+		LongLongHashMap table = tables.get(dpid);
+		long entry = (null == table ? MISSING : table.get(mac));
+		if (MISSING == entry)
+		{
+			misses.incrementAndGet();
+			return NO_PORT;
+		}
+		if (System.currentTimeMillis() - unpackTimestamp(entry) >= agingMs)
+		{
+			table.remove(mac);
+			misses.incrementAndGet();
+			return NO_PORT;
+		}
+		hits.incrementAndGet();
+		return unpackPort(entry);
+	}
+	
+	/**
+	 * Forgets everything learned on a switch.
+	 * @param dpid the switch
+	 */
+	public void removeSwitch(long dpid)
+	{ tables.remove(dpid); }
+	
+	/**
+	 * Removes all entries that have aged out.
+	 * @return the number of entries removed
+	 */
+	public int purgeExpired()
+	{
+		long bound = pack(System.currentTimeMillis() - agingMs, (short)0);
+		int removed = 0;
+		for (LongLongHashMap table : tables.values())
+		{ removed += table.removeValuesBelow(bound); }
+		return removed;
+	}
+	
+	/**
+	 * Get the number of entries across all switches, including entries that
+	 * have aged out but not yet been removed.
+	 */
+	public int size()
+	{
+		int size = 0;
+		for (LongLongHashMap table : tables.values())
+		{ size += table.size(); }
+		return size;
+	}
+	
+	/**
+	 * Get the number of lookups that found a port.
+	 */
+	public long getHits()
+	{ return hits.get(); }
+	
+	/**
+	 * Get the number of lookups that did not find a port.
+	 */
+	public long getMisses()
+	{ return misses.get(); }
+	
+	private static long pack(long timestamp, short port)
+	{ return (timestamp << 16) | (port & 0xffff); }
+	
+	private static long unpackTimestamp(long entry)
+	{ return entry >>> 16; }
+	
+	private static short unpackPort(long entry)
+	{ return (short)entry; }
+}
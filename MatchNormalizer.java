@@ -0,0 +1,147 @@
+package edu.wisc.cs.sdn;
+
+import org.openflow.protocol.OFMatch;
+
+/**
+ * Puts OpenFlow 1.0 matches in the form switches report them in, so a rule
+ * the controller sent compares equal to the same rule read back from a
+ * switch. A switch reports an IP address wildcarded by 32 or more bits as
+ * wildcarded by exactly 32, and reports fields that do not apply to the
+ * packets a rule matches as wildcarded: network fields unless the rule
+ * matches IP or ARP, transport ports unless it matches TCP, UDP, or ICMP,
+ * and the VLAN priority of untagged packets.
+ */
+public class MatchNormalizer
+{
+	// Ethernet types whose network fields a match can use
+	private static final short TYPE_IPV4 = 0x0800;
+	private static final short TYPE_ARP = 0x0806;
+
+	// IP protocols whose transport ports a match can use
+	private static final byte PROTO_ICMP = 1;
+	private static final byte PROTO_TCP = 6;
+	private static final byte PROTO_UDP = 17;
+
+	// VLAN id of untagged packets
+	private static final short VLAN_NONE = (short)0xffff;
+
+	// Bits that hold how many low bits of each IP address are wildcarded
+	private static final int NW_SRC_MASK = 0x3f << OFMatch.OFPFW_NW_SRC_SHIFT;
+	private static final int NW_DST_MASK = 0x3f << OFMatch.OFPFW_NW_DST_SHIFT;
+
+	/** Normal form of the wildcards of a match that matches every packet */
+	public static final int WILDCARD_ALL = normalizeWildcards(OFMatch.OFPFW_ALL);
+
+	/**
+	 * Gets the wildcards of a match in normal form.
+	 * @param match the match
+	 * @return the wildcards, with IP address wildcards no larger than 32 bits,
+	 * 			and fields that do not apply to the packets the match matches
+	 * 			wildcarded
+	 */
+	public static int normalizeWildcards(OFMatch match)
+	{
+		int wildcards = normalizeWildcards(match.getWildcards());
+
+		// Network fields apply only to IP and ARP, and transport ports only
+		// to TCP, UDP, and ICMP
+		short type = match.getDataLayerType();
+		if (!wild(wildcards, OFMatch.OFPFW_DL_TYPE) && TYPE_ARP == type)
+		{
+			wildcards |= OFMatch.OFPFW_NW_TOS | OFMatch.OFPFW_TP_SRC
+					| OFMatch.OFPFW_TP_DST;
+		}
+		else if (!wild(wildcards, OFMatch.OFPFW_DL_TYPE) && TYPE_IPV4 == type)
+		{
+			byte proto = match.getNetworkProtocol();
+			if (wild(wildcards, OFMatch.OFPFW_NW_PROTO)
+					|| (proto != PROTO_TCP && proto != PROTO_UDP
+							&& proto != PROTO_ICMP))
+			{ wildcards |= OFMatch.OFPFW_TP_SRC | OFMatch.OFPFW_TP_DST; }
+		}
+		else
+		{
+			wildcards = (wildcards & ~(NW_SRC_MASK | NW_DST_MASK))
+					| OFMatch.OFPFW_NW_SRC_ALL | OFMatch.OFPFW_NW_DST_ALL
+					| OFMatch.OFPFW_NW_PROTO | OFMatch.OFPFW_NW_TOS
+					| OFMatch.OFPFW_TP_SRC | OFMatch.OFPFW_TP_DST;
+		}
+
+		// The VLAN priority applies only to tagged packets
+		if (!wild(wildcards, OFMatch.OFPFW_DL_VLAN)
+				&& VLAN_NONE == match.getDataLayerVirtualLan())
+		{ wildcards |= OFMatch.OFPFW_DL_VLAN_PCP; }
+		return wildcards;
+	}
+
+	/**
+	 * Copies a match in normal form, with its wildcards normalized and the
+	 * fields they ignore zeroed, so equal matches are equal objects no matter
+	 * what the ignored fields held.
+	 * @param match the match
+	 * @return the copy
+	 */
+	public static OFMatch normalize(OFMatch match)
+	{
+		int wildcards = normalizeWildcards(match);
+		OFMatch normal = match.clone();
+		normal.setWildcards(wildcards);
+		if (wild(wildcards, OFMatch.OFPFW_IN_PORT))
+		{ normal.setInputPort((short)0); }
+		if (wild(wildcards, OFMatch.OFPFW_DL_VLAN))
+		{ normal.setDataLayerVirtualLan((short)0); }
+		if (wild(wildcards, OFMatch.OFPFW_DL_VLAN_PCP))
+		{ normal.setDataLayerVirtualLanPriorityCodePoint((byte)0); }
+		if (wild(wildcards, OFMatch.OFPFW_DL_SRC))
+		{ normal.setDataLayerSource(new byte[6]); }
+		if (wild(wildcards, OFMatch.OFPFW_DL_DST))
+		{ normal.setDataLayerDestination(new byte[6]); }
+		if (wild(wildcards, OFMatch.OFPFW_DL_TYPE))
+		{ normal.setDataLayerType((short)0); }
+		if (wild(wildcards, OFMatch.OFPFW_NW_PROTO))
+		{ normal.setNetworkProtocol((byte)0); }
+		if (wild(wildcards, OFMatch.OFPFW_NW_TOS))
+		{ normal.setNetworkTypeOfService((byte)0); }
+		if (wild(wildcards, OFMatch.OFPFW_TP_SRC))
+		{ normal.setTransportSource((short)0); }
+		if (wild(wildcards, OFMatch.OFPFW_TP_DST))
+		{ normal.setTransportDestination((short)0); }
+		normal.setNetworkSource(maskAddress(match.getNetworkSource(),
+				wildcards, OFMatch.OFPFW_NW_SRC_SHIFT));
+		normal.setNetworkDestination(maskAddress(
+				match.getNetworkDestination(), wildcards,
+				OFMatch.OFPFW_NW_DST_SHIFT));
+		return normal;
+	}
+
+	/**
+	 * Zeroes the bits of an IP address that a match's wildcards ignore.
+	 * @param address the address
+	 * @param wildcards the match's wildcards
+	 * @param shift {@link OFMatch#OFPFW_NW_SRC_SHIFT} for the source address,
+	 * 			or {@link OFMatch#OFPFW_NW_DST_SHIFT} for the destination
+	 * @return the address with the ignored bits zeroed
+	 */
+	public static int maskAddress(int address, int wildcards, int shift)
+	{
+		int ignored = (wildcards >> shift) & 0x3f;
+		return (ignored >= 32 ? 0 : address & (-1 << ignored));
+	}
+
+	/**
+	 * Limits the wildcards to the defined bits, and the IP address wildcards
+	 * to 32 bits.
+	 */
+	private static int normalizeWildcards(int wildcards)
+	{
+		wildcards &= OFMatch.OFPFW_ALL;
+		if (((wildcards & NW_SRC_MASK) >> OFMatch.OFPFW_NW_SRC_SHIFT) > 32)
+		{ wildcards = (wildcards & ~NW_SRC_MASK) | OFMatch.OFPFW_NW_SRC_ALL; }
+		if (((wildcards & NW_DST_MASK) >> OFMatch.OFPFW_NW_DST_SHIFT) > 32)
+		{ wildcards = (wildcards & ~NW_DST_MASK) | OFMatch.OFPFW_NW_DST_ALL; }
+		return wildcards;
+	}
+
+	private static boolean wild(int wildcards, int field)
+	{ return (wildcards & field) != 0; }
+}
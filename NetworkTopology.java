@@ -1,25 +1,35 @@
 package edu.wisc.cs.sdn;
 
 import java.util.Collection;
-import java.util.Iterator;
-import java.util.*;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import net.floodlightcontroller.core.IFloodlightProviderService;
 import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.IOFSwitchListener;
 import net.floodlightcontroller.devicemanager.IDevice;
+import net.floodlightcontroller.devicemanager.IDeviceListener;
 import net.floodlightcontroller.devicemanager.IDeviceService;
 import net.floodlightcontroller.devicemanager.SwitchPort;
+import net.floodlightcontroller.linkdiscovery.ILinkDiscovery.LDUpdate;
+import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryListener;
 import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryService;
 import net.floodlightcontroller.routing.Link;
 
 /**
  * Provides an interface to obtain information about the current network topology.
  */
-public class NetworkTopology 
+public class NetworkTopology implements IOFSwitchListener, 
+		ILinkDiscoveryListener, IDeviceListener
 {
+	/** Returned by {@link #getHostLocation(long)} for an unknown host. */
+	public static final long HOST_UNKNOWN = -1;
+	
 	// Interface to Floodlight core for interacting with connected switches
 	private IFloodlightProviderService floodlightProv;
 		
@@ -29,6 +39,36 @@ public class NetworkTopology
 	// Interface to device manager service
 	private IDeviceService deviceProv;
 	
+	// Switches in the topology, indexed by DPID
+	private Map<Long,IOFSwitch> switches;
+	
+	// Links in the topology, indexed by source DPID and destination DPID
+	private Map<Long,Map<Long,Link>> links;
+	
+	// Cost assigned to the link leaving each switch port, indexed by DPID and 
+	// port; links out of other ports have the default weight
+	private Map<Long,Map<Short,Double>> weights;
+	
+	// Vertex id assigned to each switch DPID; ids are never reused, so a switch
+	// that reconnects keeps its id
+	private Map<Long,Integer> vertexIds;
+	
+	// Notified of each change to the topology
+	private List<ITopologyListener> listeners;
+	
+	// Incremented whenever a switch or link is added to or removed from the 
+	// topology
+	private volatile long version;
+	
+	// Most recently built snapshot of the topology graph
+	private volatile TopologyGraph graph;
+	
+	// Location of each host, indexed by MAC address; see getHostLocation
+	private LongLongHashMap hostLocations;
+	
+	// Notified of each change to the host index
+	private List<IHostListener> hostListeners;
+	
 	// Interface to the logging system
 	private static Logger log = 
 			LoggerFactory.getLogger(NetworkTopology.class.getSimpleName());
@@ -45,6 +85,79 @@ public class NetworkTopology
 		this.floodlightProv = floodlightProv;
 		this.linkDiscProv = linkDiscProv;
 		this.deviceProv = deviceProv;
+		this.switches = new HashMap<Long,IOFSwitch>();
+		this.links = new HashMap<Long,Map<Long,Link>>();
+		this.weights = new HashMap<Long,Map<Short,Double>>();
+		this.vertexIds = new HashMap<Long,Integer>();
+		this.listeners = new CopyOnWriteArrayList<ITopologyListener>();
+		this.version = 0;
+		this.graph = new TopologyGraph.Builder(0, 0).build();
+		this.hostLocations = new LongLongHashMap(1024, HOST_UNKNOWN);
+		this.hostListeners = new CopyOnWriteArrayList<IHostListener>();
+	}
+	
+	/**
+	 * Registers for switch, link, and device updates and records the switches,
+	 * links, and hosts that are already known.
+	 */
+	public void startUp()
+	{
+		floodlightProv.addOFSwitchListener(this);
+		linkDiscProv.addListener(this);
+		deviceProv.addListener(this);
+		
+		for (IDevice device : this.getHosts())
+		{ this.updateHostLocation(device); }
+		
+		synchronized (this)
+		{
+			for (IOFSwitch sw : this.getSwitches())
+			{
+				switches.put(sw.getId(), sw);
+				links.put(sw.getId(), new HashMap<Long,Link>());
+				this.getVertexId(sw.getId());
+			}
+			for (Link link : this.getLinks())
+			{
+				this.addLink(link.getSrc(), link.getSrcPort(), link.getDst(), 
+						link.getDstPort());
+			}
+			version++;
+		}
+	}
+	
+	/**
+	 * Registers an object to be notified of changes to the topology.
+	 * @param listener the object to notify
+	 */
+	public void addListener(ITopologyListener listener)
+	{ listeners.add(listener); }
+	
+	/**
+	 * Registers an object to be notified of changes to the host index.
+	 * @param listener the object to notify
+	 */
+	public void addHostListener(IHostListener listener)
+	{ hostListeners.add(listener); }
+	
+	/**
+	 * Gets a snapshot of the current topology. A new snapshot is built the 
+	 * first time it is requested after the topology changes; otherwise the 
+	 * same snapshot is returned.
+	 * @return an immutable graph of switches and links
+	 */
+	public TopologyGraph getGraph()
+	{
+		TopologyGraph current = graph;
+		if (current.getVersion() == version)
+		{ return current; }
+		
+		synchronized (this)
+		{
+			if (graph.getVersion() != version)
+			{ graph = this.buildGraph(); }
+			return graph;
+		}
 	}
 	
 	/**
@@ -52,72 +165,436 @@ public class NetworkTopology
 	 * @return a list of vertices, where each vertex is a switch
 	 */
 	public Collection<Vertex> getFullTopology()
+	{ return this.getGraph().getVertices(); }
+	
+	/**
+	 * Gets the version of the topology. The version changes whenever a switch 
+	 * or link is added to or removed from the topology, or the cost of a link
+	 * changes.
+	 * @return the current version of the topology
+	 */
+	public long getVersion()
+	{ return version; }
+	
+	/**
+	 * Builds a snapshot of the topology graph from the current switches and 
+	 * links.
+	 */
+	private TopologyGraph buildGraph()
 	{
-                Collection<Vertex> topo = new ArrayList<Vertex>();
+		TopologyGraph.Builder builder = 
+				new TopologyGraph.Builder(version, vertexIds.size());
+		for (IOFSwitch sw : switches.values())
+		{ builder.addSwitch(vertexIds.get(sw.getId()), sw); }
 		
-                Collection<IOFSwitch> allSwitches =  this.getSwitches();
-                for(IOFSwitch s : allSwitches){
-                    Vertex v = new Vertex(s);
-                    topo.add(v);
-                }
-
-                Collection<Link> links =  this.getLinks();
-                for(Link l : links){
-                    //get the source vertex first
-                    Vertex src = null;
-                    for(Vertex v : topo){
-                        if(v.getSwitch().getId() == l.getSrc()){
-                           src = v;
-                           break;
-                        }
-                    }
-
-                    //find the destination vertex next
-                    Vertex dst = null;
-                    for(Vertex v : topo){
-                        if(v.getSwitch().getId() == l.getDst()){
-                           dst = v;
-                           break;
-                        }
-                    }
-
-                    if(src == null || dst == null){
-                       log.error("ERROR link has vertex not found in graph");
-                       return null;
-                    }
-
-                    src.addNeighbor(dst, l.getSrcPort(), l.getDstPort());
-                }
-                return topo;
+		for (Map<Long,Link> switchLinks : links.values())
+		{
+			for (Link link : switchLinks.values())
+			{
+				builder.addLink(vertexIds.get(link.getSrc()), 
+						link.getSrcPort(), vertexIds.get(link.getDst()), 
+						link.getDstPort(), this.getWeight(link));
+			}
+		}
+		
+		return builder.build();
+	}
+	
+	/**
+	 * Sets the cost of the links leaving some of a switch's ports. Links that
+	 * are added later out of the same ports get the same cost.
+	 * @param dpid the switch's DPID
+	 * @param portWeights the cost of the link leaving each port, indexed by 
+	 * 			port number
+	 */
+	public void setLinkWeights(long dpid, Map<Short,Double> portWeights)
+	{
+		synchronized (this)
+		{
+			Map<Short,Double> switchWeights = weights.get(dpid);
+			if (null == switchWeights)
+			{
+				switchWeights = new HashMap<Short,Double>();
+				weights.put(dpid, switchWeights);
+			}
+			
+			boolean changed = false;
+			Map<Long,Link> switchLinks = links.get(dpid);
+			for (Map.Entry<Short,Double> entry : portWeights.entrySet())
+			{
+				Double previous = switchWeights.put(entry.getKey(), 
+						entry.getValue());
+				double oldWeight = (null == previous ? Edge.DEFAULT_WEIGHT 
+						: previous);
+				double newWeight = entry.getValue();
+				if (oldWeight == newWeight || null == switchLinks)
+				{ continue; }
+				
+				for (Link link : switchLinks.values())
+				{
+					if (link.getSrcPort() == entry.getKey())
+					{
+						this.linkChanged(link, oldWeight, newWeight);
+						changed = true;
+					}
+				}
+			}
+			if (changed)
+			{ version++; }
+		}
+	}
+	
+	/**
+	 * Gets the cost assigned to a link.
+	 */
+	private double getWeight(Link link)
+	{
+		Map<Short,Double> switchWeights = weights.get(link.getSrc());
+		Double weight = (null == switchWeights ? null 
+				: switchWeights.get(link.getSrcPort()));
+		return (null == weight ? Edge.DEFAULT_WEIGHT : weight);
+	}
+	
+	/**
+	 * Gets the vertex id assigned to a switch, assigning one if needed.
+	 */
+	private int getVertexId(long dpid)
+	{
+		Integer id = vertexIds.get(dpid);
+		if (null == id)
+		{
+			id = vertexIds.size();
+			vertexIds.put(dpid, id);
+		}
+		return id;
+	}
+	
+	/**
+	 * Adds a switch, replacing any existing switch with the same DPID, along 
+	 * with its known links.
+	 * @param sw the switch to add
+	 */
+	private void addSwitch(IOFSwitch sw)
+	{
+		this.removeSwitch(sw.getId());
+		switches.put(sw.getId(), sw);
+		links.put(sw.getId(), new HashMap<Long,Link>());
+		int id = this.getVertexId(sw.getId());
+		for (ITopologyListener listener : listeners)
+		{ listener.switchChanged(id, version + 1); }
+		
+		for (Link link : this.getLinks())
+		{
+			if (link.getSrc() == sw.getId() || link.getDst() == sw.getId())
+			{
+				this.addLink(link.getSrc(), link.getSrcPort(), link.getDst(), 
+						link.getDstPort());
+			}
+		}
+	}
+	
+	/**
+	 * Removes a switch and all links to and from it.
+	 * @param dpid the switch's DPID
+	 * @return true if the topology changed, otherwise false
+	 */
+	private boolean removeSwitch(long dpid)
+	{
+		if (null == switches.remove(dpid))
+		{ return false; }
+		
+		for (Link link : links.remove(dpid).values())
+		{
+			this.linkChanged(link, this.getWeight(link), 
+					Double.POSITIVE_INFINITY);
+		}
+		for (Map<Long,Link> switchLinks : links.values())
+		{
+			Link link = switchLinks.remove(dpid);
+			if (link != null)
+			{
+				this.linkChanged(link, this.getWeight(link), 
+						Double.POSITIVE_INFINITY);
+			}
+		}
+		
+		for (ITopologyListener listener : listeners)
+		{ listener.switchChanged(vertexIds.get(dpid), version + 1); }
+		return true;
+	}
+	
+	/**
+	 * Adds a link between two known switches.
+	 * @return true if the topology changed, otherwise false
+	 */
+	private boolean addLink(long srcId, short srcPort, long dstId, 
+			short dstPort)
+	{
+		if (!switches.containsKey(srcId) || !switches.containsKey(dstId))
+		{
+			log.debug(String.format("Ignoring link %d:%d -> %d:%d to unknown switch",
+					srcId, srcPort, dstId, dstPort));
+			return false;
+		}
+		
+		Link existing = links.get(srcId).get(dstId);
+		if (existing != null && existing.getSrcPort() == srcPort
+				&& existing.getDstPort() == dstPort)
+		{ return false; }
+		
+		Link added = new Link(srcId, srcPort, dstId, dstPort);
+		links.get(srcId).put(dstId, added);
+		this.linkChanged(added, (null == existing ? Double.POSITIVE_INFINITY 
+				: this.getWeight(existing)), this.getWeight(added));
+		return true;
+	}
+	
+	/**
+	 * Removes a link, if the topology includes it.
+	 * @return true if the topology changed, otherwise false
+	 */
+	private boolean removeLink(long srcId, short srcPort, long dstId, 
+			short dstPort)
+	{
+		Map<Long,Link> switchLinks = links.get(srcId);
+		if (null == switchLinks)
+		{ return false; }
+		
+		Link existing = switchLinks.get(dstId);
+		if (null == existing || existing.getSrcPort() != srcPort
+				|| existing.getDstPort() != dstPort)
+		{ return false; }
+		
+		switchLinks.remove(dstId);
+		this.linkChanged(existing, this.getWeight(existing), 
+				Double.POSITIVE_INFINITY);
+		return true;
+	}
+	
+	/**
+	 * Notifies listeners that the weight of a link has changed. Changes are
+	 * reported as part of the next version of the topology.
+	 */
+	private void linkChanged(Link link, double oldWeight, double newWeight)
+	{
+		int srcId = vertexIds.get(link.getSrc());
+		int dstId = vertexIds.get(link.getDst());
+		for (ITopologyListener listener : listeners)
+		{
+			listener.linkWeightChanged(srcId, dstId, oldWeight, newWeight, 
+					version + 1);
+		}
+	}
+	
+	/**
+	 * Applies a single link discovery update to the topology.
+	 * @return true if the topology changed, otherwise false
+	 */
+	private boolean applyUpdate(LDUpdate update)
+	{
+		switch (update.getOperation())
+		{
+		case LINK_UPDATED:
+			return this.addLink(update.getSrc(), update.getSrcPort(), 
+					update.getDst(), update.getDstPort());
+		case LINK_REMOVED:
+			return this.removeLink(update.getSrc(), update.getSrcPort(), 
+					update.getDst(), update.getDstPort());
+		default:
+			return false;
+		}
+	}
+	
+	/**
+	 * Updates the topology when a link is added or removed.
+	 */
+	public void linkDiscoveryUpdate(LDUpdate update)
+	{
+		synchronized (this)
+		{
+			if (this.applyUpdate(update))
+			{ version++; }
+		}
+	}
+	
+	/**
+	 * Updates the topology when several links are added or removed.
+	 */
+	public void linkDiscoveryUpdate(List<LDUpdate> updateList)
+	{
+		synchronized (this)
+		{
+			boolean changed = false;
+			for (LDUpdate update : updateList)
+			{ changed |= this.applyUpdate(update); }
+			if (changed)
+			{ version++; }
+		}
+	}
+	
+	/**
+	 * Adds a switch to the topology when it connects.
+	 */
+	@Override
+	public void addedSwitch(IOFSwitch sw) 
+	{
+		synchronized (this)
+		{
+			this.addSwitch(sw);
+			version++;
+		}
+	}
+	
+	/**
+	 * Removes a switch from the topology when it disconnects.
+	 */
+	@Override
+	public void removedSwitch(IOFSwitch sw) 
+	{
+		synchronized (this)
+		{
+			if (this.removeSwitch(sw.getId()))
+			{ version++; }
+		}
+	}
+	
+	/**
+	 * Port changes are reflected in the topology through link updates.
+	 */
+	@Override
+	public void switchPortChanged(Long switchId) 
+	{ }
+	
+	/**
+	 * Provides an identifier for our switch and link listener.
+	 */
+	@Override
+	public String getName() 
+	{
+		return NetworkTopology.class.getSimpleName();
 	}
 
 	/**
 	 * Gets the switch and port to which a host is connected.
 	 * @param mac the host's MAC address
+	 * @return the switch and port; null if the host or its switch is unknown
 	 */
 	public SwitchPort getSwitchPortForHost(long mac)
     {
-		// Find device based on MAC address address
-		Iterator<? extends IDevice> deviceIterator = 
-				deviceProv.queryDevices(mac, null, null, null, null);
+		long location = this.getHostLocation(mac);
+		if (HOST_UNKNOWN == location)
+		{ return null; }
 		
-		// Select first matching device
-		if (deviceIterator.hasNext()) 
+		Vertex vertex = this.getGraph().getVertexById(getLocationVertexId(location));
+		if (null == vertex)
+		{ return null; }
+		return new SwitchPort(vertex.getSwitch().getId(), 
+				getLocationPort(location));
+	}
+	
+	/**
+	 * Gets the location of a host without allocating any objects. The location
+	 * packs the id of the vertex for the host's switch and the switch port;
+	 * use {@link #getLocationVertexId(long)} and {@link #getLocationPort(long)}
+	 * to unpack it.
+	 * @param mac the host's MAC address
+	 * @return the host's location; {@link #HOST_UNKNOWN} if the host is unknown
+	 */
+	public long getHostLocation(long mac)
+	{ return hostLocations.get(mac); }
+	
+	/**
+	 * Gets the id of the vertex for the switch in a host location.
+	 * @param location a location returned by {@link #getHostLocation(long)}
+	 */
+	public static int getLocationVertexId(long location)
+	{ return (int)(location >>> 16); }
+	
+	/**
+	 * Gets the switch port in a host location.
+	 * @param location a location returned by {@link #getHostLocation(long)}
+	 */
+	public static short getLocationPort(long location)
+	{ return (short)location; }
+	
+	/**
+	 * Records the first attachment point of a host in the host index.
+	 * @param device the host
+	 */
+	private void updateHostLocation(IDevice device)
+	{
+		SwitchPort[] deviceSwitchPorts = device.getAttachmentPoints();
+		if (deviceSwitchPorts.length < 1)
 		{
-			IDevice device = deviceIterator.next();
-			
-			// Get device attachment points
-			SwitchPort[] deviceSwitchPorts = device.getAttachmentPoints();
-			
-			// Select first matching attachment point
-			if (deviceSwitchPorts.length >= 1) 
-			{
-				return deviceSwitchPorts[0];
-			}
+			this.removeHostLocation(device);
+			return;
 		}
-		return null;
+		
+		int vertexId;
+		synchronized (this)
+		{ vertexId = this.getVertexId(deviceSwitchPorts[0].getSwitchDPID()); }
+		long location = ((long)vertexId << 16) 
+				| (deviceSwitchPorts[0].getPort() & 0xffff);
+		long previous = hostLocations.put(device.getMACAddress(), location);
+		if (previous != location)
+		{ this.hostChanged(device.getMACAddress(), previous, location); }
 	}
 	
+	/**
+	 * Removes a host from the host index.
+	 * @param device the host
+	 */
+	private void removeHostLocation(IDevice device)
+	{
+		long previous = hostLocations.remove(device.getMACAddress());
+		if (previous != HOST_UNKNOWN)
+		{ this.hostChanged(device.getMACAddress(), previous, HOST_UNKNOWN); }
+	}
+	
+	/**
+	 * Notifies listeners that a host's location has changed.
+	 */
+	private void hostChanged(long mac, long oldLocation, long newLocation)
+	{
+		for (IHostListener listener : hostListeners)
+		{ listener.hostLocationChanged(mac, oldLocation, newLocation); }
+	}
+	
+	/**
+	 * Adds a host to the host index when it is discovered.
+	 */
+	@Override
+	public void deviceAdded(IDevice device)
+	{ this.updateHostLocation(device); }
+	
+	/**
+	 * Removes a host from the host index when it ages out.
+	 */
+	@Override
+	public void deviceRemoved(IDevice device)
+	{ this.removeHostLocation(device); }
+	
+	/**
+	 * Updates the host index when a host moves to a different switch port.
+	 */
+	@Override
+	public void deviceMoved(IDevice device)
+	{ this.updateHostLocation(device); }
+	
+	/**
+	 * The host index does not track IP addresses.
+	 */
+	@Override
+	public void deviceIPV4AddrChanged(IDevice device)
+	{ }
+	
+	/**
+	 * The host index does not track VLANs.
+	 */
+	@Override
+	public void deviceVlanChanged(IDevice device)
+	{ }
+	
 	/**
 	 * Get a list of all hosts in the network.
 	 */
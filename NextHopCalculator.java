@@ -0,0 +1,318 @@
+package edu.wisc.cs.sdn;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.floodlightcontroller.core.util.SingletonTask;
+
+/**
+ * Precomputes the next hop between every pair of switches whenever the 
+ * topology changes, so packet-ins can be routed without computing any paths.
+ * One shortest path tree is computed per switch, in parallel on a fork/join 
+ * pool, and the finished table replaces the previous one in a single write.
+ * <p>
+ * A backup next hop is also chosen for each pair, as a loop-free alternate:
+ * a neighbor strictly closer to the destination than the source is, 
+ * preferring neighbors whose own shortest path avoids the primary next hop.
+ * Traffic can be moved to the backup as soon as the primary link fails, 
+ * before the table is recomputed.
+ * <p>
+ * Choosing backups needs the distance between every pair of switches, so the
+ * distances from all sources are kept until the backups are chosen. They are
+ * stored as floats, since they are only compared. With the two int tables, 
+ * a computation holds 12 bytes per pair of switches, or about 1.2 GB at 
+ * 10,000 switches; precomputing next hops is meant for topologies well below
+ * that.
+ */
+public class NextHopCalculator implements ITopologyListener
+{
+	// Wait this long after a topology change before recomputing, so a burst 
+	// of changes results in a single recomputation
+	private static final long RECOMPUTE_DELAY_MS = 100;
+	
+	// Number of sources to handle in one fork/join task
+	private static final int SOURCES_PER_TASK = 8;
+	
+	// Interface for obtaining network topology information
+	private NetworkTopology netTopo;
+	
+	// Pool on which shortest path trees are computed
+	private ForkJoinPool pool;
+	
+	// Recomputes the table after topology changes
+	private SingletonTask recomputeTask;
+	
+	// Most recently computed table; null until the first computation finishes
+	private volatile NextHopTable table;
+	
+	// Time taken by the most recent computation
+	private volatile long lastComputeMillis;
+	
+	// Interface to the logging system
+	private static Logger log = 
+			LoggerFactory.getLogger(NextHopCalculator.class.getSimpleName());
+	
+	/**
+	 * Creates a next hop calculator.
+	 * @param netTopo interface to access network topology information
+	 * @param ses executor on which to schedule recomputations
+	 * @param parallelism number of threads to compute trees on
+	 */
+	public NextHopCalculator(NetworkTopology netTopo, 
+			ScheduledExecutorService ses, int parallelism)
+	{
+		this.netTopo = netTopo;
+		this.pool = new ForkJoinPool(parallelism);
+		this.recomputeTask = new SingletonTask(ses, new Runnable() {
+			@Override
+			public void run()
+			{ recompute(); }
+		});
+		this.table = null;
+	}
+	
+	/**
+	 * Gets the most recently computed next hop table. The table may be for an
+	 * older version of the topology; callers should check its version.
+	 * @return the next hop table; null if none has been computed yet
+	 */
+	public NextHopTable getTable()
+	{ return table; }
+	
+	/**
+	 * Gets the time taken to compute the current table.
+	 * @return the time in milliseconds
+	 */
+	public long getLastComputeMillis()
+	{ return lastComputeMillis; }
+	
+	/**
+	 * Schedules a recomputation of the table.
+	 */
+	public void scheduleRecompute()
+	{ recomputeTask.reschedule(RECOMPUTE_DELAY_MS, TimeUnit.MILLISECONDS); }
+	
+	/**
+	 * Computes the table for the current topology, unless it is up to date.
+	 */
+	public void recompute()
+	{
+		TopologyGraph graph = netTopo.getGraph();
+		NextHopTable current = table;
+		if (current != null && current.getVersion() == graph.getVersion())
+		{ return; }
+		
+		long start = System.nanoTime();
+		NextHopTable computed = compute(graph, pool);
+		lastComputeMillis = TimeUnit.NANOSECONDS.toMillis(
+				System.nanoTime() - start);
+		table = computed;
+		log.info(String.format(
+				"Computed next hops for %d switches in %d ms; %d%% have backups", 
+				graph.getVertices().size(), lastComputeMillis, 
+				Math.round(100 * computed.getBackupCoverage())));
+		
+		// The topology may have changed again before its listeners were done
+		if (netTopo.getVersion() != computed.getVersion())
+		{ this.scheduleRecompute(); }
+	}
+	
+	/**
+	 * Computes the next hop between every pair of switches in a graph.
+	 * @param graph the graph
+	 * @param pool the pool on which to compute shortest path trees
+	 * @return the next hop table
+	 */
+	static NextHopTable compute(TopologyGraph graph, ForkJoinPool pool)
+	{
+		int n = graph.getVertexCount();
+		int[][] nextHops = new int[n][];
+		int[][] backupHops = new int[n][];
+		float[][] distances = new float[n][];
+		pool.invoke(new RowTask(graph, nextHops, backupHops, distances, false,
+				0, n));
+		pool.invoke(new RowTask(graph, nextHops, backupHops, distances, true,
+				0, n));
+		return new NextHopTable(graph.getVersion(), nextHops, backupHops);
+	}
+	
+	/**
+	 * Computes the rows of the next hop table for a range of sources, 
+	 * splitting the range until it is small enough to handle directly. The 
+	 * primary rows and distances for all sources must be computed before any
+	 * backup rows.
+	 */
+	private static class RowTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private final TopologyGraph graph;
+		private final int[][] nextHops;
+		private final int[][] backupHops;
+		private final float[][] distances;
+		private final boolean backup;
+		private final int from;
+		private final int to;
+		
+		RowTask(TopologyGraph graph, int[][] nextHops, int[][] backupHops,
+				float[][] distances, boolean backup, int from, int to)
+		{
+			this.graph = graph;
+			this.nextHops = nextHops;
+			this.backupHops = backupHops;
+			this.distances = distances;
+			this.backup = backup;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected void compute()
+		{
+			if (to - from <= SOURCES_PER_TASK)
+			{
+				for (int src = from; src < to; src++)
+				{
+					if (backup)
+					{
+						backupHops[src] = computeBackupRow(graph, src, 
+								nextHops, distances);
+					}
+					else
+					{ nextHops[src] = computeRow(graph, src, distances); }
+				}
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new RowTask(graph, nextHops, backupHops, distances, 
+							backup, from, mid),
+					new RowTask(graph, nextHops, backupHops, distances, 
+							backup, mid, to));
+		}
+	}
+	
+	/**
+	 * Computes the first hop from one source to every destination, and 
+	 * records the distance from the source to every destination.
+	 * @return the row of the table for the source; null if the source is not 
+	 * 			in the graph
+	 */
+	private static int[] computeRow(TopologyGraph graph, int src, 
+			float[][] distances)
+	{
+		Vertex source = graph.getVertexById(src);
+		if (null == source)
+		{ return null; }
+		
+		ShortestPathTree tree = Dijkstra.computeShortestPaths(
+				graph.getCompactGraph(), src, false);
+		int n = graph.getVertexCount();
+		float[] distance = new float[n];
+		for (int dst = 0; dst < n; dst++)
+		{ distance[dst] = (float)tree.getDistance(dst); }
+		distances[src] = distance;
+		int[] row = new int[n];
+		Arrays.fill(row, NextHopTable.NO_NEXT_HOP);
+		
+		// Walk up the tree from each destination until reaching a vertex whose
+		// first hop is known or whose parent is the source, then fill in every
+		// vertex passed along the way
+		int[] chain = new int[n];
+		for (int dst = 0; dst < n; dst++)
+		{
+			if (dst == src || row[dst] != NextHopTable.NO_NEXT_HOP
+					|| tree.getPreviousId(dst) < 0)
+			{ continue; }
+			
+			int length = 0;
+			int v = dst;
+			while (row[v] == NextHopTable.NO_NEXT_HOP 
+					&& tree.getPreviousId(v) != src)
+			{
+				chain[length++] = v;
+				v = tree.getPreviousId(v);
+			}
+			int firstHop = (row[v] != NextHopTable.NO_NEXT_HOP ? row[v] : v);
+			row[v] = firstHop;
+			while (length > 0)
+			{ row[chain[--length]] = firstHop; }
+		}
+		return row;
+	}
+	
+	/**
+	 * Chooses the backup first hop from one source to every destination. A
+	 * neighbor qualifies if it is strictly closer to the destination than the
+	 * source is, so it never sends the traffic back. Among those, neighbors 
+	 * whose shortest path avoids the primary next hop are preferred, then 
+	 * the cheapest total path, then the lowest id.
+	 * @return the row of backups for the source; null if the source is not in
+	 * 			the graph
+	 */
+	private static int[] computeBackupRow(TopologyGraph graph, int src,
+			int[][] nextHops, float[][] distances)
+	{
+		Vertex source = graph.getVertexById(src);
+		if (null == source)
+		{ return null; }
+		
+		int n = graph.getVertexCount();
+		int[] row = new int[n];
+		Arrays.fill(row, NextHopTable.NO_NEXT_HOP);
+		for (int dst = 0; dst < n; dst++)
+		{
+			int primary = nextHops[src][dst];
+			if (NextHopTable.NO_NEXT_HOP == primary)
+			{ continue; }
+			
+			float srcDistance = distances[src][dst];
+			boolean bestAvoidsPrimary = false;
+			double bestCost = Double.POSITIVE_INFINITY;
+			for (Edge e : source.getAdjacencies())
+			{
+				int neighbor = e.getDstVertex().getId();
+				if (neighbor == primary || null == distances[neighbor])
+				{ continue; }
+				float neighborDistance = distances[neighbor][dst];
+				if (!(neighborDistance < srcDistance))
+				{ continue; }
+				
+				boolean avoidsPrimary = (neighborDistance 
+						< distances[neighbor][primary] 
+						+ distances[primary][dst]);
+				double cost = e.getWeight() + neighborDistance;
+				if ((avoidsPrimary && !bestAvoidsPrimary)
+						|| (avoidsPrimary == bestAvoidsPrimary 
+						&& (cost < bestCost || (cost == bestCost 
+						&& neighbor < row[dst]))))
+				{
+					row[dst] = neighbor;
+					bestAvoidsPrimary = avoidsPrimary;
+					bestCost = cost;
+				}
+			}
+		}
+		return row;
+	}
+	
+	/**
+	 * Schedules a recomputation when a link changes.
+	 */
+	@Override
+	public void linkWeightChanged(int srcId, int dstId, double oldWeight, 
+			double newWeight, long version)
+	{ this.scheduleRecompute(); }
+	
+	/**
+	 * Schedules a recomputation when a switch changes.
+	 */
+	@Override
+	public void switchChanged(int id, long version)
+	{ this.scheduleRecompute(); }
+}
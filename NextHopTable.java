@@ -0,0 +1,100 @@
+package edu.wisc.cs.sdn;
+
+/**
+ * The first hop on the shortest path between every pair of switches, for one
+ * version of the topology, along with a backup first hop to use if the link 
+ * to the first hop fails. The table is indexed by vertex id and never 
+ * changes once it is built.
+ */
+class NextHopTable
+{
+    /** Marks a pair of switches with no path between them. */
+    public static final int NO_NEXT_HOP = -1;
+    
+    private final long version;
+    private final int[][] nextHops;
+    private final int[][] backupHops;
+    
+    /**
+     * Create a next hop table.
+     * @param version the version of the topology the table reflects
+     * @param nextHops for each source vertex id, the id of the neighbor that is
+     * 			the first hop toward each destination vertex id; null rows for
+     * 			ids that are not in the graph
+     * @param backupHops for each source vertex id, the id of the neighbor to 
+     * 			use toward each destination vertex id if the link to the first
+     * 			hop fails; null rows for ids that are not in the graph
+     */
+    NextHopTable(long version, int[][] nextHops, int[][] backupHops)
+    {
+    	this.version = version;
+    	this.nextHops = nextHops;
+    	this.backupHops = backupHops;
+    }
+    
+    /**
+     * Get the version of the topology the table reflects.
+     * @return the version of the topology the table reflects
+     */
+    public long getVersion()
+    { return this.version; }
+    
+    /**
+     * Get the first hop on the shortest path between two switches.
+     * @param srcId the id of the vertex where the path starts
+     * @param dstId the id of the vertex where the path ends
+     * @return the id of the neighbor of the source that is the first hop;
+     * 			{@link #NO_NEXT_HOP} if there is no path, or the source and 
+     * 			destination are the same
+     */
+    public int getNextHop(int srcId, int dstId)
+    {
+    	if (srcId >= nextHops.length || null == nextHops[srcId] 
+    			|| dstId >= nextHops[srcId].length)
+    	{ return NO_NEXT_HOP; }
+    	return nextHops[srcId][dstId];
+    }
+    
+    /**
+     * Get the backup first hop between two switches. The backup neighbor is 
+     * strictly closer to the destination than the source is, so packets sent
+     * to it never loop back to the source. Where possible its shortest path 
+     * also avoids the first hop switch.
+     * @param srcId the id of the vertex where the path starts
+     * @param dstId the id of the vertex where the path ends
+     * @return the id of the neighbor of the source to use if the link to the 
+     * 			first hop fails; {@link #NO_NEXT_HOP} if there is no such 
+     * 			neighbor
+     */
+    public int getBackupHop(int srcId, int dstId)
+    {
+    	if (srcId >= backupHops.length || null == backupHops[srcId] 
+    			|| dstId >= backupHops[srcId].length)
+    	{ return NO_NEXT_HOP; }
+    	return backupHops[srcId][dstId];
+    }
+    
+    /**
+     * Get the fraction of reachable switch pairs that have a backup first hop.
+     * @return a value between 0 and 1
+     */
+    public double getBackupCoverage()
+    {
+    	long paths = 0;
+    	long covered = 0;
+    	for (int src = 0; src < nextHops.length; src++)
+    	{
+    		if (null == nextHops[src])
+    		{ continue; }
+    		for (int dst = 0; dst < nextHops[src].length; dst++)
+    		{
+    			if (NO_NEXT_HOP == nextHops[src][dst])
+    			{ continue; }
+    			paths++;
+    			if (backupHops[src][dst] != NO_NEXT_HOP)
+    			{ covered++; }
+    		}
+    	}
+    	return (0 == paths ? 1.0 : (double)covered / paths);
+    }
+}
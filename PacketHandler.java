@@ -1,8 +1,11 @@
 package edu.wisc.cs.sdn;
 
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Arrays;
+import java.util.Map;
 
 import org.openflow.protocol.OFMatch;
 import org.openflow.protocol.OFMessage;
@@ -14,10 +17,6 @@ import org.slf4j.LoggerFactory;
 import net.floodlightcontroller.core.FloodlightContext;
 import net.floodlightcontroller.core.IOFMessageListener;
 import net.floodlightcontroller.core.IOFSwitch;
-import net.floodlightcontroller.util.MACAddress;
-import net.floodlightcontroller.devicemanager.IDevice;
-import net.floodlightcontroller.devicemanager.SwitchPort;
-import net.floodlightcontroller.devicemanager.SwitchPort.ErrorStatus;
 
 
 /**
@@ -27,8 +26,26 @@ public class PacketHandler implements IOFMessageListener
 {	
 	private NetworkTopology netTopo;
 	
+	private PathCache pathCache;
+	
+	private NextHopCalculator nextHopCalculator;
+	
 	private FlowInstaller flowInstaller;
 	
+	private BarrierTracker barrierTracker;
+	
+	private PacketInDispatcher dispatcher;
+	
+	private InFlightFlowTable inFlightFlows;
+	
+	private FlowHasher flowHasher;
+	
+	private LinkFlowCounter linkFlowCounter;
+	
+	private PipelineStats stats;
+	
+	private LinkFlowIndex linkFlowIndex;
+	
 	// Interface to the logging system
 	protected static Logger log = 
 			LoggerFactory.getLogger(PacketHandler.class.getSimpleName());
@@ -36,12 +53,45 @@ public class PacketHandler implements IOFMessageListener
 	/**
 	 * Create a new object to handle packet-in messages from switches.
 	 * @param netTopo interface to access network topology information
+	 * @param pathCache cache of shortest paths from each switch
+	 * @param nextHopCalculator precomputed next hops between all switches; 
+	 * 			null if paths are only computed on demand
 	 * @param flowInstaller interface to install flow table rules
+	 * @param barrierTracker tracker used to confirm rules are installed 
+	 * 			downstream before a packet is released; null if packets are 
+	 * 			released without waiting
+	 * @param dispatcher workers that process packet-ins off the switch I/O 
+	 * 			threads; null if packet-ins are processed as they are received
+	 * @param inFlightFlows paths of flows being set up, used to forward 
+	 * 			duplicate packet-ins without computing the path again; null if
+	 * 			every packet-in computes its path
+	 * @param flowHasher hashes flows to choose among equal-cost paths; null if
+	 * 			every flow takes the same shortest path
+	 * @param linkFlowCounter counts the flows routed over each link; null if 
+	 * 			flows are not counted
+	 * @param stats latency of each stage and counts of what the handler did;
+	 * 			null if they are not recorded
+	 * @param linkFlowIndex paths of installed flows, indexed by the links they
+	 * 			cross; null if flows are not moved off failed links
 	 */
-	public PacketHandler(NetworkTopology netTopo, FlowInstaller flowInstaller)
+	public PacketHandler(NetworkTopology netTopo, PathCache pathCache,
+			NextHopCalculator nextHopCalculator, FlowInstaller flowInstaller,
+			BarrierTracker barrierTracker, PacketInDispatcher dispatcher,
+			InFlightFlowTable inFlightFlows, FlowHasher flowHasher,
+			LinkFlowCounter linkFlowCounter, PipelineStats stats,
+			LinkFlowIndex linkFlowIndex)
 	{
 		this.netTopo = netTopo;
+		this.pathCache = pathCache;
+		this.nextHopCalculator = nextHopCalculator;
 		this.flowInstaller = flowInstaller;
+		this.barrierTracker = barrierTracker;
+		this.dispatcher = dispatcher;
+		this.inFlightFlows = inFlightFlows;
+		this.flowHasher = flowHasher;
+		this.linkFlowCounter = linkFlowCounter;
+		this.stats = stats;
+		this.linkFlowIndex = linkFlowIndex;
 	}
 	
 	/**
@@ -76,25 +126,50 @@ public class PacketHandler implements IOFMessageListener
 	 * appropriate control logic.
 	 */
 	@Override
-	public Command receive(IOFSwitch sw, OFMessage msg, FloodlightContext cntx) 
+	public Command receive(final IOFSwitch sw, OFMessage msg, 
+			FloodlightContext cntx) 
     {
 		// We only care about packet-in messages
 		if (msg.getType() != OFType.PACKET_IN) 
 		 { return Command.CONTINUE; }
-		OFPacketIn pktInMsg = (OFPacketIn)msg;
+		final OFPacketIn pktInMsg = (OFPacketIn)msg;
+		long start = (null == stats ? 0 : System.nanoTime());
 		
-		// Create match based on packet
-        OFMatch match = new OFMatch();
-        match.loadFromPacket(pktInMsg.getPacketData(), pktInMsg.getInPort());
+		// Parse the packet's headers, unless another listener already has
+        final PacketInContext headers = PacketInContext.get(cntx, pktInMsg);
+        if (stats != null)
+        {
+        	stats.record(PipelineStats.Stage.PARSE, start);
+        	stats.count(PipelineStats.Counter.PACKET_INS, 1);
+        }
         
         // Ignore packets of type 0x86DD
-        if ((short)0x86DD == match.getDataLayerType())
-        { return Command.CONTINUE; }
+        if ((short)0x86DD == headers.getEtherType())
+        {
+        	if (stats != null)
+        	{ stats.count(PipelineStats.Counter.IPV6_SKIPPED, 1); }
+        	return Command.CONTINUE;
+        }
         
-		log.debug(String.format("Received a packet-in message from switch %d",
-				sw.getId()));
+		if (log.isDebugEnabled())
+		{
+			log.debug(String.format(
+					"Received a packet-in message from switch %d", sw.getId()));
+		}
 		
-        installPathForFlow(sw, pktInMsg);
+		// Process the packet-in on the worker for its flow, if there are 
+		// workers, so the switch's other messages are not held up
+		if (null == dispatcher)
+		{ installPathForFlow(sw, pktInMsg, headers); }
+		else
+		{
+			dispatcher.dispatch(sw, pktInMsg, headers.getFlowHash(), 
+					new Runnable() {
+				@Override
+				public void run()
+				{ installPathForFlow(sw, pktInMsg, headers); }
+			});
+		}
        
 		return Command.CONTINUE;
     }
@@ -104,68 +179,56 @@ public class PacketHandler implements IOFMessageListener
 	 * Performs flow installation based on a packet-in OpenFlow message for an 
 	 * IPv4 packet.
 	 */
-	private void installPathForFlow(IOFSwitch inSwitch, OFPacketIn pktInMsg) 
+	private void installPathForFlow(IOFSwitch inSwitch, OFPacketIn pktInMsg,
+			PacketInContext headers) 
     {	
-		// Create match based on packet
-        OFMatch match = new OFMatch();
-        match.loadFromPacket(pktInMsg.getPacketData(), pktInMsg.getInPort());
-
-        //log.debug("INSTALL PATH FOR FLOW CALLED!!!!");
-
-
+        OFMatch match = headers.getMatch();
+        long start = (null == stats ? 0 : System.nanoTime());
 
-        byte[] dstMacBytes = match.getDataLayerDestination();
-        MACAddress dstMac = new MACAddress(dstMacBytes);
-        long dstMacLong = dstMac.toLong();
-
-        IDevice device = null;
-        for(IDevice d : netTopo.getHosts()){
-            long macToCompare = d.getMACAddress();
-            if(macToCompare == dstMacLong){
-               device = d;
-               break;
+        // Forward a packet of a flow that is already being set up along the 
+        // path chosen for it
+        if(inFlightFlows != null){
+            Short outPort = inFlightFlows.getOutPort(match, inSwitch.getId());
+            if(outPort != null){
+                boolean sent = flowInstaller.forwardPacket(inSwitch, outPort, pktInMsg);
+                if(stats != null){
+                    stats.record(PipelineStats.Stage.PACKET_OUT, start);
+                    this.countSent(0, sent);
+                }
+                return;
             }
         }
 
-        //this should only return 1 switchPort right?
-        //if it doesnt, that would imply that this host is connected to 2 switches
+        //log.debug("INSTALL PATH FOR FLOW CALLED!!!!");
 
-        SwitchPort[] switchPorts = device.getAttachmentPoints();
-        long dstId = -1;
-        short dstPort = -1;
-        for(int i = 0; i < switchPorts.length; i++){
-            dstId = switchPorts[i].getSwitchDPID();
-            dstPort = (short)switchPorts[i].getPort();
-        }
 
-        if(dstId == -1 || dstPort == -1){
+
+        // Look up where the destination host is attached
+        long dstLocation = netTopo.getHostLocation(headers.getDstMac());
+        if(stats != null){
+            start = stats.record(PipelineStats.Stage.HOST_LOOKUP, start);
+        }
+        if(dstLocation == NetworkTopology.HOST_UNKNOWN){
+            if(stats != null){
+                stats.count(PipelineStats.Counter.MISSING_DEVICES, 1);
+            }
             log.error("ERROR dstId never found");
             return;
         }
+        int dstId = NetworkTopology.getLocationVertexId(dstLocation);
+        short dstPort = NetworkTopology.getLocationPort(dstLocation);
 
         
         ///////////////////////////////////////////////////////////////////////
         
-        // Get the full network topology
-        Collection<Vertex> fullTopo = netTopo.getFullTopology();
-        
-        Vertex srcVertex = null;
-        Vertex dstVertex = null;
+        // Get a snapshot of the network topology
+        TopologyGraph graph = netTopo.getGraph();
         
-        for(Vertex v : fullTopo){
-            if(v.getSwitch().getId() == dstId){
-               dstVertex = v;
-               break;
-            }
+        Vertex srcVertex = graph.getVertexByDpid(inSwitch.getId());
+        Vertex dstVertex = graph.getVertexById(dstId);
+        if(stats != null){
+            start = stats.record(PipelineStats.Stage.TOPOLOGY, start);
         }
-
-        for(Vertex v : fullTopo){
-            if(v.getSwitch().getId() == inSwitch.getId()){
-               srcVertex = v;
-               break;
-            }
-        }
-
         
         ///////////////////////////////////////////////////////////////////////
         
@@ -175,31 +238,258 @@ public class PacketHandler implements IOFMessageListener
         	return;
         }
         
-        
         // Find the shortest path through the network from source to destination
-        Dijkstra.computePaths(srcVertex);
-        List<Vertex> path = Dijkstra.getShortestPathTo(dstVertex);
+        int hash = (null == flowHasher ? 0 : flowHasher.hash(headers));
+        List<Edge> hops = getPath(graph, srcVertex, dstVertex, hash);
+        if(stats != null){
+            start = stats.record(PipelineStats.Stage.PATH, start);
+        }
+        if(linkFlowCounter != null){
+            linkFlowCounter.record(hops);
+        }
+
+        if(srcVertex == dstVertex){
+           // Send the rule and release the packet with a single write and flush
+           FlowModBatch batch = new FlowModBatch();
+           if(inFlightFlows != null){
+               inFlightFlows.record(match, Collections.singletonMap(inSwitch.getId(), dstPort));
+           }
+           flowInstaller.installRuleAndForward(batch, inSwitch, pktInMsg.getInPort(), dstPort, match, pktInMsg);
+           boolean sent = flowInstaller.sendBatch(batch, false);
+           if(stats != null){
+               stats.record(PipelineStats.Stage.PACKET_OUT, start);
+               this.countSent(1, sent);
+               if(sent){
+                   stats.count(PipelineStats.Counter.FLOWS_INSTALLED, 1);
+               }
+           }
+           return;
+        }
 
-        FlowInstaller installer = new FlowInstaller();
-        if(srcVertex.compareTo(dstVertex) == 0){
-           installer.installRule(inSwitch, pktInMsg.getInPort(), dstPort, match);
-           installer.forwardPacket(inSwitch, dstPort, pktInMsg);
+        if(hops.isEmpty()){
+           log.error("No path to destination vertex");
            return;
         }
 
-        for(int i = 0; i < path.size() - 1; i++){
-            Vertex currVertex = path.get(i);
-            Vertex nextVertex = path.get(i+1);
-            Edge edge = currVertex.getEdgeToNeighbor(nextVertex);
-            installer.installRule(currVertex.getSwitch(), pktInMsg.getInPort(), edge.getSrcSwitchPort(), match);
-        } 
+        // Install rules from the egress switch back toward the ingress switch,
+        // so each switch has its rule before packets of the flow reach it
+        FlowModBatch downstream = new FlowModBatch();
+        Map<Long,Short> outPorts = new HashMap<Long,Short>();
+        Edge lastHop = hops.get(hops.size() - 1);
+        flowInstaller.installRule(downstream, dstVertex.getSwitch(), lastHop.getDstSwitchPort(), dstPort, match);
+        for(int i = hops.size() - 1; i > 0; i--){
+            Edge edge = hops.get(i);
+            flowInstaller.installRule(downstream, edge.getSrcVertex().getSwitch(), hops.get(i - 1).getDstSwitchPort(), edge.getSrcSwitchPort(), match);
+        }
 
-        Vertex currVertex = path.get(0);
-        Vertex nextVertex = path.get(1);
-        Edge edge = currVertex.getEdgeToNeighbor(nextVertex);
-        installer.forwardPacket(currVertex.getSwitch(), edge.getSrcSwitchPort(), pktInMsg);
+        // Remember the path, so packet-ins that arrive before the rules land
+        // are forwarded along it
+        if(inFlightFlows != null){
+            for(Edge edge : hops){
+                outPorts.put(edge.getSrcVertex().getSwitch().getId(), edge.getSrcSwitchPort());
+            }
+            outPorts.put(dstVertex.getSwitch().getId(), dstPort);
+            inFlightFlows.record(match, outPorts);
+        }
+
+        // Index the links the path crosses, so the flow can be moved if one
+        // of them fails
+        if(linkFlowIndex != null){
+            linkFlowIndex.record(new LinkFlowIndex.IndexedFlow(match, headers.getDstMac(), hash, srcVertex, hops, pktInMsg.getInPort(), dstPort));
+        }
+
+        // Install the rule in the ingress switch and release the packet only 
+        // after the downstream switches confirm their rules
+        Edge firstHop = hops.get(0);
+        final FlowModBatch ingress = new FlowModBatch();
+        flowInstaller.installRuleAndForward(ingress, inSwitch, pktInMsg.getInPort(), firstHop.getSrcSwitchPort(), match, pktInMsg);
+        int downstreamRules = downstream.size();
+        if(null == barrierTracker){
+            boolean sent = flowInstaller.sendBatch(downstream, false);
+            if(stats != null){
+                start = stats.record(PipelineStats.Stage.RULE_INSTALL, start);
+                this.countSent(downstreamRules, sent);
+            }
+            this.sendIngress(ingress, start);
+        }
+        else{
+            long ruleStart = start;
+            boolean sent = flowInstaller.sendBatch(downstream, barrierTracker, new Runnable() {
+                @Override
+                public void run(){
+                    // Time the ingress switch from when the downstream 
+                    // switches confirm, not from when their rules were sent
+                    long start = (null == stats ? 0 : System.nanoTime());
+                    sendIngress(ingress, start);
+                }
+            });
+            if(stats != null){
+                stats.record(PipelineStats.Stage.RULE_INSTALL, ruleStart);
+                this.countSent(downstreamRules, sent);
+            }
+        }
 
         
         ///////////////////////////////////////////////////////////////////////
 	}
+	
+	/**
+	 * Moves flows whose paths crossed a failed link onto new paths. Rules are
+	 * sent along each new path from the egress switch back toward the ingress
+	 * switch, whose rule is replaced last, and then only the old rules the new
+	 * path does not reuse are removed. A flow with no new path has all of its
+	 * rules removed.
+	 * @param flows the flows to move, taken from the link flow index
+	 * @return the number of flows given a new path
+	 */
+	public int rerouteFlows(List<LinkFlowIndex.IndexedFlow> flows)
+	{
+		TopologyGraph graph = netTopo.getGraph();
+		FlowModBatch downstream = new FlowModBatch();
+		final FlowModBatch ingress = new FlowModBatch();
+		final FlowModBatch removals = new FlowModBatch();
+		int rerouted = 0;
+		for (LinkFlowIndex.IndexedFlow flow : flows)
+		{
+			// Find a new path from the same ingress port to wherever the 
+			// destination host is now attached
+			LinkFlowIndex.IndexedFlow newFlow = null;
+			Vertex srcVertex = graph.getVertexById(flow.vertexIds[0]);
+			long dstLocation = netTopo.getHostLocation(flow.dstMac);
+			if (srcVertex != null && dstLocation != NetworkTopology.HOST_UNKNOWN)
+			{
+				Vertex dstVertex = graph.getVertexById(
+						NetworkTopology.getLocationVertexId(dstLocation));
+				List<Edge> hops = (null == dstVertex ? null 
+						: this.getPath(graph, srcVertex, dstVertex, flow.hash));
+				if (hops != null && (srcVertex == dstVertex || !hops.isEmpty()))
+				{
+					newFlow = new LinkFlowIndex.IndexedFlow(flow.key, 
+							flow.dstMac, flow.hash, srcVertex, hops, 
+							flow.inPorts[0], 
+							NetworkTopology.getLocationPort(dstLocation));
+				}
+			}
+			
+			// Send the rules that differ from the old path
+			if (newFlow != null)
+			{
+				for (int i = newFlow.vertexIds.length - 1; i >= 0; i--)
+				{
+					int old = flow.indexOf(newFlow.vertexIds[i], 
+							newFlow.inPorts[i]);
+					Vertex v = graph.getVertexById(newFlow.vertexIds[i]);
+					if ((old >= 0 && flow.outPorts[old] == newFlow.outPorts[i])
+							|| null == v)
+					{ continue; }
+					flowInstaller.installRule((0 == i ? ingress : downstream),
+							v.getSwitch(), newFlow.inPorts[i], 
+							newFlow.outPorts[i], flow.key);
+				}
+				linkFlowIndex.record(newFlow);
+				rerouted++;
+			}
+			
+			// Remove the old rules the new path does not replace
+			for (int i = 0; i < flow.vertexIds.length; i++)
+			{
+				Vertex v = graph.getVertexById(flow.vertexIds[i]);
+				if (null == v || (newFlow != null 
+						&& newFlow.indexOf(flow.vertexIds[i], flow.inPorts[i]) >= 0))
+				{ continue; }
+				flowInstaller.removeRule(removals, v.getSwitch(), flow.inPorts[i],
+						flow.key);
+			}
+		}
+		
+		// Switch the ingress rules, and then remove the old rules, only after 
+		// the downstream switches confirm their new rules
+		if (null == barrierTracker || downstream.isEmpty())
+		{
+			flowInstaller.sendBatch(downstream, false);
+			flowInstaller.sendBatch(ingress, false);
+			flowInstaller.sendBatch(removals, false);
+		}
+		else
+		{
+			flowInstaller.sendBatch(downstream, barrierTracker, new Runnable() {
+				@Override
+				public void run()
+				{
+					flowInstaller.sendBatch(ingress, false);
+					flowInstaller.sendBatch(removals, false);
+				}
+			});
+		}
+		return rerouted;
+	}
+	
+	/**
+	 * Sends the ingress switch its rule and releases the packet.
+	 */
+	private void sendIngress(FlowModBatch ingress, long start)
+	{
+		boolean sent = flowInstaller.sendBatch(ingress, false);
+		if (stats != null)
+		{
+			stats.record(PipelineStats.Stage.PACKET_OUT, start);
+			this.countSent(1, sent);
+			if (sent)
+			{ stats.count(PipelineStats.Counter.FLOWS_INSTALLED, 1); }
+		}
+	}
+	
+	/**
+	 * Counts the flow-mods in a batch that was sent, or the failure to send 
+	 * it.
+	 */
+	private void countSent(int flowMods, boolean sent)
+	{
+		if (sent)
+		{ stats.count(PipelineStats.Counter.FLOW_MODS, flowMods); }
+		else
+		{ stats.count(PipelineStats.Counter.WRITE_FAILURES, 1); }
+	}
+	
+	/**
+	 * Gets the shortest path between two switches. With a flow hasher, the 
+	 * path is chosen among all equal-cost paths by the hash of the flow; 
+	 * otherwise it comes from the precomputed next hops if they are up to 
+	 * date, or else from the path cache.
+	 * @param graph the snapshot of the topology containing both switches
+	 * @param srcVertex the vertex for the switch where the path starts
+	 * @param dstVertex the vertex for the switch where the path ends
+	 * @param hash the flow's hash, used only with a flow hasher
+	 * @return the edges along the path; empty if there is no path
+	 */
+	private List<Edge> getPath(TopologyGraph graph, Vertex srcVertex, 
+			Vertex dstVertex, int hash)
+	{
+		List<Edge> hops = new ArrayList<Edge>();
+		
+		NextHopTable nextHops = (null == nextHopCalculator 
+				|| flowHasher != null ? null : nextHopCalculator.getTable());
+		if (nextHops != null && nextHops.getVersion() == graph.getVersion())
+		{
+			Vertex curr = srcVertex;
+			while (curr != dstVertex)
+			{
+				int next = nextHops.getNextHop(curr.getId(), dstVertex.getId());
+				if (NextHopTable.NO_NEXT_HOP == next)
+				{ return new ArrayList<Edge>(); }
+				Edge edge = curr.getEdgeToNeighbor(graph.getVertexById(next));
+				hops.add(edge);
+				curr = edge.getDstVertex();
+			}
+			return hops;
+		}
+		
+		ShortestPathTree paths = pathCache.getShortestPaths(graph, srcVertex);
+		List<Vertex> path = (null == flowHasher 
+				? paths.getPathTo(graph, dstVertex)
+				: paths.getPathTo(graph, dstVertex, hash));
+		for (int i = 0; i < path.size() - 1; i++)
+		{ hops.add(path.get(i).getEdgeToNeighbor(path.get(i+1))); }
+		return hops;
+	}
 }
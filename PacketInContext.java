@@ -0,0 +1,123 @@
+package edu.wisc.cs.sdn;
+
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFPacketIn;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.FloodlightContextStore;
+import net.floodlightcontroller.packet.Ethernet;
+
+/**
+ * The headers of a packet-in's packet, parsed once and shared by every 
+ * listener that handles the packet-in through its {@link FloodlightContext}.
+ * Header fields are kept as primitives, so reading them allocates nothing.
+ */
+public class PacketInContext 
+{
+	// Key under which the parsed headers are stored in a FloodlightContext
+	private static final String CONTEXT_KEY = 
+			PacketInContext.class.getName() + ".headers";
+	
+	// Store for the parsed headers in a FloodlightContext
+	private static final FloodlightContextStore<PacketInContext> store =
+			new FloodlightContextStore<PacketInContext>();
+	
+	// Match describing the packet, including the port it arrived on
+	private final OFMatch match;
+	
+	// Header fields of the packet
+	private final short inPort;
+	private final long srcMac;
+	private final long dstMac;
+	private final short etherType;
+	private final int srcIp;
+	private final int dstIp;
+	private final byte ipProtocol;
+	private final short srcPort;
+	private final short dstPort;
+	
+	/**
+	 * Parses the headers of a packet-in's packet.
+	 */
+	private PacketInContext(OFPacketIn pktInMsg)
+	{
+		this.match = new OFMatch();
+		this.match.loadFromPacket(pktInMsg.getPacketData(), 
+				pktInMsg.getInPort());
+		this.inPort = pktInMsg.getInPort();
+		this.srcMac = Ethernet.toLong(match.getDataLayerSource());
+		this.dstMac = Ethernet.toLong(match.getDataLayerDestination());
+		this.etherType = match.getDataLayerType();
+		this.srcIp = match.getNetworkSource();
+		this.dstIp = match.getNetworkDestination();
+		this.ipProtocol = match.getNetworkProtocol();
+		this.srcPort = match.getTransportSource();
+		this.dstPort = match.getTransportDestination();
+	}
+	
+	/**
+	 * Gets the parsed headers of a packet-in's packet, parsing them and 
+	 * storing them in the context if no listener has done so yet.
+	 * @param cntx the context in which the packet-in is handled; may be null,
+	 * 			in which case the headers are parsed but not stored
+	 * @param pktInMsg the packet-in message
+	 * @return the parsed headers
+	 */
+	public static PacketInContext get(FloodlightContext cntx, 
+			OFPacketIn pktInMsg)
+	{
+		PacketInContext headers = 
+				(null == cntx ? null : store.get(cntx, CONTEXT_KEY));
+		if (null == headers)
+		{
+			headers = new PacketInContext(pktInMsg);
+			if (cntx != null)
+			{ store.put(cntx, CONTEXT_KEY, headers); }
+		}
+		return headers;
+	}
+	
+	/**
+	 * Get the match describing the packet, including the port it arrived on.
+	 * The match is shared, so it must be cloned before it is modified.
+	 */
+	public OFMatch getMatch()
+	{ return this.match; }
+	
+	public short getInPort()
+	{ return this.inPort; }
+	
+	public long getSrcMac()
+	{ return this.srcMac; }
+	
+	public long getDstMac()
+	{ return this.dstMac; }
+	
+	public short getEtherType()
+	{ return this.etherType; }
+	
+	public int getSrcIp()
+	{ return this.srcIp; }
+	
+	public int getDstIp()
+	{ return this.dstIp; }
+	
+	public byte getIpProtocol()
+	{ return this.ipProtocol; }
+	
+	public short getSrcPort()
+	{ return this.srcPort; }
+	
+	public short getDstPort()
+	{ return this.dstPort; }
+	
+	/**
+	 * Get a hash of the source and destination MAC addresses, which identify
+	 * the packet's flow.
+	 */
+	public int getFlowHash()
+	{
+		long h = (srcMac * 31 + dstMac) * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32));
+	}
+}
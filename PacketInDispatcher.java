@@ -0,0 +1,343 @@
+package edu.wisc.cs.sdn;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openflow.protocol.OFPacketIn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.floodlightcontroller.core.IOFSwitch;
+
+/**
+ * Hands packet-in processing off the switch I/O threads to a fixed set of 
+ * worker threads. Work is sharded by flow hash, so the packet-ins for a flow 
+ * are processed in the order they arrived. Each worker has a bounded queue; 
+ * a packet-in that finds its queue full is handled by the overload policy,
+ * and a warning is logged at most once per {@link #OVERLOAD_LOG_INTERVAL_MS}
+ * while packet-ins are being shed.
+ */
+public class PacketInDispatcher 
+{
+	/**
+	 * What to do with a packet-in whose worker queue is full.
+	 */
+	public enum OverloadPolicy
+	{
+		/** Drop the packet */
+		DROP,
+		/** Flood the packet along a spanning tree of the topology */
+		FLOOD
+	}
+	
+	public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+	
+	/** Shortest time between warnings about packet-ins shed under overload */
+	public static final long OVERLOAD_LOG_INTERVAL_MS = 10000;
+	
+	// Interface to the logging system
+	private static Logger log = 
+			LoggerFactory.getLogger(PacketInDispatcher.class.getSimpleName());
+	
+	// Queue of pending work for each worker
+	private BlockingQueue<Task>[] queues;
+	
+	// What to do with a packet-in whose worker queue is full
+	private OverloadPolicy overloadPolicy;
+	
+	// Interface to install flow table rules, used to flood under overload
+	private FlowInstaller flowInstaller;
+	
+	// Interface for obtaining network topology information, used to flood
+	// under overload without looping
+	private NetworkTopology netTopo;
+	
+	// Spanning tree of the most recent topology, used to flood under overload
+	private volatile SpanningTree spanningTree;
+	
+	// Counters for packet-ins queued, processed, dropped, and flooded
+	private AtomicLong dispatched;
+	private AtomicLong processed;
+	private AtomicLong dropped;
+	private AtomicLong flooded;
+	
+	// Total and largest time spent waiting in a queue, in nanoseconds
+	private AtomicLong totalWaitNanos;
+	private AtomicLong maxWaitNanos;
+	
+	// Total time spent processing, in nanoseconds
+	private AtomicLong totalProcessNanos;
+	
+	// When a warning about packet-ins shed under overload was last logged
+	private AtomicLong lastOverloadLogNanos;
+	
+	// Statistics on the packet-in pipeline; null if not recorded
+	private PipelineStats stats;
+	
+	/**
+	 * Work queued for a worker.
+	 */
+	private static class Task
+	{
+		final Runnable work;
+		final long enqueuedNanos;
+		
+		Task(Runnable work)
+		{
+			this.work = work;
+			this.enqueuedNanos = System.nanoTime();
+		}
+	}
+	
+	/**
+	 * Creates a dispatcher. The workers are not started until {@link #start()}
+	 * is called.
+	 * @param workers number of worker threads
+	 * @param queueCapacity number of packet-ins each worker can have queued
+	 * @param overloadPolicy what to do with a packet-in whose queue is full
+	 * @param flowInstaller interface to install flow table rules
+	 * @param netTopo interface for obtaining network topology information
+	 * @param stats statistics on the packet-in pipeline, which record time 
+	 * 			spent queued and packet-ins shed; null if not recorded
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public PacketInDispatcher(int workers, int queueCapacity, 
+			OverloadPolicy overloadPolicy, FlowInstaller flowInstaller,
+			NetworkTopology netTopo, PipelineStats stats)
+	{
+		this.queues = new BlockingQueue[workers];
+		for (int i = 0; i < workers; i++)
+		{ this.queues[i] = new ArrayBlockingQueue<Task>(queueCapacity); }
+		this.overloadPolicy = overloadPolicy;
+		this.flowInstaller = flowInstaller;
+		this.netTopo = netTopo;
+		this.dispatched = new AtomicLong();
+		this.processed = new AtomicLong();
+		this.dropped = new AtomicLong();
+		this.flooded = new AtomicLong();
+		this.totalWaitNanos = new AtomicLong();
+		this.maxWaitNanos = new AtomicLong();
+		this.totalProcessNanos = new AtomicLong();
+		this.lastOverloadLogNanos = new AtomicLong(System.nanoTime() 
+				- TimeUnit.MILLISECONDS.toNanos(OVERLOAD_LOG_INTERVAL_MS));
+		this.stats = stats;
+	}
+	
+	/**
+	 * Starts the worker threads.
+	 */
+	public void start()
+	{
+		for (int i = 0; i < queues.length; i++)
+		{
+			final BlockingQueue<Task> queue = queues[i];
+			Thread worker = new Thread(new Runnable() {
+				@Override
+				public void run()
+				{ work(queue); }
+			}, "PacketInWorker-" + i);
+			worker.setDaemon(true);
+			worker.start();
+		}
+		log.info(String.format("Started %d packet-in workers", queues.length));
+	}
+	
+	/**
+	 * Queues the processing of a packet-in on the worker for its flow. If the
+	 * worker's queue is full, the overload policy is applied instead.
+	 * @param sw the switch that sent the packet-in
+	 * @param pktInMsg the packet-in message
+	 * @param flowHash hash of the fields that identify the packet's flow
+	 * @param work the processing to perform
+	 * @return true if the processing was queued, otherwise false
+	 */
+	public boolean dispatch(IOFSwitch sw, OFPacketIn pktInMsg, int flowHash,
+			Runnable work)
+	{
+		int shard = (flowHash & Integer.MAX_VALUE) % queues.length;
+		if (queues[shard].offer(new Task(work)))
+		{
+			dispatched.incrementAndGet();
+			return true;
+		}
+		
+		if (OverloadPolicy.FLOOD == overloadPolicy)
+		{
+			flooded.incrementAndGet();
+			if (stats != null)
+			{ stats.count(PipelineStats.Counter.OVERLOAD_FLOODS, 1); }
+			List<Short> outPorts = this.getSpanningTree().getFloodPorts(sw,
+					pktInMsg.getInPort());
+			if (!outPorts.isEmpty())
+			{ flowInstaller.forwardPacket(sw, outPorts, pktInMsg); }
+		}
+		else
+		{
+			dropped.incrementAndGet();
+			if (stats != null)
+			{ stats.count(PipelineStats.Counter.OVERLOAD_DROPS, 1); }
+		}
+		this.logOverload();
+		return false;
+	}
+	
+	/**
+	 * Gets a spanning tree of the current topology, computing it again if the
+	 * topology changed since it was last computed.
+	 */
+	private SpanningTree getSpanningTree()
+	{
+		TopologyGraph graph = netTopo.getGraph();
+		SpanningTree tree = spanningTree;
+		if (null == tree || tree.getVersion() != graph.getVersion())
+		{
+			tree = SpanningTree.compute(graph);
+			spanningTree = tree;
+		}
+		return tree;
+	}
+	
+	/**
+	 * Logs a warning about packet-ins shed under overload, unless one was
+	 * logged recently.
+	 */
+	private void logOverload()
+	{
+		long now = System.nanoTime();
+		long last = lastOverloadLogNanos.get();
+		if (now - last < TimeUnit.MILLISECONDS.toNanos(OVERLOAD_LOG_INTERVAL_MS)
+				|| !lastOverloadLogNanos.compareAndSet(last, now))
+		{ return; }
+		log.warn(String.format("Packet-in queues full: %d dropped and %d "
+				+ "flooded so far, %d waiting", dropped.get(), flooded.get(), 
+				this.getQueueDepth()));
+	}
+	
+	/**
+	 * Processes queued work until the thread is interrupted.
+	 */
+	private void work(BlockingQueue<Task> queue)
+	{
+		while (true)
+		{
+			Task task;
+			try
+			{ task = queue.take(); }
+			catch (InterruptedException e)
+			{ return; }
+			
+			long start = System.nanoTime();
+			long wait = start - task.enqueuedNanos;
+			if (stats != null)
+			{
+				stats.record(PipelineStats.Stage.QUEUE_WAIT, 
+						task.enqueuedNanos);
+			}
+			totalWaitNanos.addAndGet(wait);
+			long max = maxWaitNanos.get();
+			while (wait > max && !maxWaitNanos.compareAndSet(max, wait))
+			{ max = maxWaitNanos.get(); }
+			
+			try
+			{ task.work.run(); }
+			catch (RuntimeException e)
+			{
+				log.error(String.format("Failed to process packet-in: %s", 
+						e.toString()));
+			}
+			totalProcessNanos.addAndGet(System.nanoTime() - start);
+			processed.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * Gets the number of packet-ins waiting across all workers.
+	 * @return the number of packet-ins waiting
+	 */
+	public int getQueueDepth()
+	{
+		int depth = 0;
+		for (BlockingQueue<Task> queue : queues)
+		{ depth += queue.size(); }
+		return depth;
+	}
+	
+	/**
+	 * Gets the largest number of packet-ins waiting for a single worker.
+	 * @return the largest number of packet-ins waiting for a worker
+	 */
+	public int getMaxQueueDepth()
+	{
+		int depth = 0;
+		for (BlockingQueue<Task> queue : queues)
+		{ depth = Math.max(depth, queue.size()); }
+		return depth;
+	}
+	
+	/**
+	 * Summarizes the packet-ins waiting and shed, and the time spent waiting.
+	 * @return the summary
+	 */
+	public String getSummary()
+	{
+		return String.format("%d workers, %d waiting (at most %d for one "
+				+ "worker), %d dropped, %d flooded, mean wait %.1f us, "
+				+ "max wait %.1f us", queues.length, this.getQueueDepth(),
+				this.getMaxQueueDepth(), dropped.get(), flooded.get(),
+				this.getMeanWaitMicros(), this.getMaxWaitMicros());
+	}
+	
+	/**
+	 * Get the number of packet-ins queued for a worker.
+	 */
+	public long getDispatched()
+	{ return dispatched.get(); }
+	
+	/**
+	 * Get the number of packet-ins processed by a worker.
+	 */
+	public long getProcessed()
+	{ return processed.get(); }
+	
+	/**
+	 * Get the number of packet-ins dropped because their queue was full.
+	 */
+	public long getDropped()
+	{ return dropped.get(); }
+	
+	/**
+	 * Get the number of packet-ins flooded because their queue was full.
+	 */
+	public long getFlooded()
+	{ return flooded.get(); }
+	
+	/**
+	 * Gets the mean time a packet-in waited in a queue before processing.
+	 * @return the mean wait, in microseconds
+	 */
+	public double getMeanWaitMicros()
+	{
+		long count = processed.get();
+		return (0 == count ? 0. : totalWaitNanos.get() / 1000. / count);
+	}
+	
+	/**
+	 * Gets the longest time a packet-in waited in a queue before processing.
+	 * @return the longest wait, in microseconds
+	 */
+	public double getMaxWaitMicros()
+	{ return maxWaitNanos.get() / 1000.; }
+	
+	/**
+	 * Gets the mean time spent processing a packet-in.
+	 * @return the mean processing time, in microseconds
+	 */
+	public double getMeanProcessMicros()
+	{
+		long count = processed.get();
+		return (0 == count ? 0. : totalProcessNanos.get() / 1000. / count);
+	}
+}
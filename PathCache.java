@@ -0,0 +1,226 @@
+package edu.wisc.cs.sdn;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Caches the shortest path tree computed from each source switch. Each tree is
+ * tagged with the version of the topology graph it is valid for. When the graph
+ * changes, trees the change cannot affect are carried forward to the new 
+ * version. Trees the change could affect keep a list of the changed links, and
+ * are updated incrementally the next time they are needed, visiting only the
+ * part of the tree below the changed links. The least recently used tree is 
+ * evicted when the cache is full.
+ */
+public class PathCache implements ITopologyListener
+{
+	/**
+	 * A cached tree, the version of the topology graph it is valid for once 
+	 * the links that changed are applied, and those links.
+	 */
+	private static class CacheEntry
+	{
+		final ShortestPathTree tree;
+		long version;
+		Set<Long> changedLinks;
+		
+		CacheEntry(ShortestPathTree tree, long version)
+		{
+			this.tree = tree;
+			this.version = version;
+			this.changedLinks = null;
+		}
+	}
+	
+	// Cached trees, indexed by source switch DPID, in least recently used order
+	private Map<Long,CacheEntry> trees;
+	
+	// Whether trees list every equal-cost predecessor of each switch
+	private final boolean equalCost;
+	
+	// Statistics
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long invalidations;
+	private long updates;
+	
+	/**
+	 * Creates an empty path cache.
+	 * @param capacity the maximum number of trees to cache
+	 * @param equalCost whether trees list every equal-cost predecessor of 
+	 * 			each switch, for spreading flows across equal-cost paths
+	 */
+	public PathCache(final int capacity, boolean equalCost)
+	{
+		this.equalCost = equalCost;
+		this.trees = new LinkedHashMap<Long,CacheEntry>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long,CacheEntry> eldest)
+			{
+				if (size() <= capacity)
+				{ return false; }
+				evictions++;
+				return true;
+			}
+		};
+	}
+	
+	/**
+	 * Gets the shortest paths from a switch to all other switches, updating 
+	 * the cached tree if links have changed, or computing the tree if none is 
+	 * cached.
+	 * @param graph the snapshot of the topology containing the source vertex
+	 * @param source the vertex for the switch from which paths originate
+	 * @return the shortest paths from the source vertex
+	 */
+	public ShortestPathTree getShortestPaths(TopologyGraph graph, Vertex source)
+	{
+		long dpid = source.getSwitch().getId();
+		long version = graph.getVersion();
+		ShortestPathTree stale = null;
+		Set<Long> changedLinks = null;
+		synchronized (this)
+		{
+			CacheEntry entry = trees.get(dpid);
+			if (entry != null && entry.version == version)
+			{
+				if (null == entry.changedLinks)
+				{
+					hits++;
+					return entry.tree;
+				}
+				stale = entry.tree;
+				changedLinks = new HashSet<Long>(entry.changedLinks);
+				updates++;
+			}
+			else
+			{ misses++; }
+		}
+		
+		// Compute outside the lock, so trees for different switches can be 
+		// computed in parallel
+		ShortestPathTree tree;
+		if (stale != null)
+		{
+			tree = IncrementalShortestPaths.updateShortestPaths(graph, stale, 
+					changedLinks);
+		}
+		else
+		{
+			tree = Dijkstra.computeShortestPaths(graph.getCompactGraph(), 
+					source.getId(), equalCost);
+		}
+		synchronized (this)
+		{ trees.put(dpid, new CacheEntry(tree, version)); }
+		return tree;
+	}
+	
+	/**
+	 * Records the changed link against the trees that contain it or that the 
+	 * link would shorten, and carries all trees forward to the new version.
+	 */
+	@Override
+	public synchronized void linkWeightChanged(int srcId, int dstId, 
+			double oldWeight, double newWeight, long version)
+	{
+		for (CacheEntry entry : trees.values())
+		{
+			if (entry.changedLinks != null || entry.tree.usesLink(srcId, dstId)
+					|| (newWeight < oldWeight 
+					&& entry.tree.isShortenedBy(srcId, dstId, newWeight)))
+			{
+				if (null == entry.changedLinks)
+				{ entry.changedLinks = new HashSet<Long>(); }
+				entry.changedLinks.add(
+						IncrementalShortestPaths.linkKey(srcId, dstId));
+			}
+			this.carryForward(entry, version);
+		}
+	}
+	
+	/**
+	 * Discards the tree rooted at a changed switch, and carries the rest 
+	 * forward to the new version.
+	 */
+	@Override
+	public synchronized void switchChanged(int id, long version)
+	{
+		Iterator<CacheEntry> iter = trees.values().iterator();
+		while (iter.hasNext())
+		{
+			CacheEntry entry = iter.next();
+			if (entry.tree.getSourceId() == id)
+			{
+				iter.remove();
+				invalidations++;
+			}
+			else
+			{ this.carryForward(entry, version); }
+		}
+	}
+	
+	/**
+	 * Marks a tree as valid for a new version of the graph, provided it was 
+	 * valid for the version immediately before it. A tree that was computed 
+	 * for an older version may have missed changes, so it is left to expire.
+	 */
+	private void carryForward(CacheEntry entry, long version)
+	{
+		if (entry.version >= version - 1)
+		{ entry.version = version; }
+	}
+	
+	/**
+	 * Get the number of lookups that found a valid tree.
+	 */
+	public synchronized long getHits()
+	{ return hits; }
+	
+	/**
+	 * Get the number of lookups that had to compute a tree.
+	 */
+	public synchronized long getMisses()
+	{ return misses; }
+	
+	/**
+	 * Get the number of trees evicted to make room for other trees.
+	 */
+	public synchronized long getEvictions()
+	{ return evictions; }
+	
+	/**
+	 * Get the number of lookups that updated a tree after links changed.
+	 */
+	public synchronized long getUpdates()
+	{ return updates; }
+	
+	/**
+	 * Get the number of trees discarded because their source switch changed.
+	 */
+	public synchronized long getInvalidations()
+	{ return invalidations; }
+	
+	/**
+	 * Get the number of cached trees.
+	 */
+	public synchronized int size()
+	{ return trees.size(); }
+	
+	/**
+	 * Summarizes the lookups and what became of the cached trees.
+	 * @return the summary
+	 */
+	public synchronized String getSummary()
+	{
+		return String.format("%d trees, %d hits, %d misses, %d updated after "
+				+ "links changed, %d evicted, %d invalidated", trees.size(), 
+				hits, misses, updates, evictions, invalidations);
+	}
+}
@@ -0,0 +1,142 @@
+package edu.wisc.cs.sdn;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency of each stage of handling a packet-in, and counts of what the
+ * packet-in handler did, since the controller started. Stages are timed with
+ * {@link #record(Stage, long)}, which returns the time the next stage starts.
+ */
+public class PipelineStats
+{
+	/**
+	 * Stages of handling a packet-in.
+	 */
+	public enum Stage
+	{
+		// Parsing the packet's headers
+		PARSE,
+		// Waiting in a queue for a packet-in worker, if there are workers
+		QUEUE_WAIT,
+		// Looking up where the destination host is attached
+		HOST_LOOKUP,
+		// Getting a snapshot of the topology and the switches at each end
+		TOPOLOGY,
+		// Finding the path between the switches
+		PATH,
+		// Sending rules to the switches past the ingress switch
+		RULE_INSTALL,
+		// Sending the ingress switch its rule and releasing the packet
+		PACKET_OUT
+	}
+
+	/**
+	 * Things the packet-in handler counts.
+	 */
+	public enum Counter
+	{
+		// Packet-ins received
+		PACKET_INS,
+		// Flows whose rule was sent to the ingress switch, releasing the packet
+		FLOWS_INSTALLED,
+		// Flow-mods sent
+		FLOW_MODS,
+		// Batches of messages that could not be written to a switch
+		WRITE_FAILURES,
+		// Packet-ins ignored because they carry IPv6
+		IPV6_SKIPPED,
+		// Packet-ins whose destination host is unknown
+		MISSING_DEVICES,
+		// Packet-ins dropped because their worker's queue was full
+		OVERLOAD_DROPS,
+		// Packet-ins flooded because their worker's queue was full
+		OVERLOAD_FLOODS
+	}
+
+	// Latency of each stage
+	private Map<Stage,LatencyHistogram> latencies;
+
+	// Value of each counter
+	private Map<Counter,AtomicLong> counters;
+
+	/**
+	 * Creates statistics with nothing recorded.
+	 */
+	public PipelineStats()
+	{
+		this.latencies = new EnumMap<Stage,LatencyHistogram>(Stage.class);
+		for (Stage stage : Stage.values())
+		{ this.latencies.put(stage, new LatencyHistogram()); }
+		this.counters = new EnumMap<Counter,AtomicLong>(Counter.class);
+		for (Counter counter : Counter.values())
+		{ this.counters.put(counter, new AtomicLong()); }
+	}
+
+	/**
+	 * Records how long a stage took.
+	 * @param stage the stage
+	 * @param startNanos when the stage started, from {@link System#nanoTime()}
+	 * @return when the stage ended, which is when the next stage starts
+	 */
+	public long record(Stage stage, long startNanos)
+	{
+		long now = System.nanoTime();
+		latencies.get(stage).record(now - startNanos);
+		return now;
+	}
+
+	/**
+	 * Adds to a counter.
+	 * @param counter the counter
+	 * @param delta the amount to add
+	 */
+	public void count(Counter counter, long delta)
+	{ counters.get(counter).addAndGet(delta); }
+
+	/**
+	 * Gets the latency of a stage.
+	 * @param stage the stage
+	 * @return the histogram of the stage's latency
+	 */
+	public LatencyHistogram getLatency(Stage stage)
+	{ return this.latencies.get(stage); }
+
+	/**
+	 * Gets the value of every counter.
+	 * @return a snapshot of the counters
+	 */
+	public Map<Counter,Long> getCounters()
+	{
+		Map<Counter,Long> snapshot = new EnumMap<Counter,Long>(Counter.class);
+		for (Map.Entry<Counter,AtomicLong> entry : counters.entrySet())
+		{ snapshot.put(entry.getKey(), entry.getValue().get()); }
+		return snapshot;
+	}
+
+	/**
+	 * Summarizes the counters and the latency percentiles of each stage that
+	 * has run, on one line per stage.
+	 * @return the summary
+	 */
+	public String getSummary()
+	{
+		StringBuilder summary = new StringBuilder();
+		summary.append(this.getCounters().toString());
+		for (Stage stage : Stage.values())
+		{
+			LatencyHistogram latency = latencies.get(stage);
+			if (0 == latency.getCount())
+			{ continue; }
+			summary.append(String.format(
+					"%n%s: count %d, mean %.1f us, p50 %.1f us, p99 %.1f us, "
+					+ "p99.9 %.1f us, max %.1f us", stage, latency.getCount(),
+					latency.getMean() / 1e3, latency.getPercentile(0.5) / 1e3,
+					latency.getPercentile(0.99) / 1e3,
+					latency.getPercentile(0.999) / 1e3,
+					latency.getMax() / 1e3));
+		}
+		return summary.toString();
+	}
+}
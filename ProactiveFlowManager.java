@@ -0,0 +1,413 @@
+package edu.wisc.cs.sdn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.floodlightcontroller.core.util.SingletonTask;
+
+/**
+ * Proactively installs one rule per switch for each known host, forwarding 
+ * packets destined for the host along the shortest path tree toward it. Rules
+ * are pushed when a host is discovered or moves, and when the topology 
+ * changes, so packets between known hosts never reach the controller. Only 
+ * rules whose output port changed are sent.
+ * <p>
+ * When next hops are precomputed, a link failure is handled in two steps. 
+ * Rules that send traffic out of the failed link are immediately pointed at
+ * the precomputed backup next hop, without computing any paths, and the 
+ * rules for all hosts are brought in line with the new shortest paths once
+ * the topology settles. OpenFlow 1.0 has no fast failover groups, so the 
+ * backup rules are pushed by the controller rather than held in the switch.
+ */
+public class ProactiveFlowManager implements ITopologyListener, IHostListener
+{
+	// Port recorded for a switch that has no rule for a host
+	private static final short NO_RULE = 0;
+	
+	// Wait this long after a change before pushing rules, so a burst of 
+	// changes results in a single push
+	private static final long HOST_DELAY_MS = 10;
+	private static final long TOPOLOGY_DELAY_MS = 100;
+	
+	// Interface for obtaining network topology information
+	private NetworkTopology netTopo;
+	
+	// Precomputed next hops and backups; null if not precomputed
+	private NextHopCalculator nextHopCalculator;
+	
+	// Interface to install flow rules
+	private FlowInstaller flowInstaller;
+	
+	// Tracker used to time how long rerouted rules take to be installed; 
+	// null if barriers are not tracked
+	private BarrierTracker barrierTracker;
+	
+	// Pushes rules for hosts and switches that have changed
+	private SingletonTask pushTask;
+	
+	// Output port of the rule installed for each host, indexed by host MAC 
+	// address and vertex id; only accessed by the push task
+	private Map<Long,short[]> installed;
+	
+	// Changes waiting to be pushed; guarded by this object
+	private Set<Long> changedHosts;
+	private Set<Integer> changedSwitches;
+	private boolean topologyChanged;
+	
+	// Links that failed since the last push, as source and destination 
+	// vertex ids, and when the first of them failed; guarded by this object
+	private List<int[]> failedLinks;
+	private long firstFailureNanos;
+	
+	// Graph the installed rules were computed from; only accessed by the 
+	// push task
+	private TopologyGraph lastGraph;
+	
+	// Time from the last link failure until its backup rules were installed
+	private volatile long lastRerouteMicros;
+	
+	// Number of rules moved to a backup next hop
+	private AtomicLong reroutedRules;
+	
+	// Interface to the logging system
+	private static Logger log = 
+			LoggerFactory.getLogger(ProactiveFlowManager.class.getSimpleName());
+	
+	/**
+	 * Creates a proactive flow manager.
+	 * @param netTopo interface to access network topology information
+	 * @param nextHopCalculator precomputed next hops used to reroute around 
+	 * 			failed links; null to wait for new paths instead
+	 * @param flowInstaller interface to install flow table rules
+	 * @param barrierTracker tracker used to confirm rerouted rules are 
+	 * 			installed; null to time reroutes until the rules are sent
+	 * @param ses executor on which to push rules
+	 */
+	public ProactiveFlowManager(NetworkTopology netTopo, 
+			NextHopCalculator nextHopCalculator, FlowInstaller flowInstaller, 
+			BarrierTracker barrierTracker, ScheduledExecutorService ses)
+	{
+		this.netTopo = netTopo;
+		this.nextHopCalculator = nextHopCalculator;
+		this.flowInstaller = flowInstaller;
+		this.barrierTracker = barrierTracker;
+		this.installed = new HashMap<Long,short[]>();
+		this.changedHosts = new HashSet<Long>();
+		this.changedSwitches = new HashSet<Integer>();
+		this.topologyChanged = false;
+		this.failedLinks = new ArrayList<int[]>();
+		this.lastRerouteMicros = 0;
+		this.reroutedRules = new AtomicLong();
+		this.pushTask = new SingletonTask(ses, new Runnable() {
+			@Override
+			public void run()
+			{ pushChanges(); }
+		});
+	}
+	
+	/**
+	 * Get the time from the most recent link failure until the rules moved to
+	 * backup next hops were installed, as confirmed by a barrier reply from 
+	 * every switch that got one, or until they were sent if barriers are not
+	 * tracked.
+	 * @return the time in microseconds; 0 if no rules have been rerouted
+	 */
+	public long getLastRerouteMicros()
+	{ return this.lastRerouteMicros; }
+	
+	/**
+	 * Get the number of rules moved to a backup next hop after a link failed.
+	 * @return the number of rules rerouted
+	 */
+	public long getReroutedRules()
+	{ return this.reroutedRules.get(); }
+	
+	/**
+	 * Schedules a push of rules for a host that was discovered, moved, or aged
+	 * out.
+	 */
+	@Override
+	public void hostLocationChanged(long mac, long oldLocation, 
+			long newLocation)
+	{
+		synchronized (this)
+		{ changedHosts.add(mac); }
+		pushTask.reschedule(HOST_DELAY_MS, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Schedules a push of rules for all hosts when a link changes. If the 
+	 * link failed and backups are available, rules using the link are moved 
+	 * to their backups right away.
+	 */
+	@Override
+	public void linkWeightChanged(int srcId, int dstId, double oldWeight, 
+			double newWeight, long version)
+	{
+		boolean failed = (nextHopCalculator != null 
+				&& Double.isInfinite(newWeight) && !Double.isInfinite(oldWeight));
+		synchronized (this)
+		{
+			topologyChanged = true;
+			if (failed)
+			{
+				if (failedLinks.isEmpty())
+				{ firstFailureNanos = System.nanoTime(); }
+				failedLinks.add(new int[] { srcId, dstId });
+			}
+		}
+		pushTask.reschedule((failed ? 0 : TOPOLOGY_DELAY_MS), 
+				TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Schedules a push of rules for all hosts when a switch connects or 
+	 * disconnects. A switch that connects may start with an empty flow table,
+	 * so all of its rules are pushed again, unless installed rules are tracked
+	 * and the switch is brought in line with the shadow flow table instead.
+	 */
+	@Override
+	public void switchChanged(int id, long version)
+	{
+		synchronized (this)
+		{
+			changedSwitches.add(id);
+			topologyChanged = true;
+		}
+		pushTask.reschedule(TOPOLOGY_DELAY_MS, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Pushes rules for the hosts that changed, or for all hosts if the 
+	 * topology changed.
+	 */
+	private void pushChanges()
+	{
+		// Move traffic off failed links first, and push everything else once
+		// the topology settles
+		List<int[]> failed = null;
+		long failureNanos = 0;
+		synchronized (this)
+		{
+			if (!failedLinks.isEmpty())
+			{
+				failed = failedLinks;
+				failureNanos = firstFailureNanos;
+				failedLinks = new ArrayList<int[]>();
+			}
+		}
+		if (failed != null)
+		{
+			this.reroute(failed, failureNanos);
+			pushTask.reschedule(TOPOLOGY_DELAY_MS, TimeUnit.MILLISECONDS);
+			return;
+		}
+		
+		Set<Long> hosts;
+		Set<Integer> switches;
+		boolean allHosts;
+		synchronized (this)
+		{
+			hosts = changedHosts;
+			switches = changedSwitches;
+			allHosts = topologyChanged;
+			changedHosts = new HashSet<Long>();
+			changedSwitches = new HashSet<Integer>();
+			topologyChanged = false;
+		}
+		
+		// Forget the rules in switches that reconnected or disconnected, unless
+		// the shadow flow table restores them when a switch connects
+		if (!flowInstaller.tracksInstalledRules())
+		{
+			for (int id : switches)
+			{
+				for (short[] ports : installed.values())
+				{
+					if (id < ports.length)
+					{ ports[id] = NO_RULE; }
+				}
+			}
+		}
+		
+		if (allHosts)
+		{ hosts.addAll(installed.keySet()); }
+		
+		// Send all rules together, so each switch gets one write and one flush;
+		// hosts on the same switch share the tree toward it
+		TopologyGraph graph = netTopo.getGraph();
+		FlowModBatch batch = new FlowModBatch();
+		Map<Integer,ShortestPathTree> trees = 
+				new HashMap<Integer,ShortestPathTree>();
+		for (long mac : hosts)
+		{ this.pushHost(graph, mac, trees, batch); }
+		flowInstaller.sendBatch(batch, false);
+		lastGraph = graph;
+		log.debug(String.format("Pushed %d destination rules for %d hosts",
+				batch.size(), hosts.size()));
+	}
+	
+	/**
+	 * Points every rule that sends traffic out of a failed link at the backup
+	 * next hop toward its host. Rules with no usable backup are left for the
+	 * next full push.
+	 * @param failed the failed links, as source and destination vertex ids
+	 * @param failureNanos when the first of the links failed
+	 */
+	private void reroute(List<int[]> failed, long failureNanos)
+	{
+		NextHopTable table = nextHopCalculator.getTable();
+		if (null == table || null == lastGraph)
+		{ return; }
+		
+		TopologyGraph graph = netTopo.getGraph();
+		FlowModBatch batch = new FlowModBatch();
+		for (int[] link : failed)
+		{
+			// Find the port the failed link used when rules were last pushed
+			Vertex src = lastGraph.getVertexById(link[0]);
+			Vertex dst = lastGraph.getVertexById(link[1]);
+			Edge failedEdge = (null == src || null == dst ? null 
+					: src.getEdgeToNeighbor(dst));
+			Vertex current = graph.getVertexById(link[0]);
+			if (null == failedEdge || null == current)
+			{ continue; }
+			short failedPort = failedEdge.getSrcSwitchPort();
+			
+			for (Map.Entry<Long,short[]> entry : installed.entrySet())
+			{
+				short[] ports = entry.getValue();
+				if (link[0] >= ports.length || ports[link[0]] != failedPort)
+				{ continue; }
+				long location = netTopo.getHostLocation(entry.getKey());
+				if (NetworkTopology.HOST_UNKNOWN == location)
+				{ continue; }
+				int hostId = NetworkTopology.getLocationVertexId(location);
+				int backupId = table.getBackupHop(link[0], hostId);
+				Vertex backup = (NextHopTable.NO_NEXT_HOP == backupId ? null
+						: graph.getVertexById(backupId));
+				Edge edge = (null == backup ? null 
+						: current.getEdgeToNeighbor(backup));
+				if (null == edge || edge.getSrcSwitchPort() == failedPort)
+				{ continue; }
+				
+				flowInstaller.installDestinationRule(batch, current.getSwitch(),
+						entry.getKey(), edge.getSrcSwitchPort());
+				ports[link[0]] = edge.getSrcSwitchPort();
+			}
+		}
+		if (batch.isEmpty())
+		{ return; }
+		
+		final int rules = batch.size();
+		final long startNanos = failureNanos;
+		reroutedRules.addAndGet(rules);
+		Runnable onInstalled = new Runnable() {
+			@Override
+			public void run()
+			{
+				lastRerouteMicros = (System.nanoTime() - startNanos) / 1000;
+				log.info(String.format(
+						"Moved %d destination rules to backup next hops in %d us",
+						rules, lastRerouteMicros));
+			}
+		};
+		if (null == barrierTracker)
+		{
+			flowInstaller.sendBatch(batch, false);
+			onInstalled.run();
+		}
+		else
+		{ flowInstaller.sendBatch(batch, barrierTracker, onInstalled); }
+	}
+	
+	/**
+	 * Brings the rules for one host in line with the shortest path tree toward
+	 * it. The tree is computed backwards from the host's switch over the links
+	 * entering each switch, since a link may cost more in one direction than
+	 * in the other.
+	 * @param trees the trees toward each switch computed so far in this push,
+	 * 			indexed by vertex id
+	 * @param batch the batch to which changed rules are added
+	 */
+	private void pushHost(TopologyGraph graph, long mac, 
+			Map<Integer,ShortestPathTree> trees, FlowModBatch batch)
+	{
+		short[] ports = installed.get(mac);
+		if (null == ports)
+		{ ports = new short[0]; }
+		if (ports.length < graph.getVertexCount())
+		{ ports = Arrays.copyOf(ports, graph.getVertexCount()); }
+		
+		// Determine the port toward the host from each switch
+		short[] wanted = new short[ports.length];
+		long location = netTopo.getHostLocation(mac);
+		Vertex hostVertex = (NetworkTopology.HOST_UNKNOWN == location ? null
+				: graph.getVertexById(NetworkTopology.getLocationVertexId(location)));
+		if (hostVertex != null)
+		{
+			ShortestPathTree tree = trees.get(hostVertex.getId());
+			if (null == tree)
+			{
+				tree = Dijkstra.computeShortestPathsTo(graph.getCompactGraph(), 
+						hostVertex.getId());
+				trees.put(hostVertex.getId(), tree);
+			}
+			for (Vertex v : graph.getVertices())
+			{
+				if (v == hostVertex)
+				{
+					wanted[v.getId()] = NetworkTopology.getLocationPort(location);
+					continue;
+				}
+				Vertex toward = graph.getVertexById(tree.getPreviousId(v.getId()));
+				Edge edge = (null == toward ? null : v.getEdgeToNeighbor(toward));
+				if (edge != null)
+				{ wanted[v.getId()] = edge.getSrcSwitchPort(); }
+			}
+		}
+		
+		// Send only the rules that differ from what is installed
+		for (int id = 0; id < ports.length; id++)
+		{
+			if (wanted[id] == ports[id])
+			{ continue; }
+			// A switch that is not connected keeps its rules in the shadow
+			// flow table, if installed rules are tracked, and gets them back
+			// when it reconnects; otherwise it may come back without them
+			Vertex v = graph.getVertexById(id);
+			if (null == v)
+			{
+				if (!flowInstaller.tracksInstalledRules())
+				{ ports[id] = NO_RULE; }
+				continue;
+			}
+			if (NO_RULE == wanted[id])
+			{ flowInstaller.removeDestinationRule(batch, v.getSwitch(), mac); }
+			else
+			{
+				flowInstaller.installDestinationRule(batch, v.getSwitch(), mac, 
+						wanted[id]);
+			}
+			ports[id] = wanted[id];
+		}
+		
+		// Keep a host whose switch is not yet connected, so its rules are 
+		// pushed once the switch connects
+		if (NetworkTopology.HOST_UNKNOWN == location)
+		{ installed.remove(mac); }
+		else
+		{ installed.put(mac, ports); }
+	}
+}
@@ -2,9 +2,13 @@ package edu.wisc.cs.sdn;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.openflow.protocol.OFType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import net.floodlightcontroller.core.IFloodlightProviderService;
 import net.floodlightcontroller.core.module.FloodlightModuleContext;
@@ -13,12 +17,21 @@ import net.floodlightcontroller.core.module.IFloodlightModule;
 import net.floodlightcontroller.core.module.IFloodlightService;
 import net.floodlightcontroller.devicemanager.IDeviceService;
 import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryService;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
 
 /**
  * Module to perform shortest path routing in a network
  */
-public class Routing implements IFloodlightModule 
+public class Routing implements IFloodlightModule, IPipelineStatsService
 {
+	private static final int DEFAULT_PATH_CACHE_SIZE = 1024;
+	
+	private static final long DEFAULT_STATS_LOG_SECONDS = 60;
+	
+	// Interface to the logging system
+	private static Logger log = 
+			LoggerFactory.getLogger(Routing.class.getSimpleName());
+	
 	// Interface to Floodlight core for interacting with connected switches
 	private IFloodlightProviderService floodlightProv;
 	
@@ -28,9 +41,63 @@ public class Routing implements IFloodlightModule
 	// Interface to device manager service
 	private IDeviceService deviceProv;
 	
+	// Interface to thread pool service
+	private IThreadPoolService threadPool;
+	
 	// Interface for obtaining network topology information
 	private NetworkTopology netTopo;
 	
+	// Cache of shortest paths from each switch
+	private PathCache pathCache;
+	
+	// Precomputes next hops between all switches; null if paths are only 
+	// computed on demand
+	private NextHopCalculator nextHopCalculator;
+	
+	// Proactively installs rules toward each known host; null if rules are 
+	// only installed in response to packet-ins
+	private ProactiveFlowManager proactiveFlowManager;
+	
+	// Confirms rules are installed downstream before a packet is released; 
+	// null if packets are released without waiting
+	private BarrierTracker barrierTracker;
+	
+	// Workers that process packet-ins off the switch I/O threads; null if 
+	// packet-ins are processed as they are received
+	private PacketInDispatcher dispatcher;
+	
+	// Paths of flows being set up; null if every packet-in computes its path
+	private InFlightFlowTable inFlightFlows;
+	
+	// Hashes flows to choose among equal-cost paths; null if every flow takes
+	// the same shortest path
+	private FlowHasher flowHasher;
+	
+	// Counts the flows routed over each link; null if flows are not counted
+	private LinkFlowCounter linkFlowCounter;
+	
+	// Assigns link costs from port speeds and load; null if every link has 
+	// the same cost
+	private LinkCostManager linkCostManager;
+	
+	// Latency of each stage of handling a packet-in, and counts of what the
+	// handler did; null if they are not recorded
+	private PipelineStats pipelineStats;
+	
+	// How often to log a summary of the statistics and counters, in seconds
+	private long statsLogSeconds;
+	
+	// Brings switches in line with the shadow of installed rules; null if 
+	// installed rules are not tracked
+	private FlowReconciler flowReconciler;
+	
+	// Paths of installed flows, indexed by the links they cross; null if 
+	// flows are not moved off failed links
+	private LinkFlowIndex linkFlowIndex;
+	
+	// Moves flows off links that fail; null if flows are not moved
+	private FlowRerouter flowRerouter;
+	
 	// Handler for packet-in messages
 	private PacketHandler pktHandler;
 	
@@ -43,7 +110,10 @@ public class Routing implements IFloodlightModule
 	@Override
 	public Collection<Class<? extends IFloodlightService>> getModuleServices()
     {
-		return null;
+		Collection<Class<? extends IFloodlightService>> services =
+				new ArrayList<Class<? extends IFloodlightService>>();
+		services.add(IPipelineStatsService.class);
+		return services;
 	}
 
     /**
@@ -53,7 +123,11 @@ public class Routing implements IFloodlightModule
 	public Map<Class<? extends IFloodlightService>, IFloodlightService> 
 			getServiceImpls() 
     {
-		return null;
+		Map<Class<? extends IFloodlightService>, IFloodlightService> impls =
+				new HashMap<Class<? extends IFloodlightService>, 
+						IFloodlightService>();
+		impls.put(IPipelineStatsService.class, this);
+		return impls;
 	}
 
 	/**
@@ -68,6 +142,7 @@ public class Routing implements IFloodlightModule
 		floodlightService.add(IFloodlightProviderService.class);
 		floodlightService.add(ILinkDiscoveryService.class);
 		floodlightService.add(IDeviceService.class);
+		floodlightService.add(IThreadPoolService.class);
 		return floodlightService;
 	}
 
@@ -82,17 +157,298 @@ public class Routing implements IFloodlightModule
 		floodlightProv=context.getServiceImpl(IFloodlightProviderService.class);
 		linkDiscProv = context.getServiceImpl(ILinkDiscoveryService.class);
 		deviceProv = context.getServiceImpl(IDeviceService.class);
+		threadPool = context.getServiceImpl(IThreadPoolService.class);
 		netTopo = new NetworkTopology(floodlightProv, linkDiscProv, deviceProv);
-		flowInstaller = new FlowInstaller();
-		pktHandler = new PacketHandler(netTopo, flowInstaller);
+		
+		// Cache paths from as many switches as configured, or 1024 by default,
+		// listing equal-cost paths only if flows are spread across them
+		Map<String,String> config = context.getConfigParams(this);
+		int pathCacheSize = DEFAULT_PATH_CACHE_SIZE;
+		if (config != null && config.containsKey("pathCacheSize"))
+		{ pathCacheSize = Integer.parseInt(config.get("pathCacheSize")); }
+		boolean ecmp = (config != null && "true".equals(config.get("ecmp")));
+		pathCache = new PathCache(pathCacheSize, ecmp);
+		netTopo.addListener(pathCache);
+		
+		// Precompute next hops between all switches after each topology 
+		// change, if configured to do so
+		if (config != null && "true".equals(config.get("precomputePaths")))
+		{
+			nextHopCalculator = new NextHopCalculator(netTopo, 
+					threadPool.getScheduledExecutor(), 
+					Runtime.getRuntime().availableProcessors());
+			netTopo.addListener(nextHopCalculator);
+			log.info("Precomputing next hops between all switches");
+		}
+		
+		// Assign link costs from port speeds, and from port load measured 
+		// every 5s by default, if configured to do so
+		if (config != null && "true".equals(config.get("linkCosts")))
+		{
+			long pollMs = 5000;
+			if (config.containsKey("linkCostPollMs"))
+			{ pollMs = Long.parseLong(config.get("linkCostPollMs")); }
+			double smoothing = LinkCostManager.DEFAULT_SMOOTHING;
+			if (config.containsKey("linkCostSmoothing"))
+			{ smoothing = Double.parseDouble(config.get("linkCostSmoothing")); }
+			long referenceMbps = LinkCostManager.DEFAULT_REFERENCE_MBPS;
+			if (config.containsKey("referenceBandwidthMbps"))
+			{
+				referenceMbps = Long.parseLong(
+						config.get("referenceBandwidthMbps"));
+			}
+			long defaultSpeedMbps = LinkCostManager.DEFAULT_SPEED_MBPS;
+			if (config.containsKey("defaultLinkSpeedMbps"))
+			{
+				defaultSpeedMbps = Long.parseLong(
+						config.get("defaultLinkSpeedMbps"));
+			}
+			Map<Long,Map<Short,Long>> portSpeeds = 
+					LinkCostManager.parsePortSpeeds(
+							config.containsKey("portSpeeds") 
+							? config.get("portSpeeds") : "");
+			linkCostManager = new LinkCostManager(netTopo, 
+					threadPool.getScheduledExecutor(), pollMs, smoothing,
+					referenceMbps, defaultSpeedMbps, portSpeeds);
+			netTopo.addListener(linkCostManager);
+			log.info("Assigning link costs from port speed and load");
+		}
+		
+		// Index the links each flow's path crosses, so only the flows on a link
+		// that fails are moved, if configured to do so; a flow is forgotten 
+		// after an hour, or as long as configured, in case the removal of its
+		// rules goes unreported
+		if (config != null && "true".equals(config.get("rerouteFlows")))
+		{
+			long linkFlowTtlMs = LinkFlowIndex.DEFAULT_TTL_MS;
+			if (config.containsKey("rerouteFlowsTtlMs"))
+			{ linkFlowTtlMs = Long.parseLong(config.get("rerouteFlowsTtlMs")); }
+			linkFlowIndex = new LinkFlowIndex(linkFlowTtlMs);
+		}
+		
+		// Keep a copy of the rules installed in each switch, and bring a switch
+		// that connects in line with it, if configured to do so
+		if (config != null && "true".equals(config.get("shadowFlows")))
+		{
+			ShadowFlowTable shadow = new ShadowFlowTable();
+			flowInstaller = new FlowInstaller(shadow, true);
+			flowReconciler = new FlowReconciler(netTopo, shadow, flowInstaller,
+					threadPool.getScheduledExecutor());
+			netTopo.addListener(flowReconciler);
+			log.info("Reconciling switches with a shadow of installed rules");
+		}
+		else
+		{ flowInstaller = new FlowInstaller(null, linkFlowIndex != null); }
+		
+		// Wait for downstream switches to confirm their rules before releasing
+		// a packet, unless configured not to
+		if (null == config || !"false".equals(config.get("confirmPathInstall")))
+		{
+			barrierTracker = new BarrierTracker(
+					threadPool.getScheduledExecutor(), 
+					BarrierTracker.DEFAULT_TIMEOUT_MS);
+		}
+		
+		// Proactively install rules toward each known host, if configured to
+		// do so
+		if (config != null && "true".equals(config.get("proactiveFlows")))
+		{
+			proactiveFlowManager = new ProactiveFlowManager(netTopo, 
+					nextHopCalculator, flowInstaller, barrierTracker,
+					threadPool.getScheduledExecutor());
+			netTopo.addListener(proactiveFlowManager);
+			netTopo.addHostListener(proactiveFlowManager);
+			log.info("Proactively installing rules toward known hosts");
+		}
+		
+		// Forward duplicate packet-ins for flows being set up along the path
+		// already chosen, for as long as configured or 1s by default; zero 
+		// computes the path for every packet-in
+		long inFlightTtlMs = InFlightFlowTable.DEFAULT_TTL_MS;
+		if (config != null && config.containsKey("inFlightTtlMs"))
+		{ inFlightTtlMs = Long.parseLong(config.get("inFlightTtlMs")); }
+		if (inFlightTtlMs > 0)
+		{ inFlightFlows = new InFlightFlowTable(inFlightTtlMs); }
+		
+		// Spread flows across equal-cost paths by hashing the configured 
+		// header fields, or the IP 5-tuple by default, if configured to do so,
+		// and count the flows on each link over windows of a minute or as 
+		// long as configured
+		if (ecmp)
+		{
+			flowHasher = (config.containsKey("ecmpHashFields")
+					? FlowHasher.parse(config.get("ecmpHashFields"))
+					: new FlowHasher(FlowHasher.DEFAULT_FIELDS));
+			long countWindowMs = LinkFlowCounter.DEFAULT_WINDOW_MS;
+			if (config.containsKey("ecmpCountWindowMs"))
+			{ countWindowMs = Long.parseLong(config.get("ecmpCountWindowMs")); }
+			linkFlowCounter = new LinkFlowCounter(countWindowMs);
+			log.info("Spreading flows across equal-cost paths");
+		}
+		
+		// Time each stage of handling a packet-in, if configured to do so, and
+		// log a summary of the statistics and counters every minute or as 
+		// often as configured
+		statsLogSeconds = DEFAULT_STATS_LOG_SECONDS;
+		if (config != null && config.containsKey("pipelineStatsLogSeconds"))
+		{
+			statsLogSeconds = Long.parseLong(
+					config.get("pipelineStatsLogSeconds"));
+		}
+		if (config != null && "true".equals(config.get("pipelineStats")))
+		{
+			pipelineStats = new PipelineStats();
+			log.info("Recording packet-in pipeline statistics");
+		}
+		
+		// Process packet-ins as they arrive by default, or on as many workers
+		// as configured
+		int packetInWorkers = 0;
+		if (config != null && config.containsKey("packetInWorkers"))
+		{ packetInWorkers = Integer.parseInt(config.get("packetInWorkers")); }
+		if (packetInWorkers > 0)
+		{
+			int queueSize = PacketInDispatcher.DEFAULT_QUEUE_CAPACITY;
+			if (config != null && config.containsKey("packetInQueueSize"))
+			{ queueSize = Integer.parseInt(config.get("packetInQueueSize")); }
+			PacketInDispatcher.OverloadPolicy overloadPolicy = 
+					PacketInDispatcher.OverloadPolicy.DROP;
+			if (config != null && config.containsKey("overloadPolicy"))
+			{
+				overloadPolicy = PacketInDispatcher.OverloadPolicy.valueOf(
+						config.get("overloadPolicy").toUpperCase());
+			}
+			dispatcher = new PacketInDispatcher(packetInWorkers, queueSize,
+					overloadPolicy, flowInstaller, netTopo, pipelineStats);
+		}
+		
+		pktHandler = new PacketHandler(netTopo, pathCache, nextHopCalculator,
+				flowInstaller, barrierTracker, dispatcher, inFlightFlows,
+				flowHasher, linkFlowCounter, pipelineStats, linkFlowIndex);
+		if (linkFlowIndex != null)
+		{
+			flowRerouter = new FlowRerouter(netTopo, linkFlowIndex, pktHandler,
+					threadPool.getScheduledExecutor());
+			netTopo.addListener(flowRerouter);
+			log.info("Moving flows off links that fail");
+		}
 	}
 
 	/**
-	 * Tells the Floodlight core we are interested in PACKET_IN messages.
+	 * Tells the Floodlight core we are interested in PACKET_IN messages, 
+	 * BARRIER_REPLY messages if we wait for them, and FLOW_REMOVED messages if
+	 * we track installed rules or the flows on each link, and starts tracking 
+	 * the network topology.
 	 * */
 	@Override
 	public void startUp(FloodlightModuleContext context) 
     {
+		netTopo.startUp();
+		if (linkCostManager != null)
+		{ linkCostManager.start(); }
+		if (nextHopCalculator != null)
+		{ nextHopCalculator.scheduleRecompute(); }
+		if (barrierTracker != null)
+		{
+			floodlightProv.addOFMessageListener(OFType.BARRIER_REPLY, 
+					barrierTracker);
+		}
+		if (dispatcher != null)
+		{ dispatcher.start(); }
+		if (flowReconciler != null)
+		{
+			floodlightProv.addOFMessageListener(OFType.FLOW_REMOVED, 
+					flowReconciler);
+		}
+		if (flowRerouter != null)
+		{
+			floodlightProv.addOFMessageListener(OFType.FLOW_REMOVED, 
+					flowRerouter);
+		}
+		if (statsLogSeconds > 0)
+		{
+			threadPool.getScheduledExecutor().scheduleAtFixedRate(
+					new Runnable() {
+				@Override
+				public void run()
+				{ logSummary(); }
+			}, statsLogSeconds, statsLogSeconds, TimeUnit.SECONDS);
+		}
 		floodlightProv.addOFMessageListener(OFType.PACKET_IN, pktHandler);
 	}
+	
+	/**
+	 * Gets the statistics recorded by the packet-in handler.
+	 * @return the statistics; null if not configured to record them
+	 */
+	@Override
+	public PipelineStats getPipelineStats()
+	{ return this.pipelineStats; }
+	
+	/**
+	 * Gets the cache of shortest path trees.
+	 * @return the cache
+	 */
+	@Override
+	public PathCache getPathCache()
+	{ return this.pathCache; }
+	
+	/**
+	 * Gets the table of flows whose rules are being installed.
+	 * @return the table, or null if in-flight flows are not coalesced
+	 */
+	@Override
+	public InFlightFlowTable getInFlightFlows()
+	{ return this.inFlightFlows; }
+	
+	/**
+	 * Gets the counts of flows routed over each link.
+	 * @return the counts, or null if flows are not spread across equal-cost
+	 * 			paths
+	 */
+	@Override
+	public LinkFlowCounter getLinkFlowCounter()
+	{ return this.linkFlowCounter; }
+	
+	/**
+	 * Gets the rerouter that moves flows off failed links.
+	 * @return the rerouter, or null if flows are not rerouted
+	 */
+	@Override
+	public FlowRerouter getFlowRerouter()
+	{ return this.flowRerouter; }
+	
+	/**
+	 * Logs a summary of the statistics and counters of each part of the 
+	 * module that is enabled.
+	 */
+	private void logSummary()
+	{
+		log.info(String.format("Path cache: %s", pathCache.getSummary()));
+		if (pipelineStats != null)
+		{
+			log.info(String.format("Packet-in pipeline statistics: %s",
+					pipelineStats.getSummary()));
+		}
+		if (dispatcher != null)
+		{
+			log.info(String.format("Packet-in queues: %s",
+					dispatcher.getSummary()));
+		}
+		if (inFlightFlows != null)
+		{
+			log.info(String.format("In-flight flows: %s",
+					inFlightFlows.getSummary()));
+		}
+		if (linkFlowCounter != null)
+		{
+			log.info(String.format("Flows per link: %s",
+					linkFlowCounter.getSummary()));
+		}
+		if (flowRerouter != null)
+		{
+			log.info(String.format("Flows moved off failed links: %d",
+					flowRerouter.getReroutedFlows()));
+		}
+	}
 }
@@ -0,0 +1,569 @@
+package edu.wisc.cs.sdn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFFlowRemoved;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.OFPort;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.protocol.statistics.OFFlowStatisticsReply;
+
+import net.floodlightcontroller.packet.Ethernet;
+
+/**
+ * The controller's copy of the rules installed in each switch, kept up to
+ * date from the flow-mods sent to switches and the flow-removed messages they
+ * send back, so a switch's flow table can be brought in line by sending only
+ * the rules that differ.
+ * <p>
+ * Each switch's rules are kept in a hash table of primitive longs, six per
+ * rule: five hold the match fields and priority, and one holds the output 
+ * port, timeouts, and the epoch in which the rule was last written. No 
+ * objects are allocated per rule, so each rule costs
+ * 100 to 200 bytes depending on how full the table is. Only
+ * rules that output to at most one port are tracked, since those are the
+ * only rules the routing modules install.
+ * <p>
+ * A switch's epoch advances each time its flow table is requested for
+ * reconciling, with {@link #markReconcile(long)}, so the rules written after 
+ * the request, which the switch's reply may or may not include, can be left
+ * out of the comparison. The epoch is 16 bits, so a rule last written 
+ * exactly 65536 requests ago is also left out until it is written again.
+ */
+public class ShadowFlowTable
+{
+	// Port recorded for a rule that does not output to any port
+	public static final short NO_PORT = OFPort.OFPP_NONE.getValue();
+
+	// Longs per rule, of which all but the last hold the match and priority
+	private static final int WORDS = 6;
+	private static final int KEY_WORDS = 5;
+
+	// Set in the last key word of every slot that holds a rule
+	private static final long USED = 1;
+
+	// Bits of the value word that hold the epoch in which a rule was written
+	private static final long EPOCH_MASK = 0xffffL << 48;
+	private static final long EPOCH_ONE = 1L << 48;
+
+	// Rules in each switch, indexed by DPID
+	private ConcurrentMap<Long,SwitchRules> switches;
+
+	/**
+	 * Creates a shadow with no rules in any switch.
+	 */
+	public ShadowFlowTable()
+	{ this.switches = new ConcurrentHashMap<Long,SwitchRules>(); }
+
+	/**
+	 * Applies a flow-mod that was sent to a switch. Adds and modifications
+	 * replace the rule with the same match and priority; a strict delete
+	 * removes it. A non-strict delete removes every rule with the same match,
+	 * or every rule if the match is fully wildcarded.
+	 * @param dpid the DPID of the switch
+	 * @param flowMod the flow-mod
+	 */
+	public void flowModSent(long dpid, OFFlowMod flowMod)
+	{
+		long[] key = pack(flowMod.getMatch(), flowMod.getPriority());
+		SwitchRules rules = this.getRules(dpid);
+		synchronized (rules)
+		{
+			switch (flowMod.getCommand())
+			{
+			case OFFlowMod.OFPFC_ADD:
+			case OFFlowMod.OFPFC_MODIFY:
+			case OFFlowMod.OFPFC_MODIFY_STRICT:
+				rules.put(key, packValue(getOutPort(flowMod.getActions()),
+						flowMod.getIdleTimeout(), flowMod.getHardTimeout())
+						| rules.epoch);
+				break;
+			case OFFlowMod.OFPFC_DELETE_STRICT:
+				rules.remove(key);
+				break;
+			case OFFlowMod.OFPFC_DELETE:
+				if (MatchNormalizer.WILDCARD_ALL == (int)(key[0] >>> 32))
+				{ rules.clear(); }
+				else
+				{ rules.removeAnyPriority(key); }
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Starts a new epoch for a switch, just before its flow table is requested
+	 * for reconciling, so the rules written until the reply arrives are not
+	 * mistaken for rules missing from the reply.
+	 * @param dpid the DPID of the switch
+	 */
+	public void markReconcile(long dpid)
+	{
+		SwitchRules rules = this.getRules(dpid);
+		synchronized (rules)
+		{ rules.epoch = (rules.epoch + EPOCH_ONE) & EPOCH_MASK; }
+	}
+
+	/**
+	 * Removes a rule the switch reports it removed, because it timed out or
+	 * was deleted.
+	 * @param dpid the DPID of the switch
+	 * @param flowRemoved the switch's flow-removed message
+	 */
+	public void flowRemoved(long dpid, OFFlowRemoved flowRemoved)
+	{
+		SwitchRules rules = switches.get(dpid);
+		if (null == rules)
+		{ return; }
+		long[] key = pack(flowRemoved.getMatch(), flowRemoved.getPriority());
+		synchronized (rules)
+		{ rules.remove(key); }
+	}
+
+	/**
+	 * Gets the output port of a rule in a switch.
+	 * @param dpid the DPID of the switch
+	 * @param match the rule's match
+	 * @param priority the rule's priority
+	 * @return the output port; {@link #NO_PORT} if the switch has no such
+	 * 			rule, or the rule does not output to a port
+	 */
+	public short getOutPort(long dpid, OFMatch match, short priority)
+	{
+		SwitchRules rules = switches.get(dpid);
+		if (null == rules)
+		{ return NO_PORT; }
+		long[] key = pack(match, priority);
+		synchronized (rules)
+		{
+			int slot = rules.find(key);
+			return (slot < 0 ? NO_PORT
+					: getOutPort(rules.words[slot + KEY_WORDS]));
+		}
+	}
+
+	/**
+	 * Gets the number of rules in a switch.
+	 * @param dpid the DPID of the switch
+	 * @return the number of rules
+	 */
+	public int getRuleCount(long dpid)
+	{
+		SwitchRules rules = switches.get(dpid);
+		if (null == rules)
+		{ return 0; }
+		synchronized (rules)
+		{ return rules.size; }
+	}
+
+	/**
+	 * Gets the number of rules in all switches.
+	 * @return the number of rules
+	 */
+	public long getRuleCount()
+	{
+		long count = 0;
+		for (long dpid : switches.keySet())
+		{ count += this.getRuleCount(dpid); }
+		return count;
+	}
+
+	/**
+	 * Computes the flow-mods that bring a switch's flow table in line with the
+	 * shadow. Rules in the shadow but not in the switch are added back if they
+	 * are permanent; a rule with a timeout may have expired while its
+	 * flow-removed message was lost, so it is dropped from the shadow instead,
+	 * and is installed again if its flow is still active. Rules whose output
+	 * port differs are modified, and rules with the given cookie that are not
+	 * in the shadow are deleted. Rules with other cookies belong to other
+	 * applications and are left alone, as are rules written since the last
+	 * call to {@link #markReconcile(long)}, since the switch may have reported
+	 * its rules before or after it applied them.
+	 * @param dpid the DPID of the switch
+	 * @param actual the rules the switch reports it has
+	 * @param cookie the cookie of the rules the shadow is responsible for
+	 * @return the flow-mods to send; empty if the switch matches the shadow
+	 */
+	public List<OFFlowMod> reconcile(long dpid,
+			List<OFFlowStatisticsReply> actual, long cookie)
+	{
+		// Index the switch's rules the same way as the shadow's
+		SwitchRules actualRules = new SwitchRules(actual.size());
+		for (OFFlowStatisticsReply stat : actual)
+		{
+			if (stat.getCookie() != cookie)
+			{ continue; }
+			actualRules.put(pack(stat.getMatch(), stat.getPriority()),
+					packValue(getOutPort(stat.getActions()),
+							stat.getIdleTimeout(), stat.getHardTimeout()));
+		}
+
+		List<OFFlowMod> delta = new ArrayList<OFFlowMod>();
+		SwitchRules rules = this.getRules(dpid);
+		synchronized (rules)
+		{
+			// Add or modify the rules the switch is missing or has wrong
+			long[] key = new long[KEY_WORDS];
+			List<long[]> expired = new ArrayList<long[]>();
+			for (int slot = 0; slot < rules.words.length; slot += WORDS)
+			{
+				if (0 == (rules.words[slot + KEY_WORDS - 1] & USED))
+				{ continue; }
+				System.arraycopy(rules.words, slot, key, 0, KEY_WORDS);
+				long value = rules.words[slot + KEY_WORDS];
+				int actualSlot = actualRules.find(key);
+
+				// Leave out a rule written since the switch was asked for its
+				// rules, which the switch's reply may or may not include
+				if ((value & EPOCH_MASK) == rules.epoch)
+				{
+					if (actualSlot >= 0)
+					{ actualRules.remove(key); }
+				}
+				else if (actualSlot >= 0)
+				{
+					if (getOutPort(actualRules.words[actualSlot + KEY_WORDS])
+							!= getOutPort(value))
+					{
+						delta.add(createFlowMod(OFFlowMod.OFPFC_MODIFY_STRICT,
+								key, value, cookie));
+					}
+					actualRules.remove(key);
+				}
+				else if (0 == getIdleTimeout(value)
+						&& 0 == getHardTimeout(value))
+				{ delta.add(createFlowMod(OFFlowMod.OFPFC_ADD, key, value, cookie)); }
+				else
+				{ expired.add(key.clone()); }
+			}
+			for (long[] expiredKey : expired)
+			{ rules.remove(expiredKey); }
+		}
+
+		// Delete the rules the shadow does not have
+		for (int slot = 0; slot < actualRules.words.length; slot += WORDS)
+		{
+			if (0 == (actualRules.words[slot + KEY_WORDS - 1] & USED))
+			{ continue; }
+			delta.add(createFlowMod(OFFlowMod.OFPFC_DELETE_STRICT,
+					Arrays.copyOfRange(actualRules.words, slot,
+							slot + KEY_WORDS),
+					actualRules.words[slot + KEY_WORDS], cookie));
+		}
+		return delta;
+	}
+
+	/**
+	 * Gets the rules of a switch, creating an empty table if it has none.
+	 */
+	private SwitchRules getRules(long dpid)
+	{
+		SwitchRules rules = switches.get(dpid);
+		if (null == rules)
+		{
+			SwitchRules newRules = new SwitchRules(16);
+			rules = switches.putIfAbsent(dpid, newRules);
+			if (null == rules)
+			{ rules = newRules; }
+		}
+		return rules;
+	}
+
+	/**
+	 * Creates a flow-mod for a rule in the shadow.
+	 */
+	private static OFFlowMod createFlowMod(short command, long[] key,
+			long value, long cookie)
+	{
+		OFFlowMod flowMod = new OFFlowMod();
+		flowMod.setCommand(command);
+		flowMod.setMatch(unpackMatch(key));
+		flowMod.setPriority((short)key[2]);
+		flowMod.setCookie(cookie);
+		flowMod.setBufferId(OFPacketOut.BUFFER_ID_NONE);
+		flowMod.setOutPort(OFPort.OFPP_NONE);
+
+		List<OFAction> actions = new ArrayList<OFAction>();
+		short outPort = getOutPort(value);
+		if (command != OFFlowMod.OFPFC_DELETE_STRICT && outPort != NO_PORT)
+		{ actions.add(new OFActionOutput(outPort)); }
+		flowMod.setActions(actions);
+		flowMod.setLength((short)(OFFlowMod.MINIMUM_LENGTH
+				+ OFActionOutput.MINIMUM_LENGTH * actions.size()));
+
+		if (command != OFFlowMod.OFPFC_DELETE_STRICT)
+		{
+			flowMod.setIdleTimeout(getIdleTimeout(value));
+			flowMod.setHardTimeout(getHardTimeout(value));
+			flowMod.setFlags(OFFlowMod.OFPFF_SEND_FLOW_REM);
+		}
+		return flowMod;
+	}
+
+	/**
+	 * Gets the port the first output action sends packets out of.
+	 */
+	private static short getOutPort(List<OFAction> actions)
+	{
+		if (actions != null)
+		{
+			for (OFAction action : actions)
+			{
+				if (action instanceof OFActionOutput)
+				{ return ((OFActionOutput)action).getPort(); }
+			}
+		}
+		return NO_PORT;
+	}
+
+	/**
+	 * Packs a rule's match and priority into the key words. The wildcards are
+	 * put in the form switches report them in, and fields that are wildcarded
+	 * are zeroed, so a rule packs the same whether it was sent to a switch or
+	 * read back from one, no matter what the wildcarded fields held.
+	 */
+	private static long[] pack(OFMatch match, short priority)
+	{
+		int wildcards = MatchNormalizer.normalizeWildcards(match);
+		long[] key = new long[KEY_WORDS];
+		key[0] = ((long)wildcards << 32)
+				| (wild(wildcards, OFMatch.OFPFW_IN_PORT) ? 0
+						: (match.getInputPort() & 0xffffL) << 16)
+				| (wild(wildcards, OFMatch.OFPFW_DL_VLAN) ? 0
+						: match.getDataLayerVirtualLan() & 0xffffL);
+		key[1] = (wild(wildcards, OFMatch.OFPFW_DL_SRC) ? 0
+						: Ethernet.toLong(match.getDataLayerSource()) << 16)
+				| (wild(wildcards, OFMatch.OFPFW_DL_TYPE) ? 0
+						: match.getDataLayerType() & 0xffffL);
+		key[2] = (wild(wildcards, OFMatch.OFPFW_DL_DST) ? 0
+						: Ethernet.toLong(match.getDataLayerDestination()) << 16)
+				| (priority & 0xffffL);
+		key[3] = ((MatchNormalizer.maskAddress(
+						match.getNetworkSource(), wildcards,
+						OFMatch.OFPFW_NW_SRC_SHIFT) & 0xffffffffL) << 32)
+				| (MatchNormalizer.maskAddress(
+						match.getNetworkDestination(), wildcards,
+						OFMatch.OFPFW_NW_DST_SHIFT) & 0xffffffffL);
+		key[4] = (wild(wildcards, OFMatch.OFPFW_TP_SRC) ? 0
+						: (match.getTransportSource() & 0xffffL) << 48)
+				| (wild(wildcards, OFMatch.OFPFW_TP_DST) ? 0
+						: (match.getTransportDestination() & 0xffffL) << 32)
+				| (wild(wildcards, OFMatch.OFPFW_DL_VLAN_PCP) ? 0
+						: (match.getDataLayerVirtualLanPriorityCodePoint()
+								& 0xffL) << 24)
+				| (wild(wildcards, OFMatch.OFPFW_NW_TOS) ? 0
+						: (match.getNetworkTypeOfService() & 0xffL) << 16)
+				| (wild(wildcards, OFMatch.OFPFW_NW_PROTO) ? 0
+						: (match.getNetworkProtocol() & 0xffL) << 8)
+				| USED;
+		return key;
+	}
+
+	/**
+	 * Rebuilds a match from the key words.
+	 */
+	private static OFMatch unpackMatch(long[] key)
+	{
+		OFMatch match = new OFMatch();
+		match.setWildcards((int)(key[0] >>> 32));
+		match.setInputPort((short)(key[0] >>> 16));
+		match.setDataLayerVirtualLan((short)key[0]);
+		match.setDataLayerSource(Ethernet.toByteArray(key[1] >>> 16));
+		match.setDataLayerType((short)key[1]);
+		match.setDataLayerDestination(Ethernet.toByteArray(key[2] >>> 16));
+		match.setNetworkSource((int)(key[3] >>> 32));
+		match.setNetworkDestination((int)key[3]);
+		match.setTransportSource((short)(key[4] >>> 48));
+		match.setTransportDestination((short)(key[4] >>> 32));
+		match.setDataLayerVirtualLanPriorityCodePoint((byte)(key[4] >>> 24));
+		match.setNetworkTypeOfService((byte)(key[4] >>> 16));
+		match.setNetworkProtocol((byte)(key[4] >>> 8));
+		return match;
+	}
+
+	private static boolean wild(int wildcards, int field)
+	{ return (wildcards & field) != 0; }
+
+	private static long packValue(short outPort, short idleTimeout,
+			short hardTimeout)
+	{
+		return ((outPort & 0xffffL) << 32) | ((idleTimeout & 0xffffL) << 16)
+				| (hardTimeout & 0xffffL);
+	}
+
+	private static short getOutPort(long value)
+	{ return (short)(value >>> 32); }
+
+	private static short getIdleTimeout(long value)
+	{ return (short)(value >>> 16); }
+
+	private static short getHardTimeout(long value)
+	{ return (short)value; }
+
+	/**
+	 * The rules in one switch: a hash table with open addressing and linear
+	 * probing, holding each rule in {@link #WORDS} consecutive longs. Callers
+	 * must hold the object's lock.
+	 */
+	private static class SwitchRules
+	{
+		// The rules, one per slot of WORDS longs; a slot is empty if the
+		// USED bit of its last key word is clear
+		long[] words;
+
+		// Number of rules
+		int size;
+
+		// Epoch stamped on rules as they are written, in the bits of
+		// EPOCH_MASK
+		long epoch;
+
+		SwitchRules(int expectedSize)
+		{
+			int capacity = 16;
+			while (capacity < 2 * expectedSize)
+			{ capacity <<= 1; }
+			this.words = new long[capacity * WORDS];
+			this.size = 0;
+		}
+
+		/**
+		 * Gets the position of the slot holding a rule; -1 if there is none.
+		 */
+		int find(long[] key)
+		{
+			int mask = words.length / WORDS - 1;
+			for (int i = home(key, 0, mask); ; i = (i + 1) & mask)
+			{
+				int slot = i * WORDS;
+				if (0 == (words[slot + KEY_WORDS - 1] & USED))
+				{ return -1; }
+				if (sameKey(words, slot, key, 0))
+				{ return slot; }
+			}
+		}
+
+		/**
+		 * Adds a rule, or replaces the value of a rule with the same key.
+		 */
+		void put(long[] key, long value)
+		{
+			int slot = this.find(key);
+			if (slot < 0)
+			{
+				if (2 * (size + 1) > words.length / WORDS)
+				{ this.resize(2 * words.length / WORDS); }
+				slot = this.insertionSlot(key, 0);
+				System.arraycopy(key, 0, words, slot, KEY_WORDS);
+				size++;
+			}
+			words[slot + KEY_WORDS] = value;
+		}
+
+		/**
+		 * Removes a rule, shifting later rules in the probe sequence back
+		 * into the gap.
+		 */
+		void remove(long[] key)
+		{
+			int slot = this.find(key);
+			if (slot < 0)
+			{ return; }
+			int mask = words.length / WORDS - 1;
+			int gap = slot / WORDS;
+			for (int j = (gap + 1) & mask;
+					(words[j * WORDS + KEY_WORDS - 1] & USED) != 0;
+					j = (j + 1) & mask)
+			{
+				int home = home(words, j * WORDS, mask);
+				if (((j - home) & mask) >= ((j - gap) & mask))
+				{
+					System.arraycopy(words, j * WORDS, words, gap * WORDS,
+							WORDS);
+					gap = j;
+				}
+			}
+			Arrays.fill(words, gap * WORDS, (gap + 1) * WORDS, 0);
+			size--;
+		}
+
+		/**
+		 * Removes every rule whose match, ignoring priority, is the same as
+		 * that of a key.
+		 */
+		void removeAnyPriority(long[] key)
+		{
+			List<long[]> matching = new ArrayList<long[]>();
+			for (int slot = 0; slot < words.length; slot += WORDS)
+			{
+				if ((words[slot + KEY_WORDS - 1] & USED) != 0
+						&& words[slot] == key[0] && words[slot + 1] == key[1]
+						&& (words[slot + 2] >>> 16) == (key[2] >>> 16)
+						&& words[slot + 3] == key[3]
+						&& words[slot + 4] == key[4])
+				{ matching.add(Arrays.copyOfRange(words, slot, slot + KEY_WORDS)); }
+			}
+			for (long[] match : matching)
+			{ this.remove(match); }
+		}
+
+		void clear()
+		{
+			Arrays.fill(words, 0);
+			size = 0;
+		}
+
+		private void resize(int capacity)
+		{
+			long[] old = words;
+			words = new long[capacity * WORDS];
+			for (int slot = 0; slot < old.length; slot += WORDS)
+			{
+				if ((old[slot + KEY_WORDS - 1] & USED) != 0)
+				{
+					int to = this.insertionSlot(old, slot);
+					System.arraycopy(old, slot, words, to, WORDS);
+				}
+			}
+		}
+
+		/**
+		 * Gets the position of the first empty slot in a key's probe
+		 * sequence.
+		 */
+		private int insertionSlot(long[] key, int offset)
+		{
+			int mask = words.length / WORDS - 1;
+			int i = home(key, offset, mask);
+			while ((words[i * WORDS + KEY_WORDS - 1] & USED) != 0)
+			{ i = (i + 1) & mask; }
+			return i * WORDS;
+		}
+
+		private static boolean sameKey(long[] words, int slot, long[] key,
+				int offset)
+		{
+			for (int i = 0; i < KEY_WORDS; i++)
+			{
+				if (words[slot + i] != key[offset + i])
+				{ return false; }
+			}
+			return true;
+		}
+
+		private static int home(long[] key, int offset, int mask)
+		{
+			long h = 0;
+			for (int i = 0; i < KEY_WORDS; i++)
+			{ h = (h + key[offset + i]) * 0x9E3779B97F4A7C15L; }
+			return (int)(h ^ (h >>> 32)) & mask;
+		}
+	}
+}
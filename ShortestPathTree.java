@@ -0,0 +1,283 @@
+package edu.wisc.cs.sdn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The shortest paths from a single source vertex to every other vertex in a 
+ * graph, as computed by Dijkstra's algorithm. Distances and predecessors are 
+ * stored in arrays indexed by vertex id, so a tree holds no references into 
+ * the graph it was computed from and never changes once it is built.
+ * <p>
+ * Besides the one predecessor on each vertex's shortest path, a tree can 
+ * hold every predecessor through which the vertex is reached at the same 
+ * cost, so a path can be chosen among all equal-cost paths.
+ */
+class ShortestPathTree
+{
+    private final int sourceId;
+    private final double[] distance;
+    private final int[] previous;
+    
+    // The equal-cost predecessors of vertex v are equalCost[equalCostStart[v]]
+    // through equalCost[equalCostStart[v+1]-1]; null if only previous is kept
+    private final int[] equalCostStart;
+    private final int[] equalCost;
+    
+    /**
+     * Create a shortest path tree with one predecessor for each vertex.
+     * @param sourceId the id of the vertex from which all paths originate
+     * @param distance the distance from the source to each vertex
+     * @param previous the id of the vertex preceding each vertex on its 
+     * 			shortest path; -1 for the source and unreachable vertices
+     */
+    ShortestPathTree(int sourceId, double[] distance, int[] previous)
+    { this(sourceId, distance, previous, null, null); }
+    
+    /**
+     * Create a shortest path tree with all equal-cost predecessors.
+     * @param sourceId the id of the vertex from which all paths originate
+     * @param distance the distance from the source to each vertex
+     * @param previous the id of the vertex preceding each vertex on its 
+     * 			shortest path; -1 for the source and unreachable vertices
+     * @param equalCostStart for each vertex, where its equal-cost 
+     * 			predecessors start in equalCost, followed by the total count
+     * @param equalCost the ids of the equal-cost predecessors of all vertices
+     */
+    ShortestPathTree(int sourceId, double[] distance, int[] previous,
+    		int[] equalCostStart, int[] equalCost)
+    {
+    	this.sourceId = sourceId;
+    	this.distance = distance;
+    	this.previous = previous;
+    	this.equalCostStart = equalCostStart;
+    	this.equalCost = equalCost;
+    }
+    
+    /**
+     * Get the id of the vertex from which all paths originate.
+     * @return the id of the vertex from which all paths originate
+     */
+    public int getSourceId()
+    { return this.sourceId; }
+    
+    /**
+     * Get one more than the largest vertex id the tree has entries for.
+     * @return the number of entries in the tree
+     */
+    public int getVertexCount()
+    { return this.distance.length; }
+    
+    /**
+     * Check whether the tree lists every equal-cost predecessor of each 
+     * vertex, or only the one its shortest path follows.
+     * @return true if the tree lists every equal-cost predecessor
+     */
+    public boolean hasEqualCost()
+    { return this.equalCostStart != null; }
+    
+    /**
+     * Copy the distance to every vertex, for building an updated tree.
+     * @param length the length of the copy; entries past the end of the tree
+     * 			are infinite
+     * @return the copy
+     */
+    double[] copyDistances(int length)
+    {
+    	double[] copy = Arrays.copyOf(distance, length);
+    	for (int id = distance.length; id < length; id++)
+    	{ copy[id] = Double.POSITIVE_INFINITY; }
+    	return copy;
+    }
+    
+    /**
+     * Copy the predecessor of every vertex, for building an updated tree.
+     * @param length the length of the copy; entries past the end of the tree
+     * 			are -1
+     * @return the copy
+     */
+    int[] copyPrevious(int length)
+    {
+    	int[] copy = Arrays.copyOf(previous, length);
+    	for (int id = previous.length; id < length; id++)
+    	{ copy[id] = -1; }
+    	return copy;
+    }
+    
+    /**
+     * Get the length of the shortest path to a vertex.
+     * @param target the vertex at the end of the path
+     * @return the length of the shortest path; infinity if there is no path
+     */
+    public double getDistanceTo(Vertex target)
+    {
+    	int id = target.getId();
+    	if (id >= distance.length)
+    	{ return Double.POSITIVE_INFINITY; }
+    	return distance[id];
+    }
+    
+    /**
+     * Get the length of the shortest path to a vertex.
+     * @param id the id of the vertex at the end of the path
+     * @return the length of the shortest path; infinity if there is no path
+     */
+    public double getDistance(int id)
+    {
+    	if (id >= distance.length)
+    	{ return Double.POSITIVE_INFINITY; }
+    	return distance[id];
+    }
+    
+    /**
+     * Get the id of the vertex preceding a vertex on its shortest path.
+     * @param id the id of a vertex
+     * @return the id of the preceding vertex; -1 for the source and vertices 
+     * 			that cannot be reached
+     */
+    public int getPreviousId(int id)
+    {
+    	if (id >= previous.length)
+    	{ return -1; }
+    	return previous[id];
+    }
+    
+    /**
+     * Get the number of predecessors through which a vertex is reached at the
+     * cost of its shortest path.
+     * @param id the id of a vertex
+     * @return the number of equal-cost predecessors; 0 for the source and 
+     * 			vertices that cannot be reached
+     */
+    public int getPredecessorCount(int id)
+    {
+    	if (id >= previous.length || previous[id] < 0)
+    	{ return 0; }
+    	if (null == equalCostStart)
+    	{ return 1; }
+    	return equalCostStart[id + 1] - equalCostStart[id];
+    }
+    
+    /**
+     * Get one of the predecessors through which a vertex is reached at the 
+     * cost of its shortest path.
+     * @param id the id of a vertex
+     * @param index which predecessor to get, from 0 up to the number of 
+     * 			equal-cost predecessors
+     * @return the id of the predecessor
+     */
+    public int getPredecessorId(int id, int index)
+    {
+    	if (null == equalCostStart)
+    	{ return previous[id]; }
+    	return equalCost[equalCostStart[id] + index];
+    }
+    
+    /**
+     * Get the shortest path to a vertex.
+     * @param graph the graph in which to look up the vertices along the path
+     * @param target the vertex at the end of the path
+     * @return the vertices along the path, starting with the source; empty if
+     * 			there is no path
+     */
+    public List<Vertex> getPathTo(TopologyGraph graph, Vertex target)
+    {
+    	List<Vertex> path = new ArrayList<Vertex>();
+    	if (Double.isInfinite(this.getDistanceTo(target)))
+    	{ return path; }
+    	
+    	for (int id = target.getId(); id >= 0; id = previous[id])
+    	{ path.add(graph.getVertexById(id)); }
+    	
+    	Collections.reverse(path);
+    	return path;
+    }
+    
+    /**
+     * Choose one of the equal-cost shortest paths to a vertex. Walking back 
+     * from the target, each vertex picks among its equal-cost predecessors 
+     * by mixing the hash with its own id, so the same hash always yields the
+     * same path and different hashes spread over all of the paths.
+     * @param graph the graph in which to look up the vertices along the path
+     * @param target the vertex at the end of the path
+     * @param flowHash hash of the fields that identify a flow
+     * @return the vertices along the path, starting with the source; empty if
+     * 			there is no path
+     */
+    public List<Vertex> getPathTo(TopologyGraph graph, Vertex target, 
+    		int flowHash)
+    {
+    	List<Vertex> path = new ArrayList<Vertex>();
+    	if (Double.isInfinite(this.getDistanceTo(target)))
+    	{ return path; }
+    	
+    	int id = target.getId();
+    	path.add(target);
+    	while (id != sourceId)
+    	{
+    		int count = this.getPredecessorCount(id);
+    		int h = (flowHash ^ (id * 0x9E3779B9)) * 0x85EBCA6B;
+    		h ^= h >>> 16;
+    		id = this.getPredecessorId(id, (h & Integer.MAX_VALUE) % count);
+    		path.add(graph.getVertexById(id));
+    	}
+    	
+    	Collections.reverse(path);
+    	return path;
+    }
+    
+    /**
+     * Check whether a link is the last hop on a shortest path, or on one of 
+     * the equal-cost shortest paths, to the vertex it reaches.
+     * @param srcId the id of the vertex from which the link originates
+     * @param dstId the id of the vertex the link reaches
+     * @return true if the link is part of the tree, otherwise false
+     */
+    public boolean usesLink(int srcId, int dstId)
+    {
+    	int count = this.getPredecessorCount(dstId);
+    	for (int i = 0; i < count; i++)
+    	{
+    		if (this.getPredecessorId(dstId, i) == srcId)
+    		{ return true; }
+    	}
+    	return false;
+    }
+    
+    /**
+     * Check whether a link with a given weight would shorten the path to the 
+     * vertex it reaches, or add another path of the same length.
+     * @param srcId the id of the vertex from which the link originates
+     * @param dstId the id of the vertex the link reaches
+     * @param weight the weight of the link
+     * @return true if the tree would change were the link part of the graph
+     */
+    public boolean isShortenedBy(int srcId, int dstId, double weight)
+    {
+    	if (srcId >= distance.length || Double.isInfinite(distance[srcId]))
+    	{ return false; }
+    	if (dstId >= distance.length)
+    	{ return true; }
+    	double through = distance[srcId] + weight;
+    	return (through < distance[dstId] 
+    			|| (equalCostStart != null 
+    					&& isEqualCost(through, distance[dstId])));
+    }
+    
+    /**
+     * Check whether two path lengths are equal, allowing for rounding in the
+     * sums of link weights. A missing path, of infinite length, is not equal
+     * to any path, not even another missing one.
+     * @param a the length of one path
+     * @param b the length of the other path
+     * @return true if the lengths are equal and finite, otherwise false
+     */
+    static boolean isEqualCost(double a, double b)
+    {
+    	if (Double.isInfinite(a) || Double.isInfinite(b))
+    	{ return false; }
+    	return Math.abs(a - b) <= 1e-9 * Math.max(Math.abs(a), Math.abs(b));
+    }
+}
@@ -0,0 +1,157 @@
+package edu.wisc.cs.sdn;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+import org.openflow.protocol.OFPhysicalPort;
+import org.openflow.protocol.OFPort;
+
+import net.floodlightcontroller.core.IOFSwitch;
+
+/**
+ * A loop-free subset of the links in a topology snapshot, spanning every 
+ * switch that can be reached. Flooding only over the links in the tree, plus
+ * ports that do not lead to another switch, delivers a broadcast to every 
+ * switch exactly once.
+ */
+class SpanningTree
+{
+    private final long version;
+    private final Map<Long,Set<Short>> blockedPorts;
+    
+    private SpanningTree(long version, Map<Long,Set<Short>> blockedPorts)
+    {
+        this.version = version;
+        this.blockedPorts = blockedPorts;
+    }
+    
+    /**
+     * Compute a spanning tree of a topology snapshot. Each connected group of
+     * switches is explored breadth-first from its vertex with the lowest id, 
+     * so the tree only changes when the topology does.
+     * @param graph the snapshot of the topology
+     * @return the spanning tree
+     */
+    public static SpanningTree compute(TopologyGraph graph)
+    {
+        int vertexCount = graph.getVertexCount();
+        boolean[] visited = new boolean[vertexCount];
+        Map<Long,Set<Short>> treePorts = new HashMap<Long,Set<Short>>();
+        Queue<Vertex> queue = new ArrayDeque<Vertex>();
+        
+        for (int root = 0; root < vertexCount; root++)
+        {
+            Vertex rootVertex = graph.getVertexById(root);
+            if (null == rootVertex || visited[root])
+            { continue; }
+            visited[root] = true;
+            queue.add(rootVertex);
+            
+            while (!queue.isEmpty())
+            {
+                Vertex u = queue.poll();
+                for (Edge e : u.getAdjacencies())
+                {
+                    Vertex v = e.getDstVertex();
+                    if (visited[v.getId()])
+                    { continue; }
+                    visited[v.getId()] = true;
+                    addPort(treePorts, u, e.getSrcSwitchPort());
+                    addPort(treePorts, v, e.getDstSwitchPort());
+                    queue.add(v);
+                }
+            }
+        }
+        
+        // Block every port that leads to another switch but is not in the tree
+        Map<Long,Set<Short>> blockedPorts = new HashMap<Long,Set<Short>>();
+        for (Vertex u : graph.getVertices())
+        {
+            Set<Short> inTree = treePorts.get(u.getSwitch().getId());
+            for (Edge e : u.getAdjacencies())
+            {
+                if (null == inTree || !inTree.contains(e.getSrcSwitchPort()))
+                { addPort(blockedPorts, u, e.getSrcSwitchPort()); }
+            }
+        }
+        return new SpanningTree(graph.getVersion(), blockedPorts);
+    }
+    
+    private static void addPort(Map<Long,Set<Short>> ports, Vertex v, 
+            short port)
+    {
+        Set<Short> switchPorts = ports.get(v.getSwitch().getId());
+        if (null == switchPorts)
+        {
+            switchPorts = new HashSet<Short>();
+            ports.put(v.getSwitch().getId(), switchPorts);
+        }
+        switchPorts.add(port);
+    }
+    
+    /**
+     * Get the version of the topology the tree was computed from.
+     * @return the version of the topology
+     */
+    public long getVersion()
+    { return this.version; }
+    
+    /**
+     * Check whether a port leads to another switch over a link that is not 
+     * in the tree, so packets must not be flooded out of it.
+     * @param dpid the switch
+     * @param port the port on the switch
+     * @return true if the port is blocked, otherwise false
+     */
+    public boolean isBlocked(long dpid, short port)
+    {
+        Set<Short> switchPorts = blockedPorts.get(dpid);
+        return (switchPorts != null && switchPorts.contains(port));
+    }
+    
+    /**
+     * Get the ports on a switch that are blocked.
+     * @param dpid the switch
+     * @return the blocked ports
+     */
+    public Set<Short> getBlockedPorts(long dpid)
+    {
+        Set<Short> switchPorts = blockedPorts.get(dpid);
+        return (null == switchPorts ? Collections.<Short>emptySet()
+                : Collections.unmodifiableSet(switchPorts));
+    }
+    
+    /**
+     * Get the ports out of which to flood a packet received by a switch: each
+     * enabled port, except the port on which the packet was received, the 
+     * special local port, and ports outside the tree. A packet that arrived 
+     * over a link outside the tree is not flooded at all, since a copy of it
+     * reaches the switch over the tree.
+     * @param sw the switch that received the packet
+     * @param inPort the port on which the packet was received
+     * @return the ports to flood the packet out of; empty if none
+     */
+    public List<Short> getFloodPorts(IOFSwitch sw, short inPort)
+    {
+        List<Short> outPorts = new ArrayList<Short>();
+        if (this.isBlocked(sw.getId(), inPort))
+        { return outPorts; }
+        for (OFPhysicalPort port : sw.getEnabledPorts())
+        {
+            short portNumber = port.getPortNumber();
+            if (inPort == portNumber 
+                    || OFPort.OFPP_LOCAL.getValue() == portNumber
+                    || this.isBlocked(sw.getId(), portNumber))
+            { continue; }
+            outPorts.add(portNumber);
+        }
+        return outPorts;
+    }
+}
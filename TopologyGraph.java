@@ -0,0 +1,259 @@
+package edu.wisc.cs.sdn;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import net.floodlightcontroller.core.IOFSwitch;
+
+/**
+ * An immutable snapshot of the network topology: a graph of vertices (i.e.,
+ * switches) and edges (i.e., links), indexed by switch DPID and by vertex id.
+ * A snapshot never changes once it is built, so any number of threads can
+ * compute paths over it at the same time. The snapshot is stored as a
+ * {@link CompactGraph}; the vertex and edge objects are a view that is
+ * convenient to navigate, created the first time each one is needed.
+ */
+class TopologyGraph
+{
+    /**
+     * Collects the switches and links of a snapshot, and builds it.
+     */
+    static class Builder
+    {
+    	private final long version;
+    	private final IOFSwitch[] switches;
+    	private int switchCount;
+
+    	// Links in the order they were added
+    	private int linkCount;
+    	private int[] srcIds;
+    	private int[] dstIds;
+    	private short[] srcPorts;
+    	private short[] dstPorts;
+    	private double[] weights;
+
+    	/**
+    	 * Start building a snapshot.
+    	 * @param version the version of the topology the snapshot reflects
+    	 * @param vertexCount one more than the largest vertex id
+    	 */
+    	Builder(long version, int vertexCount)
+    	{
+    		this.version = version;
+    		this.switches = new IOFSwitch[vertexCount];
+    		this.srcIds = new int[16];
+    		this.dstIds = new int[16];
+    		this.srcPorts = new short[16];
+    		this.dstPorts = new short[16];
+    		this.weights = new double[16];
+    	}
+
+    	/**
+    	 * Add a switch.
+    	 * @param id the switch's vertex id
+    	 * @param sw the switch
+    	 */
+    	void addSwitch(int id, IOFSwitch sw)
+    	{
+    		if (null == switches[id])
+    		{ switchCount++; }
+    		switches[id] = sw;
+    	}
+
+    	/**
+    	 * Add a link between two switches that were already added. At most one
+    	 * link is added from one switch to another.
+    	 * @param srcId the vertex id of the switch the link leaves
+    	 * @param srcPort the port the link leaves its source switch from
+    	 * @param dstId the vertex id of the switch the link reaches
+    	 * @param dstPort the port the link reaches its destination switch on
+    	 * @param weight the cost of sending traffic over the link
+    	 */
+    	void addLink(int srcId, short srcPort, int dstId, short dstPort,
+    			double weight)
+    	{
+    		if (null == switches[srcId] || null == switches[dstId])
+    		{
+    			throw new IllegalArgumentException(String.format(
+    					"Link %d -> %d to a switch not in the graph", srcId,
+    					dstId));
+    		}
+    		if (linkCount == srcIds.length)
+    		{
+    			int capacity = 2 * linkCount;
+    			srcIds = Arrays.copyOf(srcIds, capacity);
+    			dstIds = Arrays.copyOf(dstIds, capacity);
+    			srcPorts = Arrays.copyOf(srcPorts, capacity);
+    			dstPorts = Arrays.copyOf(dstPorts, capacity);
+    			weights = Arrays.copyOf(weights, capacity);
+    		}
+    		srcIds[linkCount] = srcId;
+    		dstIds[linkCount] = dstId;
+    		srcPorts[linkCount] = srcPort;
+    		dstPorts[linkCount] = dstPort;
+    		weights[linkCount] = weight;
+    		linkCount++;
+    	}
+
+    	/**
+    	 * Build the snapshot. Switches are numbered in order of vertex id, and
+    	 * the links leaving each switch keep the order they were added in.
+    	 * @return the snapshot
+    	 */
+    	TopologyGraph build()
+    	{
+    		int[] indices = new int[switches.length];
+    		Arrays.fill(indices, CompactGraph.NO_INDEX);
+    		int[] vertexIds = new int[switchCount];
+    		long[] dpids = new long[switchCount];
+    		IOFSwitch[] byIndex = new IOFSwitch[switchCount];
+    		int n = 0;
+    		for (int id = 0; id < switches.length; id++)
+    		{
+    			if (null == switches[id])
+    			{ continue; }
+    			indices[id] = n;
+    			vertexIds[n] = id;
+    			dpids[n] = switches[id].getId();
+    			byIndex[n] = switches[id];
+    			n++;
+    		}
+
+    		// Sort the links by source switch
+    		int[] offsets = new int[n + 1];
+    		for (int i = 0; i < linkCount; i++)
+    		{ offsets[indices[srcIds[i]] + 1]++; }
+    		for (int i = 0; i < n; i++)
+    		{ offsets[i + 1] += offsets[i]; }
+    		int[] next = Arrays.copyOf(offsets, n);
+    		int[] src = new int[linkCount];
+    		int[] dst = new int[linkCount];
+    		short[] srcPort = new short[linkCount];
+    		short[] dstPort = new short[linkCount];
+    		double[] weight = new double[linkCount];
+    		for (int i = 0; i < linkCount; i++)
+    		{
+    			int s = indices[srcIds[i]];
+    			int link = next[s]++;
+    			src[link] = s;
+    			dst[link] = indices[dstIds[i]];
+    			srcPort[link] = srcPorts[i];
+    			dstPort[link] = dstPorts[i];
+    			weight[link] = weights[i];
+    		}
+
+    		return new TopologyGraph(new CompactGraph(version, indices,
+    				vertexIds, dpids, offsets, src, dst, srcPort, dstPort,
+    				weight), byIndex);
+    	}
+    }
+
+    private final CompactGraph compact;
+
+    // Switch at each dense index
+    private final IOFSwitch[] switches;
+
+    // Vertex at each dense index, created the first time it is needed
+    private final AtomicReferenceArray<Vertex> vertices;
+
+    /**
+     * Create a snapshot from its compact form.
+     * @param compact the switches and links in the graph
+     * @param switches the switch at each dense index of the compact graph
+     */
+    private TopologyGraph(CompactGraph compact, IOFSwitch[] switches)
+    {
+    	this.compact = compact;
+    	this.switches = switches;
+    	this.vertices = new AtomicReferenceArray<Vertex>(switches.length);
+    }
+
+    /**
+     * Get the version of the topology the snapshot reflects.
+     * @return the version of the topology the snapshot reflects
+     */
+    public long getVersion()
+    { return this.compact.getVersion(); }
+
+    /**
+     * Get an upper bound on the ids of the vertices in the graph.
+     * @return one more than the largest vertex id
+     */
+    public int getVertexCount()
+    { return this.compact.getVertexCount(); }
+
+    /**
+     * Get the vertex representing a switch.
+     * @param dpid the switch's DPID
+     * @return the vertex for the switch; null if the switch is not in the graph
+     */
+    public Vertex getVertexByDpid(long dpid)
+    {
+    	int index = compact.getIndexForDpid(dpid);
+    	return (CompactGraph.NO_INDEX == index ? null
+    			: this.getVertexByIndex(index));
+    }
+
+    /**
+     * Get the vertex with a given id.
+     * @param id the vertex id
+     * @return the vertex with the id; null if no such vertex is in the graph
+     */
+    public Vertex getVertexById(int id)
+    {
+    	int index = compact.getIndex(id);
+    	return (CompactGraph.NO_INDEX == index ? null
+    			: this.getVertexByIndex(index));
+    }
+
+    /**
+     * Get the vertex at a dense index of the compact graph. Each switch has a
+     * single vertex object per snapshot, so vertices can be compared by
+     * identity.
+     * @param index the dense index
+     * @return the vertex
+     */
+    Vertex getVertexByIndex(int index)
+    {
+    	Vertex v = vertices.get(index);
+    	if (null == v)
+    	{
+    		vertices.compareAndSet(index, null,
+    				new Vertex(this, index, switches[index]));
+    		v = vertices.get(index);
+    	}
+    	return v;
+    }
+
+    /**
+     * Get all vertices in the graph.
+     * @return all vertices in the graph, in order of vertex id
+     */
+    public List<Vertex> getVertices()
+    {
+    	return new AbstractList<Vertex>() {
+    		@Override
+    		public Vertex get(int index)
+    		{ return getVertexByIndex(index); }
+
+    		@Override
+    		public int size()
+    		{ return switches.length; }
+    	};
+    }
+
+    /**
+     * Get the compressed sparse row form of the graph, over which paths are
+     * computed.
+     * @return the compact graph
+     */
+    public CompactGraph getCompactGraph()
+    { return this.compact; }
+
+    @Override
+    public String toString()
+    { return "TopologyGraph[version="+this.getVersion()+", vertices="
+    		+this.getVertices()+"]"; }
+}
@@ -28,28 +28,49 @@ Modified by: Aaron Gember, agember@cs.wisc.edu, University of Wisconsin-Madison
 
 package edu.wisc.cs.sdn;
 
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Collections;
+import java.util.List;
 
 import net.floodlightcontroller.core.IOFSwitch;
 
 /**
- * A vertex in a graph, representing a switch in a network topology.
+ * A vertex in a graph, representing a switch in a network topology. A vertex 
+ * is a view of one switch in a {@link CompactGraph}; its edges are created 
+ * from the compact graph the first time they are needed, and never change.
  */
-class Vertex implements Comparable<Vertex>
+class Vertex
 {
+    private final TopologyGraph graph;
+    private final int index;
+    private final int id;
     private final IOFSwitch sw;
-    private Map<Vertex,Edge> adjacencies = new HashMap<Vertex,Edge>();
-    public double minDistance = Double.POSITIVE_INFINITY;
-    public Vertex previous;
+    
+    // Edges leaving and entering the vertex; null until first needed
+    private volatile List<Edge> adjacencies;
+    private volatile List<Edge> incoming;
     
     /**
      * Create a new vertex.
+     * @param graph the graph containing the vertex
+     * @param index the dense index of the vertex in the graph's compact form
      * @param sw the switch this vertex represents
      */
-    public Vertex(IOFSwitch sw)
-    { this.sw = sw; }
+    Vertex(TopologyGraph graph, int index, IOFSwitch sw)
+    { 
+    	this.graph = graph;
+    	this.index = index;
+    	this.id = graph.getCompactGraph().getVertexId(index);
+    	this.sw = sw;
+    }
+    
+    /**
+     * Get the integer that identifies this vertex.
+     * @return the integer that identifies this vertex
+     */
+    public int getId()
+    { return this.id; }
     
     /**
      * Get the switch this vertex represents.
@@ -62,26 +83,6 @@ class Vertex implements Comparable<Vertex>
     public String toString()
     { return ""+sw.getId(); }
     
-    @Override
-    public int compareTo(Vertex other)
-    { return Double.compare(minDistance, other.minDistance); }
-    
-    /**
-     * Add an edge to a neighboring switch, representing a link to that switch.
-     * @param dstSwitch the vertex representing the neighboring switch
-     * @param srcSwitchPort the port on this vertex (i.e., switch) that is 
-     * 						one end of the link
-     * @param dstSwitchPort the port on the neighbor vformsertex (i.e., switch) that
-     * 						is the other end of the link
-     * @return the edge that was added to the topology
-     */
-    public Edge addNeighbor(Vertex dstSwitch, short srcSwitchPort, short dstSwitchPort)
-    {
-    	Edge edge = new Edge(this, srcSwitchPort, dstSwitch, dstSwitchPort);
-    	adjacencies.put(dstSwitch, edge); 
-    	return edge;
-    }
-    
     /**
      * Get the edge (i.e., a link) to a neighboring switch.
      * @param neighbor the vertex representing the neighboring switch
@@ -89,12 +90,90 @@ class Vertex implements Comparable<Vertex>
      * 	       null if none exists
      */
     public Edge getEdgeToNeighbor(Vertex neighbor)
-    { return adjacencies.get(neighbor); }
+    {
+    	if (null == neighbor || neighbor.graph != graph)
+    	{ return null; }
+    	CompactGraph compact = graph.getCompactGraph();
+    	int first = compact.getFirstLink(index);
+    	int end = compact.getFirstLink(index + 1);
+    	for (int link = first; link < end; link++)
+    	{
+    		if (compact.getDst(link) == neighbor.index)
+    		{ return this.getAdjacencies().get(link - first); }
+    	}
+    	return null;
+    }
     
     /**
      * Get a list of all edges (i.e., links) going out from this vertex.
      * @return a list of all edges (i.e., links) going out form this vertex.
      */
-    public Collection<Edge> getAdjacencies()
-    { return adjacencies.values(); }
+    public List<Edge> getAdjacencies()
+    {
+    	List<Edge> result = adjacencies;
+    	if (null == result)
+    	{
+    		synchronized (this)
+    		{
+    			if (null == adjacencies)
+    			{
+    				CompactGraph compact = graph.getCompactGraph();
+    				int first = compact.getFirstLink(index);
+    				Edge[] edges = new Edge[compact.getFirstLink(index + 1) 
+    						- first];
+    				for (int i = 0; i < edges.length; i++)
+    				{
+    					int link = first + i;
+    					edges[i] = new Edge(this, compact.getSrcPort(link), 
+    							graph.getVertexByIndex(compact.getDst(link)), 
+    							compact.getDstPort(link), 
+    							compact.getWeight(link));
+    				}
+    				adjacencies = Collections.unmodifiableList(
+    						Arrays.asList(edges));
+    			}
+    			result = adjacencies;
+    		}
+    	}
+    	return result;
+    }
+    
+    /**
+     * Get a list of all edges (i.e., links) coming in to this vertex.
+     * @return a list of all edges (i.e., links) coming in to this vertex
+     */
+    public Collection<Edge> getIncoming()
+    {
+    	List<Edge> result = incoming;
+    	if (null == result)
+    	{
+    		// Collect the edges without holding this vertex's lock, since
+    		// getting a neighbor's adjacencies takes the neighbor's lock, and
+    		// a neighbor collecting its own incoming edges could otherwise
+    		// wait on this vertex while holding its lock
+    		CompactGraph compact = graph.getCompactGraph();
+    		int first = compact.getFirstIncoming(index);
+    		Edge[] edges = new Edge[compact.getFirstIncoming(index + 1) 
+    				- first];
+    		for (int i = 0; i < edges.length; i++)
+    		{
+    			int link = compact.getIncomingLink(first + i);
+    			int src = compact.getSrc(link);
+    			edges[i] = graph.getVertexByIndex(src).getAdjacencies()
+    					.get(link - compact.getFirstLink(src));
+    		}
+    		
+    		// Publish the first list collected, so every caller sees the same
+    		synchronized (this)
+    		{
+    			if (null == incoming)
+    			{ 
+    				incoming = Collections.unmodifiableList(
+    						Arrays.asList(edges)); 
+    			}
+    			result = incoming;
+    		}
+    	}
+    	return result;
+    }
 }
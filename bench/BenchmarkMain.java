@@ -0,0 +1,24 @@
+package edu.wisc.cs.sdn;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the routing benchmarks with the GC profiler attached, so every result
+ * reports the allocation rate (bytes allocated per second and per operation)
+ * alongside throughput or time. Accepts the usual JMH command line, e.g. a
+ * regular expression selecting the benchmarks and -p shape=fattree to fix a
+ * parameter; with no arguments, every benchmark runs.
+ */
+public class BenchmarkMain
+{
+    public static void main(String[] args) throws Exception
+    {
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,111 @@
+package edu.wisc.cs.sdn;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares a priority-queue Dijkstra, which removes and re-adds a vertex on
+ * every relaxation as the original implementation did, with the indexed-heap
+ * Dijkstra, which lowers its key in place, over both the vertex and edge 
+ * objects and the compact array-based form of the graph. Each invocation 
+ * computes all paths from one switch and extracts the path to another.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DijkstraBenchmark
+{
+    @Param({"fattree", "leafspine", "torus", "random"})
+    public String shape;
+    
+    @Param({"1000", "5000", "10000"})
+    public int switches;
+    
+    // Whether every equal-cost predecessor is found, as for ECMP
+    @Param({"false", "true"})
+    public boolean equalCost;
+    
+    private TopologyGraph graph;
+    private Vertex source;
+    private Vertex target;
+    
+    @Setup
+    public void setUp()
+    {
+        graph = TopologyGenerator.create(shape, switches);
+        source = graph.getVertexById(graph.getVertexCount() - 1);
+        target = graph.getVertexById(0);
+        graph.getCompactGraph();
+    }
+    
+    @Benchmark
+    public double priorityQueue()
+    {
+        return priorityQueueDistances(graph, source)[target.getId()];
+    }
+    
+    @Benchmark
+    public List<Vertex> indexedHeap()
+    {
+        return Dijkstra.computeShortestPaths(graph, source, equalCost)
+                .getPathTo(graph, target);
+    }
+    
+    @Benchmark
+    public List<Vertex> compactGraph()
+    {
+        return Dijkstra.computeShortestPaths(graph.getCompactGraph(), 
+                source.getId(), equalCost).getPathTo(graph, target);
+    }
+    
+    /**
+     * The original algorithm, which calls PriorityQueue.remove (a linear scan)
+     * whenever a queued vertex's distance improves.
+     */
+    static double[] priorityQueueDistances(TopologyGraph graph, Vertex source)
+    {
+        final double[] distance = new double[graph.getVertexCount()];
+        Arrays.fill(distance, Double.POSITIVE_INFINITY);
+        PriorityQueue<Vertex> vertexQueue = new PriorityQueue<Vertex>(16,
+                new Comparator<Vertex>() {
+                    public int compare(Vertex a, Vertex b)
+                    { return Double.compare(distance[a.getId()], distance[b.getId()]); }
+                });
+        distance[source.getId()] = 0.;
+        vertexQueue.add(source);
+        while (!vertexQueue.isEmpty())
+        {
+            Vertex u = vertexQueue.poll();
+            for (Edge e : u.getAdjacencies())
+            {
+                Vertex v = e.getDstVertex();
+                double distanceThroughU = distance[u.getId()] + e.getWeight();
+                if (distanceThroughU < distance[v.getId()])
+                {
+                    vertexQueue.remove(v);
+                    distance[v.getId()] = distanceThroughU;
+                    vertexQueue.add(v);
+                }
+            }
+        }
+        return distance;
+    }
+}
@@ -0,0 +1,67 @@
+package edu.wisc.cs.sdn;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.floodlightcontroller.devicemanager.SwitchPort;
+
+/**
+ * Measures looking up where a host is attached, through the allocation-free 
+ * location index and through the SwitchPort lookup built on it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HostLookupBenchmark
+{
+    // Number of different lookups the benchmarks cycle through
+    private static final int LOOKUPS = 1024;
+    
+    @Param({"1000", "100000"})
+    public int hosts;
+    
+    private NetworkTopology netTopo;
+    private long[] macs;
+    private int next;
+    
+    @Setup
+    public void setUp()
+    {
+        TopologyGraph graph = TopologyGenerator.create("fattree", 1000);
+        StubController controller = new StubController(graph);
+        int[] switchIds = new int[graph.getVertexCount()];
+        for (int i = 0; i < switchIds.length; i++)
+        { switchIds[i] = i; }
+        controller.addHosts(hosts, switchIds);
+        netTopo = controller.getTopology();
+        
+        // Look up known hosts, with one unknown host in every eight
+        macs = new long[LOOKUPS];
+        Random rand = new Random(42);
+        for (int i = 0; i < LOOKUPS; i++)
+        { macs[i] = 1 + rand.nextInt(hosts + hosts / 7); }
+    }
+    
+    @Benchmark
+    public long hostLocation()
+    { return netTopo.getHostLocation(macs[next++ & (LOOKUPS - 1)]); }
+    
+    @Benchmark
+    public SwitchPort switchPortForHost()
+    { return netTopo.getSwitchPortForHost(macs[next++ & (LOOKUPS - 1)]); }
+}
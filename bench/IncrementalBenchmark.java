@@ -0,0 +1,125 @@
+package edu.wisc.cs.sdn;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares computing a shortest path tree from scratch with updating the
+ * previous tree incrementally, after one link fails, changes weight, or is
+ * added. The updated trees are checked against trees computed from scratch
+ * by IncrementalShortestPathsTest.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IncrementalBenchmark
+{
+    // Number of different edits the benchmarks cycle through
+    private static final int EDITS = 64;
+
+    @Param({"fattree", "leafspine", "torus", "random"})
+    public String shape;
+
+    @Param({"1000", "5000"})
+    public int switches;
+
+    @Param({"fail", "weight", "add"})
+    public String edit;
+
+    // Whether every equal-cost predecessor is found, as for ECMP
+    @Param({"false", "true"})
+    public boolean equalCost;
+
+    private Vertex source;
+    private ShortestPathTree tree;
+    private TopologyGraph[] edited;
+    private Collection<Long>[] changedLinks;
+    private int next;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp()
+    {
+        TopologyGraph graph = TopologyGenerator.create(shape, switches);
+        source = graph.getVertexById(graph.getVertexCount() - 1);
+
+        // Prepare edits of randomly chosen links, some of which affect large
+        // subtrees and others none at all
+        tree = Dijkstra.computeShortestPaths(graph, source, equalCost);
+        edited = new TopologyGraph[EDITS];
+        changedLinks = new Collection[EDITS];
+        Random rand = new Random(13);
+        for (int i = 0; i < EDITS; i++)
+        {
+            int[] link = pickLink(graph, rand, edit.equals("add"));
+            double weight = (edit.equals("fail") ? Double.POSITIVE_INFINITY
+                    : edit.equals("weight") ? 1 + rand.nextInt(4) : 1.0);
+            edited[i] = TopologyGenerator.withLink(graph, link[0], link[1],
+                    weight);
+            changedLinks[i] = Arrays.asList(
+                    IncrementalShortestPaths.linkKey(link[0], link[1]),
+                    IncrementalShortestPaths.linkKey(link[1], link[0]));
+        }
+    }
+
+    @Benchmark
+    public ShortestPathTree fullRecompute()
+    {
+        int i = (next++ & (EDITS - 1));
+        return Dijkstra.computeShortestPaths(edited[i],
+                edited[i].getVertexById(source.getId()), equalCost);
+    }
+
+    @Benchmark
+    public ShortestPathTree incrementalUpdate()
+    {
+        int i = (next++ & (EDITS - 1));
+        return IncrementalShortestPaths.updateShortestPaths(edited[i], tree,
+                changedLinks[i]);
+    }
+
+    /**
+     * Pick a random pair of switches that are linked, or that are not.
+     */
+    private static int[] pickLink(TopologyGraph graph, Random rand,
+            boolean absent)
+    {
+        int n = graph.getVertexCount();
+        while (true)
+        {
+            int a = rand.nextInt(n);
+            int b = rand.nextInt(n);
+            if (a == b)
+            { continue; }
+            boolean present = (graph.getVertexById(a).getEdgeToNeighbor(
+                    graph.getVertexById(b)) != null);
+            if (present != absent)
+            { return new int[] { a, b }; }
+            // Most pairs are not linked, so look among neighbors instead
+            if (!absent && !graph.getVertexById(a).getAdjacencies().isEmpty())
+            {
+                Edge[] edges = graph.getVertexById(a).getAdjacencies()
+                        .toArray(new Edge[0]);
+                return new int[] { a,
+                        edges[rand.nextInt(edges.length)].getDstVertex().getId() };
+            }
+        }
+    }
+}
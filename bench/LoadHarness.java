@@ -0,0 +1,414 @@
+package edu.wisc.cs.sdn;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openflow.protocol.OFBarrierReply;
+import org.openflow.protocol.OFBarrierRequest;
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketIn;
+import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.OFType;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.IOFMessageListener;
+import net.floodlightcontroller.core.IOFMessageListener.Command;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.core.module.IFloodlightModule;
+
+/**
+ * Drives the routing or learning switch module end to end, in the manner of
+ * cbench but in-process: the module runs against emulated switches, hosts,
+ * and links built from a topology description, and packet-ins arrive in a
+ * configurable pattern. Each packet-in is given its own buffer id, and is
+ * answered when the module writes a flow-mod or packet-out that releases
+ * that buffer; emulated switches answer barrier requests right away. At the
+ * end the harness reports packet-ins answered per second, answer latency
+ * percentiles, and flow-mods per flow. Outstanding packet-ins are tracked in
+ * a fixed ring, so one still unanswered when the ring wraps around to its
+ * slot is counted as lost, and a late answer to it is ignored.
+ * <p>
+ * Usage: LoadHarness [--module routing|l2] [--topology shape:N|file:path]
+ * [--hosts perSwitch] [--pattern uniform|bursty|elephant|manytoone]
+ * [--rate packetInsPerSecond] [--duration seconds] [-Dparam=value ...]
+ * where each -D sets a configuration parameter of the module, e.g.,
+ * -DpacketInWorkers=4, and -DpipelineStats=true also prints the latency of
+ * each stage of the routing module. A rate of 0 sends packet-ins as fast as 
+ * possible.
+ */
+public class LoadHarness implements StubSwitch.WriteListener
+{
+    // Packet-ins awaiting an answer are tracked in a ring of this size
+    private static final int RING_SIZE = 1 << 20;
+
+    // Fraction of flows that are elephants, and packet-ins each one sends
+    private static final double ELEPHANT_FRACTION = 0.1;
+    private static final int ELEPHANT_PACKET_INS = 20;
+
+    // Number of hosts all flows go to in the many-to-one pattern
+    private static final int SINKS = 4;
+
+    // Packet-ins per burst, and pause between bursts when sending at full
+    // speed, in the bursty pattern
+    private static final int BURST = 1000;
+    private static final long BURST_PAUSE_NS = 10000000;
+
+    // How long to wait for outstanding packet-ins once sending stops
+    private static final long DRAIN_MS = 1000;
+
+    private static final long BROADCAST_MAC = 0xffffffffffffL;
+
+    private final List<IOFMessageListener> packetInListeners;
+    private final List<IOFMessageListener> barrierListeners;
+
+    // Emulates switches answering barrier requests off the writing thread
+    private final ExecutorService switchExecutor;
+
+    // Buffer id of the packet-in last sent in each slot of the ring
+    private final AtomicIntegerArray slotBufferIds;
+
+    // When the packet-in in each slot of the ring was sent; 0 once answered
+    private final AtomicLongArray sentNanos;
+
+    // Latencies of answered packet-ins
+    private final LatencyHistogram latencies;
+
+    // Packet-ins answered, packet-ins overwritten in the ring before they
+    // were answered, and flow-mods written
+    private final AtomicLong answered;
+    private final AtomicLong lost;
+    private final AtomicLong flowMods;
+
+    /**
+     * Create a harness around a module that is already started.
+     * @param controller the stub services the module runs against
+     */
+    public LoadHarness(StubController controller)
+    {
+        this.packetInListeners = controller.getMessageListeners(
+                OFType.PACKET_IN);
+        this.barrierListeners = controller.getMessageListeners(
+                OFType.BARRIER_REPLY);
+        this.switchExecutor = Executors.newSingleThreadExecutor();
+        this.slotBufferIds = new AtomicIntegerArray(RING_SIZE);
+        this.sentNanos = new AtomicLongArray(RING_SIZE);
+        this.latencies = new LatencyHistogram();
+        this.answered = new AtomicLong();
+        this.lost = new AtomicLong();
+        this.flowMods = new AtomicLong();
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        String moduleName = "routing";
+        String topology = "fattree:1000";
+        int hostsPerSwitch = 4;
+        String pattern = "uniform";
+        long rate = 0;
+        long durationSec = 10;
+        Map<String,String> config = new HashMap<String,String>();
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].startsWith("-D") && args[i].contains("="))
+            {
+                int eq = args[i].indexOf('=');
+                config.put(args[i].substring(2, eq), args[i].substring(eq + 1));
+            }
+            else if (args[i].equals("--module") && i + 1 < args.length)
+            { moduleName = args[++i]; }
+            else if (args[i].equals("--topology") && i + 1 < args.length)
+            { topology = args[++i]; }
+            else if (args[i].equals("--hosts") && i + 1 < args.length)
+            { hostsPerSwitch = Integer.parseInt(args[++i]); }
+            else if (args[i].equals("--pattern") && i + 1 < args.length)
+            { pattern = args[++i]; }
+            else if (args[i].equals("--rate") && i + 1 < args.length)
+            { rate = Long.parseLong(args[++i]); }
+            else if (args[i].equals("--duration") && i + 1 < args.length)
+            { durationSec = Long.parseLong(args[++i]); }
+            else
+            { throw new IllegalArgumentException("Unknown argument "+args[i]); }
+        }
+
+        // Build the emulated network
+        int colon = topology.indexOf(':');
+        TopologyGraph graph = (topology.startsWith("file:")
+                ? TopologyGenerator.fromFile(topology.substring(5))
+                : TopologyGenerator.create(topology.substring(0, colon),
+                        Integer.parseInt(topology.substring(colon + 1))));
+        StubController controller = new StubController(graph);
+
+        // Start the module against it
+        IFloodlightModule module;
+        if (moduleName.equals("routing"))
+        { module = new Routing(); }
+        else if (moduleName.equals("l2"))
+        { module = new L2Forward(); }
+        else
+        { throw new IllegalArgumentException("Unknown module "+moduleName); }
+        FloodlightModuleContext context =
+                controller.createModuleContext(module, config);
+        module.init(context);
+        module.startUp(context);
+
+        int[] switchIds = new int[graph.getVertexCount()];
+        for (int i = 0; i < switchIds.length; i++)
+        { switchIds[i] = i; }
+        int hosts = hostsPerSwitch * switchIds.length;
+        controller.addHosts(hosts, switchIds);
+
+        LoadHarness harness = new LoadHarness(controller);
+        StubSwitch.setWriteListener(harness);
+        if (module instanceof L2Forward)
+        { harness.teachHosts(graph, hosts); }
+        System.out.println(String.format(
+                "%s on %s: %d switches, %d hosts, %s packet-ins at %s",
+                moduleName, topology, switchIds.length, hosts, pattern,
+                (0 == rate ? "full speed" : rate+"/s")));
+        harness.run(graph, hosts, pattern, rate,
+                TimeUnit.SECONDS.toNanos(durationSec));
+        if (module instanceof IPipelineStatsService
+                && ((IPipelineStatsService)module).getPipelineStats() != null)
+        {
+            System.out.println(((IPipelineStatsService)module)
+                    .getPipelineStats().getSummary());
+        }
+
+        StubSwitch.setWriteListener(null);
+        harness.switchExecutor.shutdownNow();
+        controller.shutdown();
+        System.exit(0);
+    }
+
+    /**
+     * Send packet-ins in a pattern for a while, wait for the module to answer
+     * them, and print the results.
+     * @param graph the emulated network
+     * @param hosts the number of hosts
+     * @param pattern how flows and packet-ins are generated
+     * @param rate packet-ins per second; 0 to send as fast as possible
+     * @param durationNs how long to send packet-ins
+     */
+    public void run(TopologyGraph graph, int hosts, String pattern, long rate,
+            long durationNs)
+    {
+        Random rand = new Random(1);
+        boolean elephants = pattern.equals("elephant");
+        boolean bursty = pattern.equals("bursty");
+        boolean manyToOne = pattern.equals("manytoone");
+        if (!elephants && !bursty && !manyToOne && !pattern.equals("uniform"))
+        { throw new IllegalArgumentException("Unknown pattern "+pattern); }
+
+        // Elephant flows still sending packet-ins, as {src, dst, port, left}
+        List<int[]> activeElephants = new ArrayList<int[]>();
+
+        long flowMods0 = flowMods.get();
+        long writes0 = StubSwitch.getWrites();
+        int flows = 0;
+        int sent = 0;
+        short nextPort = 1;
+        long start = System.nanoTime();
+        long end = start + durationNs;
+        while (System.nanoTime() < end)
+        {
+            // Pace packet-ins, sending each burst at once in the bursty 
+            // pattern, or pause between bursts when sending at full speed
+            if (rate > 0)
+            {
+                long due = (bursty ? sent - sent % BURST : sent);
+                long wait = start + due * (1000000000L / rate) 
+                        - System.nanoTime();
+                if (wait > 0)
+                { LockSupport.parkNanos(wait); }
+            }
+            else if (bursty && sent > 0 && 0 == (sent % BURST))
+            { LockSupport.parkNanos(BURST_PAUSE_NS); }
+
+            // Repeat a packet-in of an elephant flow, or start a new flow
+            int src, dst;
+            short port;
+            if (elephants && !activeElephants.isEmpty() && rand.nextBoolean())
+            {
+                int e = rand.nextInt(activeElephants.size());
+                int[] flow = activeElephants.get(e);
+                src = flow[0];
+                dst = flow[1];
+                port = (short)flow[2];
+                if (--flow[3] == 0)
+                { activeElephants.remove(e); }
+            }
+            else
+            {
+                src = rand.nextInt(hosts);
+                dst = (manyToOne ? rand.nextInt(Math.min(SINKS, hosts))
+                        : rand.nextInt(hosts));
+                if (src == dst)
+                { dst = (dst + 1) % hosts; }
+                port = nextPort++;
+                if (0 == nextPort)
+                { nextPort = 1; }
+                flows++;
+                if (elephants && rand.nextDouble() < ELEPHANT_FRACTION)
+                {
+                    activeElephants.add(new int[] { src, dst, port,
+                            ELEPHANT_PACKET_INS - 1 });
+                }
+            }
+
+            int switchId = src % graph.getVertexCount();
+            this.sendPacketIn(graph.getVertexById(switchId).getSwitch(),
+                    sent, src + 1, dst + 1, hostPort(graph, src), port);
+            sent++;
+        }
+        long sendNs = System.nanoTime() - start;
+
+        // Give the module a moment to answer outstanding packet-ins
+        long drainEnd = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(DRAIN_MS);
+        while (answered.get() < sent && System.nanoTime() < drainEnd)
+        { LockSupport.parkNanos(1000000); }
+
+        this.report(sent, flows, sendNs, flowMods.get() - flowMods0,
+                StubSwitch.getWrites() - writes0);
+    }
+
+    /**
+     * Teach every switch where every host is, as the learning switch would
+     * learn from broadcasts flooded through the network, so later packet-ins
+     * are forwarded rather than flooded. A host's own switch learns it on the
+     * host port, and every other switch on one of its link ports.
+     */
+    private void teachHosts(TopologyGraph graph, int hosts)
+    {
+        int id = 0;
+        for (Vertex v : graph.getVertices())
+        {
+            short linkPort = (v.getAdjacencies().isEmpty() ? 1
+                    : v.getAdjacencies().iterator().next().getSrcSwitchPort());
+            for (int h = 0; h < hosts; h++)
+            {
+                short inPort = (h % graph.getVertexCount() == v.getId()
+                        ? hostPort(graph, h) : linkPort);
+                this.sendPacketIn(v.getSwitch(), id++, h + 1, 
+                        BROADCAST_MAC, inPort, (short)1);
+            }
+        }
+        for (int i = 0; i < RING_SIZE; i++)
+        { sentNanos.set(i, 0); }
+        answered.set(0);
+        lost.set(0);
+    }
+
+    /**
+     * Get the port on which a host attaches to its switch, as assigned by
+     * {@link StubController#addHosts}.
+     */
+    private static short hostPort(TopologyGraph graph, int host)
+    {
+        return (short)(StubController.FIRST_HOST_PORT
+                + host / graph.getVertexCount());
+    }
+
+    /**
+     * Deliver a packet-in to the module's listeners, in the order they
+     * registered, until one stops processing.
+     */
+    private void sendPacketIn(IOFSwitch sw, int seq, long srcMac, long dstMac,
+            short inPort, short srcPort)
+    {
+        OFPacketIn pktIn = StubController.createPacketIn(srcMac, dstMac,
+                inPort, srcPort);
+        int bufferId = seq & Integer.MAX_VALUE;
+        int slot = bufferId & (RING_SIZE - 1);
+        pktIn.setBufferId(bufferId);
+        slotBufferIds.set(slot, bufferId);
+        if (sentNanos.getAndSet(slot, System.nanoTime()) != 0)
+        { lost.incrementAndGet(); }
+        FloodlightContext cntx = new FloodlightContext();
+        for (IOFMessageListener listener : packetInListeners)
+        {
+            if (Command.STOP == listener.receive(sw, pktIn, cntx))
+            { break; }
+        }
+    }
+
+    /**
+     * Emulates a switch receiving a message: answers the packet-in whose
+     * buffer a flow-mod or packet-out releases, and replies to a barrier.
+     */
+    @Override
+    public void messageWritten(final IOFSwitch sw, OFMessage msg)
+    {
+        int bufferId = OFPacketOut.BUFFER_ID_NONE;
+        if (msg instanceof OFFlowMod)
+        {
+            flowMods.incrementAndGet();
+            bufferId = ((OFFlowMod)msg).getBufferId();
+        }
+        else if (msg instanceof OFPacketOut)
+        { bufferId = ((OFPacketOut)msg).getBufferId(); }
+        else if (msg instanceof OFBarrierRequest)
+        {
+            final OFBarrierReply reply = new OFBarrierReply();
+            reply.setXid(msg.getXid());
+            switchExecutor.execute(new Runnable() {
+                @Override
+                public void run()
+                {
+                    for (IOFMessageListener listener : barrierListeners)
+                    { listener.receive(sw, reply, new FloodlightContext()); }
+                }
+            });
+        }
+
+        // Ignore an answer to a packet-in whose slot has since been reused
+        int slot = bufferId & (RING_SIZE - 1);
+        if (bufferId < 0 || slotBufferIds.get(slot) != bufferId)
+        { return; }
+        long sent = sentNanos.getAndSet(slot, 0);
+        if (0 == sent)
+        { return; }
+        answered.incrementAndGet();
+        latencies.record(System.nanoTime() - sent);
+    }
+
+    /**
+     * Print throughput, latency percentiles, and flow-mods per flow.
+     */
+    private void report(int sent, int flows, long sendNs, long flowModCount,
+            long writeCount)
+    {
+        long answeredCount = answered.get();
+        long lostCount = lost.get();
+        double seconds = sendNs / 1e9;
+        System.out.println(String.format(
+                "sent %d packet-ins for %d flows in %.1f s; answered %d "
+                + "(%.0f/s), %d unanswered, %d of them lost when the ring of "
+                + "%d outstanding packet-ins wrapped", sent, flows, seconds,
+                answeredCount, answeredCount / seconds, 
+                sent - answeredCount, lostCount, RING_SIZE));
+        System.out.println(String.format(
+                "latency us: p50 %.1f  p90 %.1f  p99 %.1f  p99.9 %.1f  "
+                + "max %.1f", latencies.getPercentile(0.5) / 1e3,
+                latencies.getPercentile(0.9) / 1e3,
+                latencies.getPercentile(0.99) / 1e3,
+                latencies.getPercentile(0.999) / 1e3,
+                latencies.getMax() / 1e3));
+        System.out.println(String.format(
+                "flow-mods per flow %.2f, messages per packet-in %.2f",
+                (0 == flows ? 0.0 : (double)flowModCount / flows),
+                (0 == sent ? 0.0 : (double)writeCount / sent)));
+    }
+}
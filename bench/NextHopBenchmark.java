@@ -0,0 +1,58 @@
+package edu.wisc.cs.sdn;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how long it takes to recompute the next hop between every pair of
+ * switches, as the number of switches and the number of threads grow.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class NextHopBenchmark
+{
+    @Param({"fattree", "leafspine", "torus", "random"})
+    public String shape;
+    
+    @Param({"250", "500", "1000", "2000"})
+    public int switches;
+    
+    @Param({"1", "4", "0"})
+    public int threads;
+    
+    private TopologyGraph graph;
+    private ForkJoinPool pool;
+    
+    @Setup
+    public void setUp()
+    {
+        graph = TopologyGenerator.create(shape, switches);
+        pool = new ForkJoinPool(threads > 0 ? threads 
+                : Runtime.getRuntime().availableProcessors());
+    }
+    
+    @TearDown
+    public void tearDown()
+    { pool.shutdown(); }
+    
+    @Benchmark
+    public NextHopTable recompute()
+    { return NextHopCalculator.compute(graph, pool); }
+}
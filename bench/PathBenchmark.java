@@ -0,0 +1,83 @@
+package edu.wisc.cs.sdn;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures finding the path between one pair of switches, through the path 
+ * cache as packet-ins do, and computing the full shortest path tree from one
+ * switch, as a cache miss does. Pairs and sources cycle through a fixed 
+ * random sample of switches.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathBenchmark
+{
+    // Number of different switch pairs the benchmarks cycle through
+    private static final int PAIRS = 1024;
+    
+    @Param({"fattree", "leafspine", "torus", "random"})
+    public String shape;
+    
+    @Param({"1000", "5000"})
+    public int switches;
+    
+    // Whether every equal-cost predecessor is found, as for ECMP
+    @Param({"false", "true"})
+    public boolean equalCost;
+    
+    private TopologyGraph graph;
+    private PathCache pathCache;
+    private Vertex[] sources;
+    private Vertex[] targets;
+    private int next;
+    
+    @Setup
+    public void setUp()
+    {
+        graph = TopologyGenerator.create(shape, switches);
+        graph.getCompactGraph();
+        pathCache = new PathCache(graph.getVertexCount(), equalCost);
+        sources = new Vertex[PAIRS];
+        targets = new Vertex[PAIRS];
+        Random rand = new Random(42);
+        for (int i = 0; i < PAIRS; i++)
+        {
+            sources[i] = graph.getVertexById(rand.nextInt(graph.getVertexCount()));
+            targets[i] = graph.getVertexById(rand.nextInt(graph.getVertexCount()));
+        }
+    }
+    
+    @Benchmark
+    public List<Vertex> singlePairPath()
+    {
+        int i = (next++ & (PAIRS - 1));
+        return pathCache.getShortestPaths(graph, sources[i])
+                .getPathTo(graph, targets[i]);
+    }
+    
+    @Benchmark
+    public ShortestPathTree fullShortestPathTree()
+    {
+        int i = (next++ & (PAIRS - 1));
+        return Dijkstra.computeShortestPaths(graph.getCompactGraph(), 
+                sources[i].getId(), equalCost);
+    }
+}
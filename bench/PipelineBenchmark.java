@@ -0,0 +1,123 @@
+package edu.wisc.cs.sdn;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.openflow.protocol.OFPacketIn;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.IOFMessageListener.Command;
+import net.floodlightcontroller.core.IOFSwitch;
+
+/**
+ * Measures the whole path from a packet-in to the flow-mods it causes: 
+ * parsing the headers, looking up the destination host, finding the path, 
+ * and writing one rule per switch on the path to stub switches that count
+ * the writes. Packet-ins are handled on the calling thread, and each one is 
+ * for a new flow, so none are answered from the in-flight flow table.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineBenchmark
+{
+    // Number of different packet-ins the benchmark cycles through
+    private static final int PACKET_INS = 1024;
+    
+    @Param({"fattree", "leafspine", "torus", "random"})
+    public String shape;
+    
+    @Param({"1000"})
+    public int switches;
+    
+    @Param({"cache", "nexthop"})
+    public String paths;
+    
+    // Whether each stage is timed, to show what the timing costs
+    @Param({"false", "true"})
+    public boolean stats;
+    
+    private ScheduledExecutorService ses;
+    private PacketHandler handler;
+    private IOFSwitch[] inSwitches;
+    private OFPacketIn[] packetIns;
+    private int next;
+    private long invocations;
+    private long firstWrite;
+    
+    @Setup
+    public void setUp()
+    {
+        TopologyGraph graph = TopologyGenerator.create(shape, switches);
+        StubController controller = new StubController(graph);
+        int[] switchIds = new int[graph.getVertexCount()];
+        for (int i = 0; i < switchIds.length; i++)
+        { switchIds[i] = i; }
+        int hosts = 4 * switchIds.length;
+        controller.addHosts(hosts, switchIds);
+        NetworkTopology netTopo = controller.getTopology();
+        
+        ses = Executors.newSingleThreadScheduledExecutor();
+        NextHopCalculator nextHops = null;
+        if (paths.equals("nexthop"))
+        {
+            nextHops = new NextHopCalculator(netTopo, ses, 
+                    Runtime.getRuntime().availableProcessors());
+            nextHops.recompute();
+        }
+        handler = new PacketHandler(netTopo, 
+                new PathCache(graph.getVertexCount(), false), nextHops, 
+                new FlowInstaller(), null, null, null, null, null, 
+                (stats ? new PipelineStats() : null), null);
+        
+        // Host i is attached to switch i mod n on port FIRST_HOST_PORT + i / n
+        inSwitches = new IOFSwitch[PACKET_INS];
+        packetIns = new OFPacketIn[PACKET_INS];
+        Random rand = new Random(42);
+        for (int i = 0; i < PACKET_INS; i++)
+        {
+            int src = rand.nextInt(hosts);
+            int dst = rand.nextInt(hosts);
+            inSwitches[i] = graph.getVertexById(src % switchIds.length).getSwitch();
+            packetIns[i] = StubController.createPacketIn(src + 1, dst + 1, 
+                    (short)(StubController.FIRST_HOST_PORT 
+                            + src / switchIds.length), (short)(1024 + i));
+        }
+        invocations = 0;
+        firstWrite = StubSwitch.getWrites();
+    }
+    
+    @TearDown
+    public void tearDown()
+    {
+        ses.shutdown();
+        System.out.println(String.format("%.2f messages written per packet-in",
+                (double)(StubSwitch.getWrites() - firstWrite) / invocations));
+    }
+    
+    @Benchmark
+    public Command packetInToFlowMods()
+    {
+        int i = (next++ & (PACKET_INS - 1));
+        invocations++;
+        return handler.receive(inSwitches[i], packetIns[i], 
+                new FloodlightContext());
+    }
+}
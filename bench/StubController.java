@@ -0,0 +1,306 @@
+package edu.wisc.cs.sdn;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.openflow.protocol.OFPacketIn;
+import org.openflow.protocol.OFPacketIn.OFPacketInReason;
+import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.OFType;
+
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IOFMessageListener;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.core.module.IFloodlightModule;
+import net.floodlightcontroller.devicemanager.IDevice;
+import net.floodlightcontroller.devicemanager.IDeviceListener;
+import net.floodlightcontroller.devicemanager.IDeviceService;
+import net.floodlightcontroller.devicemanager.SwitchPort;
+import net.floodlightcontroller.linkdiscovery.ILinkDiscovery.LDUpdate;
+import net.floodlightcontroller.linkdiscovery.ILinkDiscovery.UpdateOperation;
+import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryService;
+import net.floodlightcontroller.linkdiscovery.LinkInfo;
+import net.floodlightcontroller.routing.Link;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
+
+/**
+ * Stands in for the Floodlight services that {@link NetworkTopology} and the
+ * routing modules depend on, so they can be fed a synthetic graph and 
+ * synthetic hosts, and builds packet-ins for the hosts. Listeners the modules
+ * register for OpenFlow messages are recorded, so messages can be delivered 
+ * to them as the Floodlight core would.
+ */
+class StubController
+{
+    // Port numbers at or above this are used for hosts, clear of link ports
+    public static final short FIRST_HOST_PORT = 20000;
+
+    private final TopologyGraph graph;
+    private final Map<Long,IOFSwitch> switches;
+    private final Map<Link,LinkInfo> links;
+    private final List<IDevice> hosts;
+    private final List<IDeviceListener> deviceListeners;
+    private final Map<OFType,List<IOFMessageListener>> messageListeners;
+    private final ScheduledExecutorService ses;
+    
+    // Services handed to the topology and to modules
+    private final IFloodlightProviderService floodlightProv;
+    private final ILinkDiscoveryService linkDiscProv;
+    private final IDeviceService deviceProv;
+    private final IThreadPoolService threadPool;
+    
+    // Topology fed by the services; created the first time it is needed
+    private NetworkTopology netTopo;
+
+    /**
+     * Create the services, holding the switches and links of a graph.
+     * @param graph the switches and links to start with
+     */
+    public StubController(TopologyGraph graph)
+    {
+        this.graph = graph;
+        this.switches = new HashMap<Long,IOFSwitch>();
+        this.links = new HashMap<Link,LinkInfo>();
+        this.hosts = new CopyOnWriteArrayList<IDevice>();
+        this.deviceListeners = new CopyOnWriteArrayList<IDeviceListener>();
+        this.messageListeners = new HashMap<OFType,List<IOFMessageListener>>();
+        this.ses = Executors.newScheduledThreadPool(2);
+        for (Vertex v : graph.getVertices())
+        {
+            switches.put(v.getSwitch().getId(), v.getSwitch());
+            for (Edge e : v.getAdjacencies())
+            { links.put(toLink(e), null); }
+        }
+        
+        InvocationHandler services = new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method m, Object[] args)
+            { return invokeService(m, args); }
+        };
+        this.floodlightProv = proxy(IFloodlightProviderService.class, services);
+        this.linkDiscProv = proxy(ILinkDiscoveryService.class, services);
+        this.deviceProv = proxy(IDeviceService.class, services);
+        this.threadPool = proxy(IThreadPoolService.class, services);
+    }
+    
+    /**
+     * Get a network topology fed by the stub services, creating and starting
+     * it the first time.
+     * @return the network topology
+     */
+    public synchronized NetworkTopology getTopology()
+    {
+        if (null == netTopo)
+        {
+            netTopo = new NetworkTopology(floodlightProv, linkDiscProv, 
+                    deviceProv);
+            netTopo.startUp();
+        }
+        return this.netTopo;
+    }
+    
+    /**
+     * Create a module context that provides the stub services, and the 
+     * given configuration for one module.
+     * @param module the module to configure
+     * @param config the module's configuration parameters
+     * @return the context with which to initialize and start the module
+     */
+    public FloodlightModuleContext createModuleContext(
+            IFloodlightModule module, Map<String,String> config)
+    {
+        FloodlightModuleContext context = new FloodlightModuleContext();
+        context.addService(IFloodlightProviderService.class, floodlightProv);
+        context.addService(ILinkDiscoveryService.class, linkDiscProv);
+        context.addService(IDeviceService.class, deviceProv);
+        context.addService(IThreadPoolService.class, threadPool);
+        for (Map.Entry<String,String> param : config.entrySet())
+        { context.addConfigParam(module, param.getKey(), param.getValue()); }
+        return context;
+    }
+    
+    /**
+     * Get the listeners registered for a type of OpenFlow message, in the 
+     * order they registered.
+     * @param type the type of message
+     * @return the listeners; empty if there are none
+     */
+    public synchronized List<IOFMessageListener> getMessageListeners(
+            OFType type)
+    {
+        List<IOFMessageListener> listeners = messageListeners.get(type);
+        return (null == listeners ? Collections.<IOFMessageListener>emptyList()
+                : new ArrayList<IOFMessageListener>(listeners));
+    }
+    
+    /**
+     * Get the executor handed to modules by the stub thread pool service.
+     * @return the executor
+     */
+    public ScheduledExecutorService getScheduledExecutor()
+    { return this.ses; }
+    
+    /**
+     * Stop the threads of the stub thread pool service.
+     */
+    public void shutdown()
+    { ses.shutdownNow(); }
+
+    /**
+     * Attach hosts to switches, spread evenly over the switches. Host i has
+     * MAC address i+1.
+     * @param count the number of hosts
+     * @param switchIds the vertex ids of the switches hosts attach to
+     */
+    public void addHosts(int count, int[] switchIds)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            Vertex v = graph.getVertexById(switchIds[i % switchIds.length]);
+            IDevice host = createHost(i + 1, v.getSwitch().getId(),
+                    (short)(FIRST_HOST_PORT + i / switchIds.length));
+            hosts.add(host);
+            for (IDeviceListener listener : deviceListeners)
+            { listener.deviceAdded(host); }
+        }
+    }
+
+    /**
+     * Remove a link in both directions, or add it back.
+     * @param e one direction of the link
+     * @param remove true to remove the link, false to add it
+     */
+    public void updateLink(Edge e, boolean remove)
+    {
+        UpdateOperation op = (remove ? UpdateOperation.LINK_REMOVED
+                : UpdateOperation.LINK_UPDATED);
+        List<LDUpdate> updates = new ArrayList<LDUpdate>();
+        updates.add(new LDUpdate(e.getSrcVertex().getSwitch().getId(),
+                e.getSrcSwitchPort(), e.getDstVertex().getSwitch().getId(),
+                e.getDstSwitchPort(), null, op));
+        updates.add(new LDUpdate(e.getDstVertex().getSwitch().getId(),
+                e.getDstSwitchPort(), e.getSrcVertex().getSwitch().getId(),
+                e.getSrcSwitchPort(), null, op));
+        this.getTopology().linkDiscoveryUpdate(updates);
+    }
+
+    /**
+     * Build an unbuffered packet-in carrying a TCP packet between two hosts.
+     * @param srcMac the MAC address of the sending host
+     * @param dstMac the MAC address of the receiving host
+     * @param inPort the port on which the packet arrives
+     * @param srcPort the TCP source port, to tell flows between the same
+     *         hosts apart
+     * @return the packet-in
+     */
+    public static OFPacketIn createPacketIn(long srcMac, long dstMac,
+            short inPort, short srcPort)
+    {
+        ByteBuffer packet = ByteBuffer.allocate(14 + 20 + 20);
+        packet.putShort((short)(dstMac >>> 32)).putInt((int)dstMac);
+        packet.putShort((short)(srcMac >>> 32)).putInt((int)srcMac);
+        packet.putShort((short)0x0800);
+
+        // IPv4 header, without options or checksum
+        packet.put((byte)0x45).put((byte)0).putShort((short)40);
+        packet.putInt(0).put((byte)64).put((byte)6).putShort((short)0);
+        packet.putInt(0x0a000000 | (int)(srcMac & 0xffffff));
+        packet.putInt(0x0a000000 | (int)(dstMac & 0xffffff));
+
+        // TCP header with only SYN set
+        packet.putShort(srcPort).putShort((short)80).putInt(0).putInt(0);
+        packet.put((byte)0x50).put((byte)0x02).putShort((short)0xffff);
+        packet.putInt(0);
+
+        OFPacketIn pktIn = new OFPacketIn();
+        pktIn.setBufferId(OFPacketOut.BUFFER_ID_NONE);
+        pktIn.setInPort(inPort);
+        pktIn.setReason(OFPacketInReason.NO_MATCH);
+        pktIn.setPacketData(packet.array());
+        pktIn.setTotalLength((short)packet.capacity());
+        return pktIn;
+    }
+
+    private static Link toLink(Edge e)
+    {
+        return new Link(e.getSrcVertex().getSwitch().getId(),
+                e.getSrcSwitchPort(), e.getDstVertex().getSwitch().getId(),
+                e.getDstSwitchPort());
+    }
+
+    private static IDevice createHost(final long mac, long dpid, short port)
+    {
+        final SwitchPort[] attachmentPoints =
+                new SwitchPort[] { new SwitchPort(dpid, port) };
+        return (IDevice)Proxy.newProxyInstance(IDevice.class.getClassLoader(),
+                new Class<?>[] { IDevice.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args)
+                    {
+                        String name = method.getName();
+                        if (name.equals("getMACAddress"))
+                        { return mac; }
+                        if (name.equals("getDeviceKey"))
+                        { return mac; }
+                        if (name.equals("getAttachmentPoints"))
+                        { return attachmentPoints; }
+                        if (name.equals("hashCode"))
+                        { return (int)mac; }
+                        if (name.equals("equals"))
+                        { return (proxy == args[0]); }
+                        return StubSwitch.defaultValue(method.getReturnType());
+                    }
+                });
+    }
+
+    /**
+     * Answer a call to one of the stub services.
+     */
+    private synchronized Object invokeService(Method m, Object[] args)
+    {
+        String name = m.getName();
+        if (name.equals("getSwitches"))
+        { return switches; }
+        if (name.equals("getLinks"))
+        { return links; }
+        if (name.equals("getAllDevices"))
+        { return hosts; }
+        if (name.equals("getScheduledExecutor"))
+        { return ses; }
+        if (name.equals("addOFMessageListener"))
+        {
+            List<IOFMessageListener> listeners = messageListeners.get(args[0]);
+            if (null == listeners)
+            {
+                listeners = new ArrayList<IOFMessageListener>();
+                messageListeners.put((OFType)args[0], listeners);
+            }
+            listeners.add((IOFMessageListener)args[1]);
+            return null;
+        }
+        if (name.equals("addListener") && args[0] instanceof IDeviceListener)
+        {
+            deviceListeners.add((IDeviceListener)args[0]);
+            return null;
+        }
+        return StubSwitch.defaultValue(m.getReturnType());
+    }
+    
+    private static <T> T proxy(Class<T> service, InvocationHandler handler)
+    {
+        return service.cast(Proxy.newProxyInstance(service.getClassLoader(),
+                new Class<?>[] { service }, handler));
+    }
+}
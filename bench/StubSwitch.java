@@ -0,0 +1,147 @@
+package edu.wisc.cs.sdn;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openflow.protocol.OFMessage;
+
+import net.floodlightcontroller.core.IOFSwitch;
+
+/**
+ * A stand-in for a switch connection that only knows its DPID, for building 
+ * synthetic topologies without a running controller. Messages written to the
+ * switch are counted, passed to the write listener if one is set, and then
+ * dropped.
+ */
+class StubSwitch implements InvocationHandler
+{
+    /**
+     * Sees every message written to a stub switch, e.g., to emulate how a 
+     * real switch would respond.
+     */
+    interface WriteListener
+    {
+        /**
+         * Called on the writing thread for each message written to a switch.
+         * @param sw the switch to which the message was written
+         * @param msg the message
+         */
+        void messageWritten(IOFSwitch sw, OFMessage msg);
+    }
+    
+    private final long dpid;
+    
+    // Listener for messages written to any stub switch; null if none
+    private static volatile WriteListener writeListener;
+    
+    // Messages written and flushes, across all stub switches
+    private static final AtomicLong writes = new AtomicLong();
+    private static final AtomicLong flushes = new AtomicLong();
+    
+    // Transaction ids handed out by this switch
+    private final AtomicInteger nextXid = new AtomicInteger();
+    
+    private StubSwitch(long dpid)
+    { this.dpid = dpid; }
+    
+    /**
+     * Get the number of messages written to all stub switches.
+     * @return the number of messages written
+     */
+    public static long getWrites()
+    { return writes.get(); }
+    
+    /**
+     * Get the number of times any stub switch was flushed.
+     * @return the number of flushes
+     */
+    public static long getFlushes()
+    { return flushes.get(); }
+    
+    /**
+     * Set the listener that sees every message written to a stub switch.
+     * @param listener the listener; null to stop passing on messages
+     */
+    public static void setWriteListener(WriteListener listener)
+    { writeListener = listener; }
+    
+    /**
+     * Create a stub switch.
+     * @param dpid the DPID of the switch
+     * @return a switch that answers getId(), counts writes and flushes, and 
+     *         ignores everything else
+     */
+    public static IOFSwitch create(long dpid)
+    {
+        return (IOFSwitch)Proxy.newProxyInstance(
+                IOFSwitch.class.getClassLoader(), 
+                new Class<?>[] { IOFSwitch.class }, new StubSwitch(dpid));
+    }
+    
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args)
+    {
+        String name = method.getName();
+        if (name.equals("getId"))
+        { return dpid; }
+        if (name.equals("getStringId") || name.equals("toString"))
+        { return "stub-"+dpid; }
+        if (name.equals("hashCode"))
+        { return (int)(dpid ^ (dpid >>> 32)); }
+        if (name.equals("equals"))
+        { return (proxy == args[0]); }
+        if (name.equals("write"))
+        {
+            writes.addAndGet(args[0] instanceof List 
+                    ? ((List<?>)args[0]).size() : 1);
+            WriteListener listener = writeListener;
+            if (listener != null && args[0] instanceof List)
+            {
+                for (Object msg : (List<?>)args[0])
+                { listener.messageWritten((IOFSwitch)proxy, (OFMessage)msg); }
+            }
+            else if (listener != null)
+            { listener.messageWritten((IOFSwitch)proxy, (OFMessage)args[0]); }
+            return null;
+        }
+        if (name.equals("flush"))
+        {
+            flushes.incrementAndGet();
+            return null;
+        }
+        if (name.equals("getNextTransactionId"))
+        { return nextXid.incrementAndGet(); }
+        if (name.equals("isConnected"))
+        { return true; }
+        return defaultValue(method.getReturnType());
+    }
+    
+    /**
+     * Get the value a method with a given return type returns when it is not
+     * otherwise implemented.
+     */
+    static Object defaultValue(Class<?> type)
+    {
+        if (!type.isPrimitive() || type == void.class)
+        { return null; }
+        if (type == boolean.class)
+        { return false; }
+        if (type == char.class)
+        { return (char)0; }
+        if (type == byte.class)
+        { return (byte)0; }
+        if (type == short.class)
+        { return (short)0; }
+        if (type == int.class)
+        { return 0; }
+        if (type == long.class)
+        { return 0L; }
+        if (type == float.class)
+        { return 0f; }
+        return 0.;
+    }
+}
@@ -0,0 +1,60 @@
+package edu.wisc.cs.sdn;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how fast a topology snapshot is rebuilt after a link changes, as
+ * seen by callers of {@link NetworkTopology#getFullTopology()}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TopologyBenchmark
+{
+    @Param({"fattree", "leafspine", "torus", "random"})
+    public String shape;
+    
+    @Param({"1000", "5000"})
+    public int switches;
+    
+    private StubController controller;
+    private Edge toggled;
+    private boolean removed;
+    
+    @Setup
+    public void setUp()
+    {
+        TopologyGraph graph = TopologyGenerator.create(shape, switches);
+        controller = new StubController(graph);
+        toggled = graph.getVertexById(0).getAdjacencies().iterator().next();
+        removed = false;
+    }
+    
+    /**
+     * Remove or restore a link, then get the topology, which rebuilds the 
+     * snapshot.
+     */
+    @Benchmark
+    public Collection<Vertex> rebuildAfterLinkChange()
+    {
+        removed = !removed;
+        controller.updateLink(toggled, removed);
+        return controller.getTopology().getFullTopology();
+    }
+}
@@ -0,0 +1,273 @@
+package edu.wisc.cs.sdn;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Builds synthetic topology graphs for benchmarks: fat-trees, leaf-spine 
+ * fabrics, tori and random graphs, or graphs read from a list of links. Switch i has vertex id i and DPID i+1, 
+ * and every link is added in both directions.
+ */
+class TopologyGenerator
+{
+    /**
+     * Build a k-ary fat-tree: (k/2)^2 core switches and k pods of k/2 
+     * aggregation and k/2 edge switches each.
+     * @param k the number of ports per switch; must be even
+     * @return the graph
+     */
+    public static TopologyGraph fatTree(int k)
+    {
+        int half = k / 2;
+        Links graph = new Links(half * half + k * k);
+        int aggBase = half * half;
+        int edgeBase = aggBase + k * half;
+        for (int pod = 0; pod < k; pod++)
+        {
+            for (int a = 0; a < half; a++)
+            {
+                int agg = aggBase + pod * half + a;
+                for (int c = 0; c < half; c++)
+                { graph.connect(agg, a * half + c); }
+                for (int e = 0; e < half; e++)
+                { graph.connect(agg, edgeBase + pod * half + e); }
+            }
+        }
+        return graph.build();
+    }
+    
+    /**
+     * Get the smallest fat-tree arity that yields at least a given number of
+     * switches.
+     * @param switches the minimum number of switches
+     * @return an even arity
+     */
+    public static int fatTreeArity(int switches)
+    {
+        int k = 2;
+        while (5 * k * k / 4 < switches)
+        { k += 2; }
+        return k;
+    }
+    
+    /**
+     * Build a leaf-spine fabric: every leaf switch links to every spine switch.
+     * Spine switches have the lowest vertex ids.
+     * @param leaves the number of leaf switches
+     * @param spines the number of spine switches
+     * @return the graph
+     */
+    public static TopologyGraph leafSpine(int leaves, int spines)
+    {
+        Links graph = new Links(spines + leaves);
+        for (int leaf = spines; leaf < spines + leaves; leaf++)
+        {
+            for (int spine = 0; spine < spines; spine++)
+            { graph.connect(leaf, spine); }
+        }
+        return graph.build();
+    }
+    
+    /**
+     * Build a two-dimensional torus: a grid in which each switch links to the
+     * switches above, below, left and right of it, wrapping around the edges.
+     * @param rows the number of rows; at least 3
+     * @param columns the number of columns; at least 3
+     * @return the graph
+     */
+    public static TopologyGraph torus(int rows, int columns)
+    {
+        Links graph = new Links(rows * columns);
+        for (int r = 0; r < rows; r++)
+        {
+            for (int c = 0; c < columns; c++)
+            {
+                int id = r * columns + c;
+                graph.connect(id, r * columns + (c + 1) % columns);
+                graph.connect(id, ((r + 1) % rows) * columns + c);
+            }
+        }
+        return graph.build();
+    }
+    
+    /**
+     * Build a graph of a named shape with about a given number of switches.
+     * @param shape one of "fattree", "leafspine", "torus" or "random"
+     * @param switches the approximate number of switches
+     * @return the graph
+     */
+    public static TopologyGraph create(String shape, int switches)
+    {
+        if (shape.equals("fattree"))
+        { return fatTree(fatTreeArity(switches)); }
+        if (shape.equals("leafspine"))
+        {
+            int spines = Math.max(2, (int)Math.sqrt(switches) / 2);
+            return leafSpine(switches - spines, spines);
+        }
+        if (shape.equals("torus"))
+        {
+            int side = Math.max(3, (int)Math.ceil(Math.sqrt(switches)));
+            return torus(side, side);
+        }
+        if (shape.equals("random"))
+        { return random(switches, 4, 42); }
+        throw new IllegalArgumentException("Unknown topology shape "+shape);
+    }
+    
+    /**
+     * Build a connected random graph: a ring plus randomly chosen links.
+     * @param n the number of switches
+     * @param degree the average number of links per switch; at least 2
+     * @param seed seed for the random number generator
+     * @return the graph
+     */
+    public static TopologyGraph random(int n, int degree, long seed)
+    {
+        Links graph = new Links(n);
+        Random rand = new Random(seed);
+        for (int i = 0; i < n; i++)
+        { graph.connect(i, (i + 1) % n); }
+        int extraLinks = n * (degree - 2) / 2;
+        while (extraLinks > 0)
+        {
+            int a = rand.nextInt(n);
+            int b = rand.nextInt(n);
+            if (a == b || !graph.connect(a, b))
+            { continue; }
+            extraLinks--;
+        }
+        return graph.build();
+    }
+    
+    /**
+     * Build a graph from a file listing its links, one per line as the 
+     * numbers of the two switches it connects, counting from 0. Blank lines
+     * and lines starting with # are ignored.
+     * @param path the file to read
+     * @return the graph, with as many switches as the largest number named
+     * @throws IOException if the file cannot be read or a line is malformed
+     */
+    public static TopologyGraph fromFile(String path) throws IOException
+    {
+        List<int[]> links = new ArrayList<int[]>();
+        int n = 0;
+        BufferedReader reader = new BufferedReader(new FileReader(path));
+        try
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                { continue; }
+                String[] fields = line.split("\\s+");
+                try
+                {
+                    int a = Integer.parseInt(fields[0]);
+                    int b = Integer.parseInt(fields[1]);
+                    links.add(new int[] { a, b });
+                    n = Math.max(n, Math.max(a, b) + 1);
+                }
+                catch (RuntimeException e)
+                { throw new IOException("Malformed link: "+line, e); }
+            }
+        }
+        finally
+        { reader.close(); }
+        
+        Links graph = new Links(n);
+        for (int[] link : links)
+        { graph.connect(link[0], link[1]); }
+        return graph.build();
+    }
+    
+    /**
+     * Build a copy of a graph with the link between two switches changed in 
+     * both directions. A link that does not exist yet is added on new ports.
+     * @param graph the graph to copy
+     * @param a the vertex id of one switch
+     * @param b the vertex id of the other switch
+     * @param weight the new weight of the link; infinity to remove the link
+     * @return the new graph, one version after the original
+     */
+    public static TopologyGraph withLink(TopologyGraph graph, int a, int b, 
+            double weight)
+    {
+        int n = graph.getVertexCount();
+        TopologyGraph.Builder copy = 
+                new TopologyGraph.Builder(graph.getVersion() + 1, n);
+        short[] nextPort = new short[n];
+        for (int i = 0; i < n; i++)
+        { copy.addSwitch(i, graph.getVertexById(i).getSwitch()); }
+        boolean found = false;
+        for (int i = 0; i < n; i++)
+        {
+            for (Edge e : graph.getVertexById(i).getAdjacencies())
+            {
+                int dst = e.getDstVertex().getId();
+                nextPort[i] = (short)Math.max(nextPort[i], e.getSrcSwitchPort());
+                boolean changed = ((i == a && dst == b) || (i == b && dst == a));
+                found |= changed;
+                if (changed && Double.isInfinite(weight))
+                { continue; }
+                copy.addLink(i, e.getSrcSwitchPort(), dst, e.getDstSwitchPort(), 
+                        (changed ? weight : e.getWeight()));
+            }
+        }
+        if (!Double.isInfinite(weight) && !found)
+        {
+            short portA = ++nextPort[a];
+            short portB = ++nextPort[b];
+            copy.addLink(a, portA, b, portB, weight);
+            copy.addLink(b, portB, a, portA, weight);
+        }
+        return copy.build();
+    }
+    
+    /**
+     * Collects the links of a synthetic graph, numbering each switch's ports
+     * in the order its links are added.
+     */
+    private static class Links
+    {
+        private final TopologyGraph.Builder builder;
+        private final short[] nextPort;
+        private final Set<Long> linked;
+        
+        Links(int n)
+        {
+            builder = new TopologyGraph.Builder(0, n);
+            for (int i = 0; i < n; i++)
+            { builder.addSwitch(i, StubSwitch.create(i + 1)); }
+            nextPort = new short[n];
+            linked = new HashSet<Long>();
+        }
+        
+        /**
+         * Link two switches in both directions, unless they are already 
+         * linked.
+         * @return true if the link was added
+         */
+        boolean connect(int a, int b)
+        {
+            if (!linked.add(IncrementalShortestPaths.linkKey(a, b)))
+            { return false; }
+            linked.add(IncrementalShortestPaths.linkKey(b, a));
+            short portA = ++nextPort[a];
+            short portB = ++nextPort[b];
+            builder.addLink(a, portA, b, portB, Edge.DEFAULT_WEIGHT);
+            builder.addLink(b, portB, a, portA, Edge.DEFAULT_WEIGHT);
+            return true;
+        }
+        
+        TopologyGraph build()
+        { return builder.build(); }
+    }
+}
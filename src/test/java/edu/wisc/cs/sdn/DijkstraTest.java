@@ -0,0 +1,107 @@
+package edu.wisc.cs.sdn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the shortest paths toward a switch computed by
+ * {@link Dijkstra#computeShortestPathsTo(CompactGraph, int)}.
+ */
+public class DijkstraTest
+{
+	@Test
+	public void testPathsToUseLinkDirection()
+	{
+		// 0 and 1 are linked both ways, with the link into 1 much dearer; 2
+		// offers a cheaper way round
+		TestTopology topo = new TestTopology(3);
+		topo.setLink(0, 1, 10);
+		topo.setLink(1, 0, 1);
+		topo.setLinks(0, 2, 1);
+		topo.setLinks(2, 1, 1);
+		TopologyGraph graph = topo.getGraph();
+
+		ShortestPathTree toward = Dijkstra.computeShortestPathsTo(
+				graph.getCompactGraph(), 1);
+		assertEquals(1, toward.getSourceId());
+		assertEquals(2, toward.getDistance(0), 0);
+		assertEquals(2, toward.getPreviousId(0));
+		assertEquals(1, toward.getPreviousId(2));
+		assertEquals(-1, toward.getPreviousId(1));
+
+		ShortestPathTree from = Dijkstra.computeShortestPaths(
+				graph.getCompactGraph(), 1, false);
+		assertEquals(1, from.getDistance(0), 0);
+	}
+
+	@Test
+	public void testUnreachableNeighborIsNotEqualCost()
+	{
+		// 2 has a link into 1, but no link from 0 reaches 2
+		TestTopology topo = new TestTopology(3);
+		topo.setLinks(0, 1, 1);
+		topo.setLink(2, 1, 1);
+		TopologyGraph graph = topo.getGraph();
+
+		ShortestPathTree[] trees = {
+				Dijkstra.computeShortestPaths(graph, graph.getVertexById(0),
+						true),
+				Dijkstra.computeShortestPaths(graph.getCompactGraph(), 0, true) };
+		for (ShortestPathTree tree : trees)
+		{
+			assertEquals(1, tree.getPredecessorCount(1));
+			assertEquals(0, tree.getPredecessorId(1, 0));
+			assertEquals(0, tree.getPredecessorCount(2));
+			for (int hash = 0; hash < 64; hash++)
+			{
+				assertEquals(2, tree.getPathTo(graph, graph.getVertexById(1),
+						hash).size());
+			}
+		}
+		assertFalse(ShortestPathTree.isEqualCost(Double.POSITIVE_INFINITY, 1));
+	}
+
+	@Test
+	public void testPathsToMatchPathsFromEachSwitch()
+	{
+		Random rand = new Random(17);
+		TestTopology topo = TestTopology.random(30, 3, rand);
+		for (int i = 0; i < 40; i++)
+		{
+			int a = rand.nextInt(30);
+			int b = rand.nextInt(30);
+			if (a != b)
+			{ topo.setLink(a, b, TestTopology.randomWeight(rand)); }
+		}
+		topo.removeSwitch(7);
+		TopologyGraph graph = topo.getGraph();
+
+		int target = 3;
+		ShortestPathTree toward = Dijkstra.computeShortestPathsTo(
+				graph.getCompactGraph(), target);
+		for (Vertex v : graph.getVertices())
+		{
+			ShortestPathTree from = Dijkstra.computeShortestPaths(
+					graph.getCompactGraph(), v.getId(), false);
+			double expected = from.getDistance(target);
+			double actual = toward.getDistance(v.getId());
+			assertTrue(v+": "+actual+" != "+expected,
+					(Double.isInfinite(expected) ? Double.isInfinite(actual)
+							: ShortestPathTree.isEqualCost(expected, actual)));
+			if (v.getId() == target || Double.isInfinite(actual))
+			{ continue; }
+
+			// The next hop lies on a shortest path
+			Vertex next = graph.getVertexById(toward.getPreviousId(v.getId()));
+			Edge e = v.getEdgeToNeighbor(next);
+			assertTrue(ShortestPathTree.isEqualCost(actual,
+					e.getWeight() + toward.getDistance(next.getId())));
+		}
+		assertTrue(Double.isInfinite(toward.getDistance(7)));
+	}
+}
@@ -0,0 +1,219 @@
+package edu.wisc.cs.sdn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks trees updated by {@link IncrementalShortestPaths} against trees
+ * computed from scratch by {@link Dijkstra}.
+ */
+public class IncrementalShortestPathsTest
+{
+	// Links changed since the tree was last updated
+	private List<Long> changedLinks;
+
+	// Records the links that change
+	private ITopologyListener recorder;
+
+	@Before
+	public void setUp()
+	{
+		changedLinks = new ArrayList<Long>();
+		recorder = new ITopologyListener() {
+			@Override
+			public void linkWeightChanged(int srcId, int dstId,
+					double oldWeight, double newWeight, long version)
+			{ changedLinks.add(IncrementalShortestPaths.linkKey(srcId, dstId)); }
+
+			@Override
+			public void switchChanged(int id, long version)
+			{ }
+		};
+	}
+
+	@Test
+	public void testRandomEdits()
+	{
+		for (long seed = 1; seed <= 5; seed++)
+		{
+			Random rand = new Random(seed);
+			TestTopology topo = TestTopology.random(40, 3, rand);
+			topo.addListener(recorder);
+			this.checkRandomEdits(topo, rand.nextInt(40), seed % 2 == 0, 1,
+					rand);
+		}
+	}
+
+	@Test
+	public void testRandomEditsBatched()
+	{
+		for (long seed = 1; seed <= 5; seed++)
+		{
+			Random rand = new Random(seed);
+			TestTopology topo = TestTopology.random(40, 3, rand);
+			topo.addListener(recorder);
+			this.checkRandomEdits(topo, rand.nextInt(40), seed % 2 == 0, 4,
+					rand);
+		}
+	}
+
+	@Test
+	public void testSwitchRemoval()
+	{
+		Random rand = new Random(3);
+		TestTopology topo = TestTopology.random(30, 4, rand);
+		topo.addListener(recorder);
+		TopologyGraph graph = topo.getGraph();
+		ShortestPathTree tree = Dijkstra.computeShortestPaths(graph,
+				graph.getVertexById(0), true);
+
+		// Remove one of the source's nearest neighbors, which many paths cross
+		int victim = 1;
+		for (int v = 1; v < topo.getVertexCount(); v++)
+		{
+			if (tree.getDistance(v) < tree.getDistance(victim))
+			{ victim = v; }
+		}
+		topo.removeSwitch(victim);
+		graph = topo.getGraph();
+		assertNull(graph.getVertexById(victim));
+
+		tree = this.update(graph, tree);
+		assertTrue(Double.isInfinite(tree.getDistance(victim)));
+		assertEquals(0, tree.getPredecessorCount(victim));
+		for (int v = 0; v < topo.getVertexCount(); v++)
+		{ assertTrue(v == victim || !tree.usesLink(victim, v)); }
+
+		// Switches added later get new ids
+		int added = topo.addSwitch();
+		topo.setLinks(added, 0, 1);
+		topo.setLinks(added, victim == 2 ? 3 : 2, 1);
+		tree = this.update(topo.getGraph(), tree);
+		assertEquals(1, tree.getDistance(added), 0);
+	}
+
+	@Test
+	public void testEqualCostPredecessors()
+	{
+		// A diamond: 0 reaches 3 through 1 and through 2
+		TestTopology topo = new TestTopology(4);
+		topo.addListener(recorder);
+		topo.setLinks(0, 1, 1);
+		topo.setLinks(0, 2, 1);
+		topo.setLinks(1, 3, 1);
+		topo.setLinks(2, 3, 1);
+		TopologyGraph graph = topo.getGraph();
+		ShortestPathTree tree = Dijkstra.computeShortestPaths(graph,
+				graph.getVertexById(0), true);
+		changedLinks.clear();
+		assertPredecessors(tree, 3, 1, 2);
+
+		// Make the path through 2 longer in one direction only
+		topo.setLink(2, 3, 2);
+		tree = this.update(topo.getGraph(), tree);
+		assertPredecessors(tree, 3, 1);
+
+		// Restore it, then add a third path of the same cost
+		topo.setLink(2, 3, 1);
+		tree = this.update(topo.getGraph(), tree);
+		assertPredecessors(tree, 3, 1, 2);
+		int extra = topo.addSwitch();
+		topo.setLinks(0, extra, 1);
+		topo.setLinks(extra, 3, 1);
+		tree = this.update(topo.getGraph(), tree);
+		assertPredecessors(tree, 3, 1, 2, extra);
+
+		// Fail the link through 1
+		topo.setLinks(1, 3, Double.POSITIVE_INFINITY);
+		tree = this.update(topo.getGraph(), tree);
+		assertPredecessors(tree, 3, 2, extra);
+	}
+
+	@Test
+	public void testWithoutEqualCost()
+	{
+		TestTopology topo = new TestTopology(4);
+		topo.addListener(recorder);
+		topo.setLinks(0, 1, 1);
+		topo.setLinks(0, 2, 1);
+		topo.setLinks(1, 3, 1);
+		topo.setLinks(2, 3, 1);
+		TopologyGraph graph = topo.getGraph();
+		ShortestPathTree tree = Dijkstra.computeShortestPaths(graph,
+				graph.getVertexById(0), false);
+		changedLinks.clear();
+		assertEquals(1, tree.getPredecessorCount(3));
+
+		// A link that only ties the path to 3 is not a change
+		int other = 3 - tree.getPreviousId(3);
+		assertFalse(tree.isShortenedBy(other, 3, 1));
+		assertTrue(tree.isShortenedBy(other, 3, 0.5));
+		topo.setLinks(tree.getPreviousId(3), 3, Double.POSITIVE_INFINITY);
+		tree = this.update(topo.getGraph(), tree);
+		assertFalse(tree.hasEqualCost());
+		assertEquals(2, tree.getDistance(3), 0);
+	}
+
+	/**
+	 * Apply random link additions, removals, and weight changes, updating the
+	 * tree after every few of them.
+	 */
+	private void checkRandomEdits(TestTopology topo, int source,
+			boolean equalCost, int batch, Random rand)
+	{
+		TopologyGraph graph = topo.getGraph();
+		ShortestPathTree tree = Dijkstra.computeShortestPaths(graph,
+				graph.getVertexById(source), equalCost);
+		changedLinks.clear();
+		for (int step = 0; step < 200; step++)
+		{
+			int a = rand.nextInt(topo.getVertexCount());
+			int b = rand.nextInt(topo.getVertexCount());
+			if (a == b)
+			{ continue; }
+			double weight = (rand.nextInt(3) == 0 ? Double.POSITIVE_INFINITY
+					: TestTopology.randomWeight(rand));
+			if (rand.nextBoolean())
+			{ topo.setLinks(a, b, weight); }
+			else
+			{ topo.setLink(a, b, weight); }
+			if (step % batch == batch - 1)
+			{ tree = this.update(topo.getGraph(), tree); }
+		}
+	}
+
+	/**
+	 * Update a tree with the links changed since it was last updated, and
+	 * check it against trees computed from scratch.
+	 */
+	private ShortestPathTree update(TopologyGraph graph, ShortestPathTree tree)
+	{
+		ShortestPathTree updated = IncrementalShortestPaths
+				.updateShortestPaths(graph, tree, changedLinks);
+		changedLinks.clear();
+		TestTopology.assertSameTree(graph, Dijkstra.computeShortestPaths(graph,
+				graph.getVertexById(tree.getSourceId()), tree.hasEqualCost()),
+				updated);
+		TestTopology.assertSameTree(graph, Dijkstra.computeShortestPaths(
+				graph.getCompactGraph(), tree.getSourceId(),
+				tree.hasEqualCost()), updated);
+		return updated;
+	}
+
+	private static void assertPredecessors(ShortestPathTree tree, int id,
+			int... expected)
+	{
+		assertEquals(expected.length, tree.getPredecessorCount(id));
+		for (int i = 0; i < expected.length; i++)
+		{ assertEquals(expected[i], tree.getPredecessorId(id, i)); }
+	}
+}
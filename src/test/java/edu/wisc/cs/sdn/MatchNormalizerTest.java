@@ -0,0 +1,83 @@
+package edu.wisc.cs.sdn;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.openflow.protocol.OFMatch;
+
+/**
+ * Checks that {@link MatchNormalizer} puts the matches the routing modules
+ * send in the form switches report them in.
+ */
+public class MatchNormalizerTest
+{
+	// Wildcards a switch reports for a rule that only matches the destination
+	// MAC address
+	private static final int REPORTED_DESTINATION =
+			(OFMatch.OFPFW_ALL & ~OFMatch.OFPFW_DL_DST
+					& ~(0x3f << OFMatch.OFPFW_NW_SRC_SHIFT)
+					& ~(0x3f << OFMatch.OFPFW_NW_DST_SHIFT))
+			| OFMatch.OFPFW_NW_SRC_ALL | OFMatch.OFPFW_NW_DST_ALL;
+
+	@Test
+	public void testDestinationRuleMatchesReport()
+	{
+		OFMatch sent = new OFMatch();
+		sent.setWildcards(OFMatch.OFPFW_ALL & ~OFMatch.OFPFW_DL_DST);
+		OFMatch reported = new OFMatch();
+		reported.setWildcards(REPORTED_DESTINATION);
+		assertEquals(REPORTED_DESTINATION,
+				MatchNormalizer.normalizeWildcards(sent));
+		assertEquals(REPORTED_DESTINATION,
+				MatchNormalizer.normalizeWildcards(reported));
+	}
+
+	@Test
+	public void testFieldsThatDoNotApplyAreWildcarded()
+	{
+		// Transport ports of an IP protocol other than TCP, UDP, and ICMP
+		OFMatch match = new OFMatch();
+		match.setWildcards(OFMatch.OFPFW_ALL & ~(OFMatch.OFPFW_DL_TYPE
+				| OFMatch.OFPFW_NW_PROTO | OFMatch.OFPFW_TP_DST));
+		match.setDataLayerType((short)0x0800);
+		match.setNetworkProtocol((byte)89);
+		match.setTransportDestination((short)80);
+		int wildcards = MatchNormalizer.normalizeWildcards(match);
+		assertEquals(OFMatch.OFPFW_TP_DST, wildcards & OFMatch.OFPFW_TP_DST);
+		assertEquals(0, MatchNormalizer.normalize(match)
+				.getTransportDestination());
+
+		// The same ports of TCP apply
+		match.setNetworkProtocol((byte)6);
+		wildcards = MatchNormalizer.normalizeWildcards(match);
+		assertEquals(0, wildcards & OFMatch.OFPFW_TP_DST);
+		assertEquals(80, MatchNormalizer.normalize(match)
+				.getTransportDestination());
+
+		// Network addresses of a type other than IP and ARP
+		match.setWildcards(OFMatch.OFPFW_ALL & ~(OFMatch.OFPFW_DL_TYPE
+				| (0x3f << OFMatch.OFPFW_NW_DST_SHIFT)));
+		match.setDataLayerType((short)0x88cc);
+		match.setNetworkDestination(0x0a000001);
+		wildcards = MatchNormalizer.normalizeWildcards(match);
+		assertEquals(OFMatch.OFPFW_NW_DST_ALL,
+				wildcards & (0x3f << OFMatch.OFPFW_NW_DST_SHIFT));
+		assertEquals(0, MatchNormalizer.normalize(match)
+				.getNetworkDestination());
+	}
+
+	@Test
+	public void testAddressPrefixIsKept()
+	{
+		OFMatch match = new OFMatch();
+		match.setWildcards((OFMatch.OFPFW_ALL
+				& ~(OFMatch.OFPFW_DL_TYPE | (0x3f << OFMatch.OFPFW_NW_SRC_SHIFT)))
+				| (8 << OFMatch.OFPFW_NW_SRC_SHIFT));
+		match.setDataLayerType((short)0x0800);
+		match.setNetworkSource(0x0a0102ff);
+		assertEquals(8, (MatchNormalizer.normalizeWildcards(match)
+				>> OFMatch.OFPFW_NW_SRC_SHIFT) & 0x3f);
+		assertEquals(0x0a010200, MatchNormalizer.normalize(match)
+				.getNetworkSource());
+	}
+}
@@ -0,0 +1,153 @@
+package edu.wisc.cs.sdn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that trees served by a {@link PathCache} match trees computed from
+ * scratch as the topology changes.
+ */
+public class PathCacheTest
+{
+	private TestTopology topo;
+	private PathCache cache;
+
+	@Before
+	public void setUp()
+	{
+		topo = TestTopology.random(40, 3, new Random(11));
+		cache = new PathCache(8, true);
+		topo.addListener(cache);
+	}
+
+	@Test
+	public void testUnaffectedTreeIsHit()
+	{
+		TopologyGraph graph = topo.getGraph();
+		ShortestPathTree tree = this.lookup(graph, 0);
+
+		// Make a link no path uses more expensive
+		for (long key : topo.getLinks())
+		{
+			int src = IncrementalShortestPaths.getSrcId(key);
+			int dst = IncrementalShortestPaths.getDstId(key);
+			if (!tree.usesLink(src, dst))
+			{
+				topo.setLink(src, dst, 100);
+				break;
+			}
+		}
+		assertSame(tree, this.lookup(topo.getGraph(), 0));
+		assertEquals(1, cache.getHits());
+		assertEquals(0, cache.getUpdates());
+	}
+
+	@Test
+	public void testChangedLinksAccumulate()
+	{
+		TopologyGraph graph = topo.getGraph();
+		ShortestPathTree tree = this.lookup(graph, 0);
+
+		// Fail a link the tree uses, then shorten another, then change the
+		// weight of a third, before the tree is looked up again
+		int child = 1;
+		while (tree.getPredecessorCount(child) == 0)
+		{ child++; }
+		topo.setLinks(tree.getPreviousId(child), child,
+				Double.POSITIVE_INFINITY);
+		topo.setLinks(0, 20, 0.5);
+		for (long key : topo.getLinks())
+		{
+			int src = IncrementalShortestPaths.getSrcId(key);
+			int dst = IncrementalShortestPaths.getDstId(key);
+			if (src != 0 && tree.usesLink(src, dst))
+			{
+				topo.setLink(src, dst, 10);
+				break;
+			}
+		}
+
+		this.lookup(topo.getGraph(), 0);
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getUpdates());
+	}
+
+	@Test
+	public void testSwitchRemoval()
+	{
+		this.lookup(topo.getGraph(), 0);
+		this.lookup(topo.getGraph(), 5);
+
+		// Removing a switch updates the trees rooted elsewhere, and discards
+		// the tree rooted at it
+		topo.removeSwitch(5);
+		TopologyGraph graph = topo.getGraph();
+		ShortestPathTree tree = this.lookup(graph, 0);
+		assertEquals(1, cache.getUpdates());
+		assertEquals(1, cache.getInvalidations());
+		assertEquals(0, tree.getPredecessorCount(5));
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void testRandomEdits()
+	{
+		Random rand = new Random(5);
+		for (int step = 0; step < 300; step++)
+		{
+			int a = rand.nextInt(topo.getVertexCount());
+			int b = rand.nextInt(topo.getVertexCount());
+			if (a == b || !topo.hasSwitch(a) || !topo.hasSwitch(b))
+			{ continue; }
+			switch (rand.nextInt(8))
+			{
+			case 0:
+				topo.removeSwitch(a);
+				break;
+			case 1:
+				int added = topo.addSwitch();
+				topo.setLinks(added, a, TestTopology.randomWeight(rand));
+				topo.setLinks(added, b, TestTopology.randomWeight(rand));
+				break;
+			case 2:
+				topo.setLinks(a, b, Double.POSITIVE_INFINITY);
+				break;
+			case 3:
+				topo.setLink(a, b, TestTopology.randomWeight(rand));
+				break;
+			default:
+				topo.setLinks(a, b, TestTopology.randomWeight(rand));
+				break;
+			}
+
+			// Look up trees from a few sources, leaving others to fall behind
+			TopologyGraph graph = topo.getGraph();
+			for (int i = 0; i < 3; i++)
+			{
+				int source = rand.nextInt(12);
+				if (topo.hasSwitch(source))
+				{ this.lookup(graph, source); }
+			}
+		}
+		assertTrue(cache.getUpdates() > 0);
+	}
+
+	/**
+	 * Look up the tree rooted at a switch, and check it against a tree
+	 * computed from scratch.
+	 */
+	private ShortestPathTree lookup(TopologyGraph graph, int source)
+	{
+		ShortestPathTree tree = cache.getShortestPaths(graph,
+				graph.getVertexById(source));
+		TestTopology.assertSameTree(graph, Dijkstra.computeShortestPaths(graph,
+				graph.getVertexById(source), true), tree);
+		return tree;
+	}
+}
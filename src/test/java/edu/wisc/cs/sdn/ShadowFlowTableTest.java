@@ -0,0 +1,140 @@
+package edu.wisc.cs.sdn;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.protocol.statistics.OFFlowStatisticsReply;
+
+import net.floodlightcontroller.packet.Ethernet;
+
+/**
+ * Checks that a switch whose flow table matches the {@link ShadowFlowTable}
+ * is sent nothing when reconciled, and that a switch that differs is sent
+ * only what differs.
+ */
+public class ShadowFlowTableTest
+{
+	private static final long DPID = 1;
+	private static final long COOKIE = FlowInstaller.COOKIE;
+
+	private ShadowFlowTable shadow;
+
+	// Rules the switch reports it has
+	private List<OFFlowStatisticsReply> actual;
+
+	@Before
+	public void setUp()
+	{
+		shadow = new ShadowFlowTable();
+		actual = new ArrayList<OFFlowStatisticsReply>();
+	}
+
+	@Test
+	public void testReportedWildcardsMatchSentRule()
+	{
+		shadow.flowModSent(DPID, destinationRule(1, (short)2));
+		shadow.markReconcile(DPID);
+
+		// The switch reports the address wildcards clamped to 32 bits
+		OFMatch reported = destinationMatch(1);
+		reported.setWildcards(MatchNormalizer.normalizeWildcards(reported));
+		actual.add(stat(reported, (short)2));
+		assertEquals(0, shadow.reconcile(DPID, actual, COOKIE).size());
+	}
+
+	@Test
+	public void testDifferencesAreSent()
+	{
+		shadow.flowModSent(DPID, destinationRule(1, (short)2));
+		shadow.flowModSent(DPID, destinationRule(2, (short)3));
+		shadow.markReconcile(DPID);
+		actual.add(stat(destinationMatch(2), (short)4));
+		actual.add(stat(destinationMatch(3), (short)4));
+
+		// Host 1 is added back, host 2 moved, and host 3 deleted
+		List<OFFlowMod> delta = shadow.reconcile(DPID, actual, COOKIE);
+		assertEquals(3, delta.size());
+		short[] commands = new short[3];
+		for (OFFlowMod flowMod : delta)
+		{
+			long mac = Ethernet.toLong(
+					flowMod.getMatch().getDataLayerDestination());
+			commands[(int)mac - 1] = flowMod.getCommand();
+		}
+		assertEquals(OFFlowMod.OFPFC_ADD, commands[0]);
+		assertEquals(OFFlowMod.OFPFC_MODIFY_STRICT, commands[1]);
+		assertEquals(OFFlowMod.OFPFC_DELETE_STRICT, commands[2]);
+	}
+
+	@Test
+	public void testRulesWrittenDuringRequestAreLeftOut()
+	{
+		shadow.flowModSent(DPID, destinationRule(1, (short)2));
+		shadow.markReconcile(DPID);
+
+		// One rule is written before the switch replies and is reported,
+		// another is written after it replies and is not
+		shadow.flowModSent(DPID, destinationRule(2, (short)3));
+		shadow.flowModSent(DPID, destinationRule(3, (short)3));
+		actual.add(stat(destinationMatch(1), (short)2));
+		actual.add(stat(destinationMatch(2), (short)3));
+		assertEquals(0, shadow.reconcile(DPID, actual, COOKIE).size());
+		assertEquals(3, shadow.getRuleCount(DPID));
+
+		// Both are compared on the next pass
+		shadow.markReconcile(DPID);
+		assertEquals(1, shadow.reconcile(DPID, actual, COOKIE).size());
+	}
+
+	/**
+	 * Creates a match on a destination MAC address, as the routing modules
+	 * send it.
+	 */
+	private static OFMatch destinationMatch(long mac)
+	{
+		OFMatch match = new OFMatch();
+		match.setWildcards(OFMatch.OFPFW_ALL & ~OFMatch.OFPFW_DL_DST);
+		match.setDataLayerDestination(Ethernet.toByteArray(mac));
+		return match;
+	}
+
+	/**
+	 * Creates a flow-mod that adds a permanent rule for a destination.
+	 */
+	private static OFFlowMod destinationRule(long mac, short outPort)
+	{
+		OFFlowMod flowMod = new OFFlowMod();
+		flowMod.setCommand(OFFlowMod.OFPFC_ADD);
+		flowMod.setMatch(destinationMatch(mac));
+		flowMod.setCookie(COOKIE);
+		flowMod.setActions(output(outPort));
+		return flowMod;
+	}
+
+	/**
+	 * Creates a switch's report of a permanent rule.
+	 */
+	private static OFFlowStatisticsReply stat(OFMatch match, short outPort)
+	{
+		OFFlowStatisticsReply stat = new OFFlowStatisticsReply();
+		stat.setMatch(match);
+		stat.setCookie(COOKIE);
+		stat.setActions(output(outPort));
+		return stat;
+	}
+
+	private static List<OFAction> output(short port)
+	{
+		List<OFAction> actions = new ArrayList<OFAction>();
+		actions.add(new OFActionOutput(port));
+		return actions;
+	}
+}
@@ -0,0 +1,316 @@
+package edu.wisc.cs.sdn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import net.floodlightcontroller.core.IOFSwitch;
+
+/**
+ * A topology for tests that changes one step at a time, notifying listeners
+ * of each change the way {@link NetworkTopology} does, and builds a snapshot
+ * of the graph after any step. Switch i has DPID i+1.
+ */
+class TestTopology
+{
+	// Weights a link is given when edited at random; repeated values make
+	// equal-cost paths common
+	private static final double[] WEIGHTS = { 0.5, 1, 1, 2, 10 };
+
+	// Switch with each vertex id; null if the switch is not in the topology
+	private List<IOFSwitch> switches;
+
+	// Weight of each link, indexed by link key
+	private Map<Long,Double> links;
+
+	// Listeners notified of each change
+	private List<ITopologyListener> listeners;
+
+	// Version of the topology
+	private long version;
+
+	/**
+	 * Create a topology with some switches and no links.
+	 * @param n the number of switches
+	 */
+	TestTopology(int n)
+	{
+		this.switches = new ArrayList<IOFSwitch>();
+		this.links = new TreeMap<Long,Double>();
+		this.listeners = new ArrayList<ITopologyListener>();
+		for (int i = 0; i < n; i++)
+		{ switches.add(createSwitch(i + 1)); }
+	}
+
+	/**
+	 * Create a connected random topology: a ring plus randomly chosen links,
+	 * each with the same weight in both directions.
+	 * @param n the number of switches
+	 * @param degree the average number of links per switch; at least 2
+	 * @param rand source of random choices
+	 * @return the topology
+	 */
+	static TestTopology random(int n, int degree, Random rand)
+	{
+		TestTopology topo = new TestTopology(n);
+		for (int i = 0; i < n; i++)
+		{ topo.setLinks(i, (i + 1) % n, randomWeight(rand)); }
+		int extraLinks = n * (degree - 2) / 2;
+		while (extraLinks > 0)
+		{
+			int a = rand.nextInt(n);
+			int b = rand.nextInt(n);
+			if (a == b || topo.hasLink(a, b))
+			{ continue; }
+			topo.setLinks(a, b, randomWeight(rand));
+			extraLinks--;
+		}
+		return topo;
+	}
+
+	/**
+	 * Create a switch that only knows its DPID.
+	 * @param dpid the switch's DPID
+	 * @return the switch
+	 */
+	static IOFSwitch createSwitch(final long dpid)
+	{
+		return (IOFSwitch)Proxy.newProxyInstance(
+				IOFSwitch.class.getClassLoader(),
+				new Class<?>[] { IOFSwitch.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args)
+					{
+						String name = method.getName();
+						if (name.equals("getId"))
+						{ return dpid; }
+						if (name.equals("equals"))
+						{ return proxy == args[0]; }
+						if (name.equals("hashCode"))
+						{ return (int)dpid; }
+						if (name.equals("toString"))
+						{ return "Switch"+dpid; }
+						Class<?> type = method.getReturnType();
+						if (type == boolean.class)
+						{ return false; }
+						if (type.isPrimitive() && type != void.class)
+						{ return 0; }
+						return null;
+					}
+				});
+	}
+
+	/**
+	 * Pick one of the weights links are given when edited at random.
+	 * @param rand source of random choices
+	 * @return the weight
+	 */
+	static double randomWeight(Random rand)
+	{ return WEIGHTS[rand.nextInt(WEIGHTS.length)]; }
+
+	/**
+	 * Add a listener that is notified of each change.
+	 * @param listener the listener
+	 */
+	void addListener(ITopologyListener listener)
+	{ listeners.add(listener); }
+
+	/**
+	 * @return the current version of the topology
+	 */
+	long getVersion()
+	{ return version; }
+
+	/**
+	 * @return one more than the largest vertex id
+	 */
+	int getVertexCount()
+	{ return switches.size(); }
+
+	/**
+	 * Check whether a switch is in the topology.
+	 * @param id the switch's vertex id
+	 * @return true if the switch is in the topology
+	 */
+	boolean hasSwitch(int id)
+	{ return id < switches.size() && switches.get(id) != null; }
+
+	/**
+	 * Check whether there is a link from one switch to another.
+	 * @param srcId the vertex id of the switch the link leaves
+	 * @param dstId the vertex id of the switch the link reaches
+	 * @return true if the link is in the topology
+	 */
+	boolean hasLink(int srcId, int dstId)
+	{ return links.containsKey(IncrementalShortestPaths.linkKey(srcId, dstId)); }
+
+	/**
+	 * Get the keys of all links in the topology.
+	 * @return the link keys, in increasing order
+	 */
+	List<Long> getLinks()
+	{ return new ArrayList<Long>(links.keySet()); }
+
+	/**
+	 * Add a link, remove it, or change its weight, in one direction.
+	 * @param srcId the vertex id of the switch the link leaves
+	 * @param dstId the vertex id of the switch the link reaches
+	 * @param weight the new weight; infinity to remove the link
+	 */
+	void setLink(int srcId, int dstId, double weight)
+	{
+		this.changeLink(srcId, dstId, weight);
+		version++;
+	}
+
+	/**
+	 * Add a link, remove it, or change its weight, in both directions at
+	 * once.
+	 * @param a the vertex id of one switch
+	 * @param b the vertex id of the other switch
+	 * @param weight the new weight; infinity to remove the link
+	 */
+	void setLinks(int a, int b, double weight)
+	{
+		this.changeLink(a, b, weight);
+		this.changeLink(b, a, weight);
+		version++;
+	}
+
+	/**
+	 * Add a switch with a new vertex id.
+	 * @return the switch's vertex id
+	 */
+	int addSwitch()
+	{
+		int id = switches.size();
+		switches.add(createSwitch(id + 1));
+		for (ITopologyListener listener : listeners)
+		{ listener.switchChanged(id, version + 1); }
+		version++;
+		return id;
+	}
+
+	/**
+	 * Remove a switch and all links to and from it.
+	 * @param id the switch's vertex id
+	 */
+	void removeSwitch(int id)
+	{
+		for (long key : this.getLinks())
+		{
+			if (IncrementalShortestPaths.getSrcId(key) == id
+					|| IncrementalShortestPaths.getDstId(key) == id)
+			{
+				this.changeLink(IncrementalShortestPaths.getSrcId(key),
+						IncrementalShortestPaths.getDstId(key),
+						Double.POSITIVE_INFINITY);
+			}
+		}
+		switches.set(id, null);
+		for (ITopologyListener listener : listeners)
+		{ listener.switchChanged(id, version + 1); }
+		version++;
+	}
+
+	/**
+	 * Build a snapshot of the current topology.
+	 * @return the snapshot
+	 */
+	TopologyGraph getGraph()
+	{
+		TopologyGraph.Builder builder =
+				new TopologyGraph.Builder(version, switches.size());
+		for (int id = 0; id < switches.size(); id++)
+		{
+			if (switches.get(id) != null)
+			{ builder.addSwitch(id, switches.get(id)); }
+		}
+		for (Map.Entry<Long,Double> link : links.entrySet())
+		{
+			int src = IncrementalShortestPaths.getSrcId(link.getKey());
+			int dst = IncrementalShortestPaths.getDstId(link.getKey());
+			builder.addLink(src, (short)(dst + 1), dst, (short)(src + 1),
+					link.getValue());
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Change a link and notify the listeners, as part of the next version.
+	 */
+	private void changeLink(int srcId, int dstId, double weight)
+	{
+		long key = IncrementalShortestPaths.linkKey(srcId, dstId);
+		Double old = links.get(key);
+		double oldWeight = (null == old ? Double.POSITIVE_INFINITY : old);
+		if (oldWeight == weight)
+		{ return; }
+		if (Double.isInfinite(weight))
+		{ links.remove(key); }
+		else
+		{ links.put(key, weight); }
+		for (ITopologyListener listener : listeners)
+		{
+			listener.linkWeightChanged(srcId, dstId, oldWeight, weight,
+					version + 1);
+		}
+	}
+
+	/**
+	 * Check that two shortest path trees agree on the distance to every
+	 * vertex and, if they list equal-cost predecessors, on those. The
+	 * predecessor each tree follows must be reached by a link that lies on a
+	 * shortest path.
+	 * @param graph the graph both trees were computed over
+	 * @param expected the tree computed from scratch
+	 * @param actual the tree under test
+	 */
+	static void assertSameTree(TopologyGraph graph, ShortestPathTree expected,
+			ShortestPathTree actual)
+	{
+		assertEquals(expected.getSourceId(), actual.getSourceId());
+		assertEquals(expected.hasEqualCost(), actual.hasEqualCost());
+		int n = Math.max(expected.getVertexCount(), actual.getVertexCount());
+		for (int v = 0; v < n; v++)
+		{
+			double a = actual.getDistance(v);
+			double b = expected.getDistance(v);
+			assertTrue(String.format("distance to %d: %f != %f", v, a, b),
+					(Double.isInfinite(b) ? Double.isInfinite(a)
+							: ShortestPathTree.isEqualCost(a, b)));
+			int count = expected.getPredecessorCount(v);
+			assertEquals("predecessors of "+v, count,
+					actual.getPredecessorCount(v));
+			if (0 == count)
+			{ continue; }
+			if (expected.hasEqualCost())
+			{
+				for (int i = 0; i < count; i++)
+				{
+					assertEquals("predecessor "+i+" of "+v,
+							expected.getPredecessorId(v, i),
+							actual.getPredecessorId(v, i));
+				}
+				assertTrue("previous of "+v,
+						actual.usesLink(actual.getPreviousId(v), v));
+			}
+			int previous = actual.getPreviousId(v);
+			Edge e = graph.getVertexById(previous).getEdgeToNeighbor(
+					graph.getVertexById(v));
+			assertTrue("link to "+v+" from previous "+previous, e != null
+					&& ShortestPathTree.isEqualCost(
+							actual.getDistance(previous) + e.getWeight(), a));
+		}
+	}
+}